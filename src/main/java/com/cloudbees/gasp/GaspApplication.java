@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp;
+
+import com.cloudbees.gasp.services.ADMRegistrationService;
+import com.cloudbees.gasp.services.APNRegistrationService;
+import com.cloudbees.gasp.services.ChangeService;
+import com.cloudbees.gasp.services.DataSyncService;
+import com.cloudbees.gasp.services.GCMRegistrationService;
+import com.cloudbees.gasp.services.JobService;
+
+import javax.ws.rs.core.Application;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The REST resources, listed explicitly: Jersey's package scanner is slow
+ * and cannot read Java 21 class files. Used by web.xml and by Launcher, so
+ * the WAR and the standalone server serve the same resources.
+ */
+public class GaspApplication extends Application {
+
+    @Override
+    public Set<Class<?>> getClasses() {
+        Set<Class<?>> classes = new HashSet<Class<?>>();
+        classes.add(APNRegistrationService.class);
+        classes.add(GCMRegistrationService.class);
+        classes.add(ADMRegistrationService.class);
+        classes.add(DataSyncService.class);
+        classes.add(JobService.class);
+        classes.add(ChangeService.class);
+        return classes;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp;
+
+import com.cloudbees.gasp.config.Config;
+import com.sun.jersey.api.container.ContainerFactory;
+import com.sun.jersey.api.core.ApplicationAdapter;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the push server without a servlet container, on the JDK's built-in
+ * HTTP server. Requests are handled on virtual threads.
+ * <p>
+ * Settings are read from system properties and environment variables, as
+ * for the WAR (see PushServlet); PORT sets the listening port (default
+ * 8080). Startup time and heap used once idle are logged, so they can be
+ * tracked from build to build; set STARTUP_BENCHMARK=true to log them
+ * and exit instead of serving requests.
+ * <p>
+ * Run with: mvn -Pstandalone compile exec:java
+ */
+public final class Launcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Launcher.class.getName());
+
+    private Launcher() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean benchmark = Config.getBoolean("STARTUP_BENCHMARK", false);
+        long start = System.nanoTime();
+
+        PushServlet.start();
+        long servicesMs = (System.nanoTime() - start) / 1000000;
+
+        HttpHandler handler = ContainerFactory.createContainer(HttpHandler.class,
+                new ApplicationAdapter(new GaspApplication()));
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        final HttpServer server = HttpServer.create(new InetSocketAddress(Config.getInt("PORT", 8080)), 0);
+        server.createContext("/", handler);
+        server.setExecutor(executor);
+        server.start();
+
+        long startupMs = (System.nanoTime() - start) / 1000000;
+        long jvmMs = ManagementFactory.getRuntimeMXBean().getUptime();
+        LOGGER.info("Listening on port " + server.getAddress().getPort() + ": started in " + startupMs
+                + " ms (services " + servicesMs + " ms, JVM uptime " + jvmMs + " ms)");
+        LOGGER.info("Idle heap: " + idleHeapKb() + " KB used");
+
+        Runnable shutdown = () -> {
+            server.stop(0);
+            executor.shutdown();
+            PushServlet.stop();
+        };
+        if (benchmark) {
+            LOGGER.info("startup_ms=" + startupMs + " jvm_uptime_ms=" + jvmMs
+                    + " idle_heap_kb=" + idleHeapKb());
+            shutdown.run();
+        }
+        else {
+            Runtime.getRuntime().addShutdownHook(new Thread(shutdown, "gasp-shutdown"));
+        }
+    }
+
+    // Heap still in use after a collection: the server's idle footprint
+    private static long idleHeapKb() {
+        System.gc();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        return heap.getUsed() / 1024;
+    }
+}
@@ -2,31 +2,33 @@ package com.cloudbees.gasp;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
 import com.amazonaws.services.sns.AmazonSNS;
 import com.amazonaws.services.sns.AmazonSNSClient;
+import com.cloudbees.gasp.config.Config;
+import com.cloudbees.gasp.config.Credentials;
+import com.cloudbees.gasp.config.CredentialsListener;
+import com.cloudbees.gasp.config.CredentialsProvider;
+import com.cloudbees.gasp.push.DeliveryScheduler;
+import com.cloudbees.gasp.push.PayloadTemplates;
+import com.cloudbees.gasp.push.PushDispatcher;
+import com.cloudbees.gasp.push.PushTransports;
+import com.cloudbees.gasp.services.PlatformApplication;
 import com.cloudbees.gasp.services.SNSMobile;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.servlet.GuiceServletContextListener;
 import com.sun.jersey.guice.JerseyServletModule;
 import com.sun.jersey.guice.spi.container.servlet.GuiceContainer;
-import org.apache.commons.codec.binary.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.ServletContextEvent;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.security.spec.KeySpec;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -48,109 +50,43 @@ public class PushServlet extends GuiceServletContextListener {
         );
     }
 
-    // APN base64-encoded cert/key files: read via ClassLoader
-    private static final String apnsCertBase64Filename = "gasp-cert.b64";
-    private static final String apnsKeyBase64Filename = "gasp-key.b64";
+    // Startup properties
+    private static final String[] properties = {
+            "GCM_API_KEY", "AES_SALT_BASE64", "AES_INIT_VECTOR_BASE64", "AWS_ACCESS_KEY", "AWS_SECRET_KEY"
+    };
 
-    private final InputStream apnsCertBase64
-            = this.getClass().getClassLoader().getResourceAsStream(apnsCertBase64Filename);
-    private final InputStream apnsKeyBase64
-            = this.getClass().getClassLoader().getResourceAsStream(apnsKeyBase64Filename);
+    // APNS certificate/key, GCM API key and AWS keys: reloaded when they change
+    private static final CredentialsProvider credentialsProvider = new CredentialsProvider();
 
-    // Apple Development iOS Push Services Certificate and Private Key
-    private static String apnsCertificate;
-    private static String apnsKey;
-
-    // Google Cloud Messaging API Key
-    private static String gcmApiKey;
-
-    // AWS SNS Client object
+    // AWS SNS Client object for the default region (see PlatformApplication.getRegions)
     private static AmazonSNS amazonSNS;
     private static SNSMobile snsMobile = new SNSMobile();
 
 
     public static String getApnsCertificate() {
-        return apnsCertificate;
+        return credentialsProvider.getCredentials().getApnsCertificate();
     }
 
     public static String getApnsKey() {
-        return apnsKey;
+        return credentialsProvider.getCredentials().getApnsKey();
     }
 
     public static String getGcmApiKey() {
-        return gcmApiKey;
+        return credentialsProvider.getCredentials().getGcmApiKey();
     }
 
     public static AmazonSNS getAmazonSNS() {
         return amazonSNS;
     }
 
-    private String getBase64(InputStream fis) {
-        InputStreamReader isr = null;
-        String readString = "";
-
-        try {
-            isr = new InputStreamReader (fis) ;
-
-            readString = new BufferedReader(isr).readLine();
-        }
-        catch(Exception e) {
-            e.printStackTrace();
-        }
-        finally {
-            try {
-                if (isr != null) isr.close();
-                fis.close();
-            }
-            catch (IOException ioe) {
-                ioe.printStackTrace();
-            }
-        }
-        return readString;
-    }
-
-    private String decryptFromBase64(char[] key, byte[] salt, byte[] iv, String ciphertext){
-        // javax.crypto parameters
-        final String secretKeyFactoryAlgorithm = "PBKDF2WithHmacSHA1";
-        final String secretKeyAlgorithm = "AES";
-        final String cipherAlgorithm = "AES/CBC/PKCS5Padding";
-        final int pbeKeySpecIterations= 65536;
-        final int pbeKeySpecKeyLength = 128;
-
-        byte[] plaintext = null;        // Plaintext
-
-        try {
-            /* Derive the key, given password and salt. */
-            SecretKeyFactory factory = SecretKeyFactory.getInstance(secretKeyFactoryAlgorithm);
-            KeySpec spec = new PBEKeySpec(key, salt, pbeKeySpecIterations, pbeKeySpecKeyLength);
-            SecretKey tmp = factory.generateSecret(spec);
-            SecretKey secret = new SecretKeySpec(tmp.getEncoded(), secretKeyAlgorithm);
-
-            /* Decrypt the message, given derived key and initialization vector. */
-            Cipher cipher = Cipher.getInstance(cipherAlgorithm);
-            cipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(iv));
-            plaintext = cipher.doFinal(Base64.decodeBase64(ciphertext.getBytes()));
-
-            // Log Decryption algorithms
-            LOGGER.debug("SecretKeyFactory: " + factory.getAlgorithm());
-            LOGGER.debug("Secret: " + secret.getAlgorithm());
-            LOGGER.debug("Cipher: " + cipher.getAlgorithm());
-        }
-        catch (Exception e) {
-            LOGGER.error("Decryption error");
-            e.printStackTrace();
-        }
-        return new String(plaintext);
+    public static CredentialsProvider getCredentialsProvider() {
+        return credentialsProvider;
     }
 
     private static String getSystem(String key){
         String value;
 
-        if ((value = System.getProperty(key)) != null) {
-            LOGGER.debug(key + ": " + value);
-            return value;
-        }
-        else if ((value = System.getenv(key)) != null){
+        if ((value = credentialsProvider.getSetting(key)).length() > 0) {
             LOGGER.debug(key + ": " + value);
             return value;
         }
@@ -160,62 +96,139 @@ public class PushServlet extends GuiceServletContextListener {
         }
     }
 
-    private void getAppleCredentials(String saltBase64, String ivBase64) {
-        try {
-            apnsCertificate = decryptFromBase64(getGcmApiKey().toCharArray(),
-                                                Base64.decodeBase64(saltBase64.getBytes()),
-                                                Base64.decodeBase64(ivBase64.getBytes()),
-                                                getBase64(apnsCertBase64));
-            LOGGER.debug('\n' + apnsCertificate);
-            apnsKey= decryptFromBase64(getGcmApiKey().toCharArray(),
-                                       Base64.decodeBase64(saltBase64.getBytes()),
-                                       Base64.decodeBase64(ivBase64.getBytes()),
-                                       getBase64(apnsKeyBase64));
-            LOGGER.debug('\n' + apnsKey);
+    private static boolean isApns(SNSMobile.Platform platform) {
+        return platform == SNSMobile.Platform.APNS || platform == SNSMobile.Platform.APNS_SANDBOX;
+    }
+
+    /**
+     * The PlatformPrincipal of a platform application: the APNS certificate
+     * (for both APNS and APNS_SANDBOX), the ADM client id (ADM_CLIENT_ID), or
+     * none for GCM.
+     */
+    private static String getPrincipal(SNSMobile.Platform platform, Credentials credentials) {
+        switch (platform) {
+            case APNS:
+            case APNS_SANDBOX:
+                return credentials.getApnsCertificate();
+            case ADM:
+                return credentials.getAdmClientId();
+            default:
+                return "";
         }
-        catch (Exception e) {
-            e.printStackTrace();
+    }
+
+    /**
+     * The PlatformCredential of a platform application: the APNS private
+     * key, the GCM API key or the ADM client secret (ADM_CLIENT_SECRET).
+     */
+    private static String getCredential(SNSMobile.Platform platform, Credentials credentials) {
+        switch (platform) {
+            case APNS:
+            case APNS_SANDBOX:
+                return credentials.getApnsKey();
+            case ADM:
+                return credentials.getAdmClientSecret();
+            default:
+                return credentials.getGcmApiKey();
         }
     }
 
-    public void contextInitialized(ServletContextEvent event) {
-        try {
-            // Get startup properties
-            gcmApiKey = getSystem("GCM_API_KEY");
-            String aesSaltBase64 = getSystem("AES_SALT_BASE64");
-            String aesInitVectorBase64 = getSystem("AES_INIT_VECTOR_BASE64");
-            String awsAccessKey = getSystem("AWS_ACCESS_KEY");
-            String awsSecretKey = getSystem("AWS_SECRET_KEY");
+    /**
+     * Creates an SNS client for a region whose connection pool
+     * (SNS_MAX_CONNECTIONS, default 1000) is sized for concurrent fan-out
+     * publishes rather than the SDK default of 50.
+     */
+    private static AmazonSNS createAmazonSNS(Credentials credentials, String region) {
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.setMaxConnections(Config.getInt("SNS_MAX_CONNECTIONS", 1000));
+        AmazonSNSClient client = new AmazonSNSClient(new BasicAWSCredentials(credentials.getAwsAccessKey(),
+                                                                             credentials.getAwsSecretKey()),
+                                                     configuration);
+        client.setRegion(Region.getRegion(Regions.fromName(region)));
+        return client;
+    }
 
-            // Get AWS SNS client
-            amazonSNS = new AmazonSNSClient(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
+    /**
+     * Creates (or replaces) the SNS client for each region. A replaced
+     * client is shut down, releasing its connection pool, once publishes
+     * already using it have had SNS_CLIENT_DRAIN_SECONDS (default 60) to
+     * finish.
+     */
+    private static void createSnsClients(Credentials credentials) {
+        for (String region : PlatformApplication.getRegions()) {
+            AmazonSNS previous = snsMobile.setSnsClient(region, createAmazonSNS(credentials, region));
+            if (previous != null) {
+                CompletableFuture.runAsync(previous::shutdown,
+                        CompletableFuture.delayedExecutor(Config.getLong("SNS_CLIENT_DRAIN_SECONDS", 60),
+                                                          TimeUnit.SECONDS));
+            }
+        }
+        amazonSNS = snsMobile.getSnsClient();
+    }
 
-            // Read and decrypt APNS certificate / key files
-            //getAPNSCredentials(aesSaltBase64, aesInitVectorBase64);
-            getAppleCredentials(aesSaltBase64, aesInitVectorBase64);
+    private static void createPlatformApplication(PlatformApplication application, String region,
+                                                  String applicationName, Credentials credentials) {
+        SNSMobile.Platform platform = application.getPlatform();
+        try {
+            application.setArn(region,
+                    snsMobile.getPlatformArn(region,
+                                             platform,
+                                             getPrincipal(platform, credentials),
+                                             getCredential(platform, credentials),
+                                             applicationName + "-" + platform.name().toLowerCase()));
+            LOGGER.info("Created " + platform.name() + " platform ARN: " + application.getArn(region));
 
-            String applicationName = "gasp-snsmobile-service";
-            LOGGER.debug("Application name: " + applicationName);
+        } catch (AmazonServiceException ase) {
+            LOGGER.debug("AmazonServiceException");
+            LOGGER.debug("  Error Message:    " + ase.getMessage());
+            LOGGER.debug("  HTTP Status Code: " + ase.getStatusCode());
+            LOGGER.debug("  AWS Error Code:   " + ase.getErrorCode());
+            LOGGER.debug("  Error Type:       " + ase.getErrorType());
+            LOGGER.debug("  Request ID:       " + ase.getRequestId());
+        } catch (AmazonClientException ace) {
+            LOGGER.debug("AmazonClientException");
+            LOGGER.debug("  Error Message: " + ace.getMessage());
+        }
+    }
 
-            snsMobile.setSnsClient(getAmazonSNS());
+    /**
+     * Pushes rotated credentials to SNS without touching the platform
+     * application ARNs, so registered endpoints and in-flight publishes
+     * are unaffected.
+     */
+    private static class CredentialsUpdater implements CredentialsListener {
+        @Override
+        public void credentialsChanged(Credentials previous, Credentials current) {
+            if (previous == null) return;
 
             try {
-                // Create SNS Mobile Platform ARN for APN
-                snsMobile.setApnPlatformArn(
-                        snsMobile.getPlatformArn(SNSMobile.Platform.APNS_SANDBOX,
-                                                 getApnsCertificate(),
-                                                 getApnsKey(),
-                                                 applicationName));
-                LOGGER.info("Created APN Platform ARN: " + snsMobile.getApnPlatformArn());
-
-                // Create SNS Mobile Platform ARN for GCM
-                snsMobile.setGcmPlatformArn(
-                        snsMobile.getPlatformArn(SNSMobile.Platform.GCM,
-                                                 "",
-                                                 getGcmApiKey(),
-                                                 applicationName));
-                LOGGER.info("Created GCM platform ARN: " + snsMobile.getGcmPlatformArn());
-
+                if (current.awsChanged(previous)) {
+                    createSnsClients(current);
+                    LOGGER.info("Replaced AWS SNS clients");
+                }
+                for (PlatformApplication application : PlatformApplication.all()) {
+                    SNSMobile.Platform platform = application.getPlatform();
+                    boolean changed;
+                    switch (platform) {
+                        case GCM:
+                            changed = current.gcmChanged(previous);
+                            break;
+                        case ADM:
+                            changed = current.admChanged(previous);
+                            break;
+                        default:
+                            changed = isApns(platform) && current.apnsChanged(previous);
+                    }
+                    if (!changed) continue;
+                    for (String region : PlatformApplication.getRegions()) {
+                        String arn = application.getArn(region);
+                        if (arn == null) continue;
+                        snsMobile.setPlatformApplicationAttributes(arn,
+                                                                   getPrincipal(platform, current),
+                                                                   getCredential(platform, current));
+                        LOGGER.info("Updated " + platform.name() + " platform credentials: " + arn);
+                    }
+                }
             } catch (AmazonServiceException ase) {
                 LOGGER.debug("AmazonServiceException");
                 LOGGER.debug("  Error Message:    " + ase.getMessage());
@@ -228,30 +241,86 @@ public class PushServlet extends GuiceServletContextListener {
                 LOGGER.debug("  Error Message: " + ace.getMessage());
             }
         }
-        catch (Exception e){
-            e.printStackTrace();
-        }
     }
+
+    public void contextInitialized(ServletContextEvent event) {
+        start();
+    }
+
     public void contextDestroyed(ServletContextEvent event) {
+        stop();
+    }
+
+    /**
+     * Creates the SNS platform applications and starts the background
+     * services: called by the servlet container, or by Launcher when the
+     * server runs standalone.
+     */
+    public static void start() {
         try {
-            // Delete the APN Platform Application.
-            snsMobile.deletePlatformApplication(snsMobile.getApnPlatformArn());
-            LOGGER.info("Deleted APN platform ARN: " + snsMobile.getApnPlatformArn());
+            // Check startup properties
+            for (String key : properties) {
+                getSystem(key);
+            }
 
-            // Delete the GCM Platform Application.
-            snsMobile.deletePlatformApplication(snsMobile.getGcmPlatformArn());
-            LOGGER.info("Deleted GCM platform ARN: " + snsMobile.getGcmPlatformArn());
+            // Read and decrypt APNS certificate / key files
+            credentialsProvider.start();
+            Credentials credentials = credentialsProvider.getCredentials();
 
-        } catch (AmazonServiceException ase) {
-            LOGGER.debug("AmazonServiceException");
-            LOGGER.debug("  Error Message:    " + ase.getMessage());
-            LOGGER.debug("  HTTP Status Code: " + ase.getStatusCode());
-            LOGGER.debug("  AWS Error Code:   " + ase.getErrorCode());
-            LOGGER.debug("  Error Type:       " + ase.getErrorType());
-            LOGGER.debug("  Request ID:       " + ase.getRequestId());
-        } catch (AmazonClientException ace) {
-            LOGGER.debug("AmazonClientException");
-            LOGGER.debug("  Error Message: " + ace.getMessage());
+            // Get an AWS SNS client for each region
+            createSnsClients(credentials);
+
+            String applicationName = "gasp-snsmobile-service";
+            LOGGER.debug("Application name: " + applicationName);
+
+            // Create an SNS Mobile Platform ARN for each platform application, in each region
+            for (PlatformApplication application : PlatformApplication.all()) {
+                for (String region : PlatformApplication.getRegions()) {
+                    createPlatformApplication(application, region, applicationName, credentials);
+                }
+            }
+
+            // Compile the payload templates now, so that a bad template fails at startup
+            PayloadTemplates.initialize();
+
+            // Release scheduled sends, including those journaled before a restart
+            DeliveryScheduler.start();
+
+            // Rotate credentials in place from now on
+            credentialsProvider.addListener(new CredentialsUpdater());
+        }
+        catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    public static void stop() {
+        credentialsProvider.stop();
+        DeliveryScheduler.stop();
+        PushDispatcher.shutdown();
+        PushTransports.closeAll();
+
+        for (PlatformApplication application : PlatformApplication.all()) {
+            for (String region : PlatformApplication.getRegions()) {
+                String arn = application.getArn(region);
+                if (arn == null) continue;
+                try {
+                    // Delete the Platform Application.
+                    snsMobile.deletePlatformApplication(arn);
+                    LOGGER.info("Deleted " + application.getName() + " platform ARN: " + arn);
+
+                } catch (AmazonServiceException ase) {
+                    LOGGER.debug("AmazonServiceException");
+                    LOGGER.debug("  Error Message:    " + ase.getMessage());
+                    LOGGER.debug("  HTTP Status Code: " + ase.getStatusCode());
+                    LOGGER.debug("  AWS Error Code:   " + ase.getErrorCode());
+                    LOGGER.debug("  Error Type:       " + ase.getErrorType());
+                    LOGGER.debug("  Request ID:       " + ase.getRequestId());
+                } catch (AmazonClientException ace) {
+                    LOGGER.debug("AmazonClientException");
+                    LOGGER.debug("  Error Message: " + ace.getMessage());
+                }
+            }
         }
     }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.config;
+
+/**
+ * Runtime settings: a system property takes precedence over an environment
+ * variable of the same name (as for PushServlet startup properties).
+ * <p>
+ * Lookups are not logged, so they are safe to use for secrets and on
+ * paths that are polled.
+ */
+public final class Config {
+
+    private Config() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Gets a setting, or null if it is not set.
+     */
+    public static String get(String key) {
+        String value;
+
+        if ((value = System.getProperty(key)) != null) {
+            return value;
+        }
+        return System.getenv(key);
+    }
+
+    /**
+     * Gets a setting, or the default value if it is not set.
+     */
+    public static String get(String key, String defaultValue) {
+        String value = get(key);
+        return (value == null || value.trim().length() == 0) ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = get(key);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
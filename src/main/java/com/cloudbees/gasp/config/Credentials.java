@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.config;
+
+/**
+ * Immutable snapshot of the push credentials: a reload replaces the whole
+ * snapshot, so readers never see a certificate paired with the wrong key.
+ */
+public final class Credentials {
+    // Apple iOS Push Services Certificate and Private Key (PEM)
+    private final String apnsCertificate;
+    private final String apnsKey;
+
+    // Google Cloud Messaging API Key
+    private final String gcmApiKey;
+
+    // AWS IAM credentials for the SNS client
+    private final String awsAccessKey;
+    private final String awsSecretKey;
+
+    // Amazon Device Messaging client id and secret
+    private final String admClientId;
+    private final String admClientSecret;
+
+    public Credentials(String apnsCertificate,
+                       String apnsKey,
+                       String gcmApiKey,
+                       String awsAccessKey,
+                       String awsSecretKey,
+                       String admClientId,
+                       String admClientSecret) {
+        this.apnsCertificate = apnsCertificate;
+        this.apnsKey = apnsKey;
+        this.gcmApiKey = gcmApiKey;
+        this.awsAccessKey = awsAccessKey;
+        this.awsSecretKey = awsSecretKey;
+        this.admClientId = admClientId;
+        this.admClientSecret = admClientSecret;
+    }
+
+    public String getApnsCertificate() {
+        return apnsCertificate;
+    }
+
+    public String getApnsKey() {
+        return apnsKey;
+    }
+
+    public String getGcmApiKey() {
+        return gcmApiKey;
+    }
+
+    public String getAwsAccessKey() {
+        return awsAccessKey;
+    }
+
+    public String getAwsSecretKey() {
+        return awsSecretKey;
+    }
+
+    public String getAdmClientId() {
+        return admClientId;
+    }
+
+    public String getAdmClientSecret() {
+        return admClientSecret;
+    }
+
+    public boolean apnsChanged(Credentials other) {
+        return other == null
+                || !same(apnsCertificate, other.apnsCertificate)
+                || !same(apnsKey, other.apnsKey);
+    }
+
+    public boolean gcmChanged(Credentials other) {
+        return other == null || !same(gcmApiKey, other.gcmApiKey);
+    }
+
+    public boolean awsChanged(Credentials other) {
+        return other == null
+                || !same(awsAccessKey, other.awsAccessKey)
+                || !same(awsSecretKey, other.awsSecretKey);
+    }
+
+    public boolean admChanged(Credentials other) {
+        return other == null
+                || !same(admClientId, other.admClientId)
+                || !same(admClientSecret, other.admClientSecret);
+    }
+
+    private static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.config;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.GeneralSecurityException;
+import java.security.spec.KeySpec;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads and decrypts the APNS certificate/key and the secret push settings
+ * (GCM_API_KEY, AES_SALT_BASE64, AES_INIT_VECTOR_BASE64, AWS_ACCESS_KEY,
+ * AWS_SECRET_KEY, ADM_CLIENT_ID and ADM_CLIENT_SECRET), then polls them for
+ * changes.
+ * <p>
+ * The base64-encoded cert/key files are read from GASP_CREDENTIALS_DIR if
+ * that is set, otherwise from the classpath (WEB-INF/classes). A secret
+ * setting is read from the file of the same name in GASP_CREDENTIALS_DIR
+ * if there is one, otherwise from its system property or environment
+ * variable, which cannot change while the server runs: only settings in
+ * files can be rotated. When any input changes, the files are decrypted
+ * again and the new snapshot is swapped in atomically before listeners are
+ * told: a fan-out already in progress keeps running against the snapshot
+ * it started with.
+ * <p>
+ * The APNS, GCM, AWS and ADM credentials are loaded separately. If the
+ * cert/key files are missing or do not decrypt, the current APNS pair is
+ * kept and the other settings are still swapped in: a half-copied
+ * certificate file never replaces a working pair, and does not hold up an
+ * unrelated rotation. The cert/key files are encrypted with GCM_API_KEY,
+ * so a new GCM_API_KEY is used for GCM at once, and for APNS once the
+ * cert/key files encrypted with it are in place too.
+ */
+public class CredentialsProvider {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CredentialsProvider.class.getName());
+
+    // APN base64-encoded cert/key files
+    private static final String apnsCertBase64Filename = "gasp-cert.b64";
+    private static final String apnsKeyBase64Filename = "gasp-key.b64";
+
+    private final AtomicReference<Credentials> credentials = new AtomicReference<Credentials>();
+    private final List<CredentialsListener> listeners = new CopyOnWriteArrayList<CredentialsListener>();
+    private final String credentialsDir = Config.get("GASP_CREDENTIALS_DIR");
+    private final long pollSeconds = Config.getLong("CREDENTIALS_POLL_SECONDS", 60);
+
+    private ScheduledExecutorService watcher;
+    private String fingerprint;
+    // The inputs the APNS pair was last decrypted from
+    private String apnsFingerprint;
+
+    public Credentials getCredentials() {
+        return credentials.get();
+    }
+
+    public void addListener(CredentialsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CredentialsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Loads the credentials and starts watching for changes.
+     */
+    public synchronized void start() {
+        reload();
+
+        if (watcher == null && pollSeconds > 0) {
+            watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "gasp-credentials-watcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            watcher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reload();
+                    }
+                    catch (Exception e) {
+                        LOGGER.error("Credentials reload failed: " + e.getMessage());
+                    }
+                }
+            }, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+            LOGGER.info("Watching credentials every " + pollSeconds + "s"
+                    + (credentialsDir != null ? " in " + credentialsDir : " on classpath"));
+        }
+    }
+
+    public synchronized void stop() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Re-reads all inputs and swaps in a new snapshot if any of them changed.
+     *
+     * @return true if the credentials were replaced
+     */
+    public synchronized boolean reload() {
+        String gcmApiKey = getSetting("GCM_API_KEY");
+        String aesSaltBase64 = getSetting("AES_SALT_BASE64");
+        String aesInitVectorBase64 = getSetting("AES_INIT_VECTOR_BASE64");
+        String awsAccessKey = getSetting("AWS_ACCESS_KEY");
+        String awsSecretKey = getSetting("AWS_SECRET_KEY");
+        String admClientId = getSetting("ADM_CLIENT_ID");
+        String admClientSecret = getSetting("ADM_CLIENT_SECRET");
+        String apnsCertBase64 = readBase64(apnsCertBase64Filename);
+        String apnsKeyBase64 = readBase64(apnsKeyBase64Filename);
+
+        String current = gcmApiKey + '\n' + aesSaltBase64 + '\n' + aesInitVectorBase64 + '\n'
+                + awsAccessKey + '\n' + awsSecretKey + '\n' + admClientId + '\n' + admClientSecret + '\n'
+                + apnsCertBase64 + '\n' + apnsKeyBase64;
+        if (current.equals(fingerprint)) {
+            return false;
+        }
+
+        fingerprint = current;
+
+        Credentials previous = credentials.get();
+        String apnsCertificate = previous == null ? "" : previous.getApnsCertificate();
+        String apnsKey = previous == null ? "" : previous.getApnsKey();
+        String apnsInputs = gcmApiKey + '\n' + aesSaltBase64 + '\n' + aesInitVectorBase64 + '\n'
+                + apnsCertBase64 + '\n' + apnsKeyBase64;
+        if (previous == null || !apnsInputs.equals(apnsFingerprint)) {
+            apnsFingerprint = apnsInputs;
+            if (apnsCertBase64.length() > 0 && apnsKeyBase64.length() > 0) {
+                try {
+                    byte[] salt = Base64.decodeBase64(aesSaltBase64.getBytes());
+                    byte[] iv = Base64.decodeBase64(aesInitVectorBase64.getBytes());
+                    apnsCertificate = decryptFromBase64(gcmApiKey.toCharArray(), salt, iv, apnsCertBase64);
+                    apnsKey = decryptFromBase64(gcmApiKey.toCharArray(), salt, iv, apnsKeyBase64);
+                }
+                catch (GeneralSecurityException e) {
+                    LOGGER.error("Decryption error: " + e.getMessage()
+                            + (previous != null ? ": keeping the current APNS certificate/key" : ""));
+                    // Keep a working pair rather than swapping in a broken one
+                    apnsCertificate = previous == null ? "" : previous.getApnsCertificate();
+                    apnsKey = previous == null ? "" : previous.getApnsKey();
+                }
+            }
+            else {
+                LOGGER.error("APNS certificate/key not found"
+                        + (previous != null ? ": keeping the current APNS certificate/key" : ""));
+            }
+        }
+
+        Credentials next = new Credentials(apnsCertificate, apnsKey, gcmApiKey, awsAccessKey, awsSecretKey,
+                                           admClientId, admClientSecret);
+        if (previous != null && !next.apnsChanged(previous) && !next.gcmChanged(previous)
+                && !next.awsChanged(previous) && !next.admChanged(previous)) {
+            return false;
+        }
+        credentials.set(next);
+
+        if (previous != null) {
+            LOGGER.info("Credentials changed:"
+                    + (next.apnsChanged(previous) ? " APNS" : "")
+                    + (next.gcmChanged(previous) ? " GCM" : "")
+                    + (next.awsChanged(previous) ? " AWS" : "")
+                    + (next.admChanged(previous) ? " ADM" : ""));
+        }
+        for (CredentialsListener listener : listeners) {
+            try {
+                listener.credentialsChanged(previous, next);
+            }
+            catch (Exception e) {
+                LOGGER.error("Credentials listener failed: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets a secret setting: the first line of its file in
+     * GASP_CREDENTIALS_DIR, or its system property or environment variable,
+     * or "" if it is not set.
+     */
+    public String getSetting(String key) {
+        if (credentialsDir != null && new File(credentialsDir, key).isFile()) {
+            return readLine(key);
+        }
+        return Config.get(key, "");
+    }
+
+    private String readBase64(String filename) {
+        if (credentialsDir != null && !new File(credentialsDir, filename).isFile()) return "";
+        return readLine(filename);
+    }
+
+    // The first line of a file in GASP_CREDENTIALS_DIR, or on the classpath
+    private String readLine(String filename) {
+        InputStream is = null;
+
+        try {
+            if (credentialsDir != null) {
+                is = new FileInputStream(new File(credentialsDir, filename));
+            }
+            else {
+                URL url = this.getClass().getClassLoader().getResource(filename);
+                if (url == null) return "";
+                // Bypass the URL cache so that an updated file is seen
+                URLConnection connection = url.openConnection();
+                connection.setUseCaches(false);
+                is = connection.getInputStream();
+            }
+            String readString = new BufferedReader(new InputStreamReader(is, "US-ASCII")).readLine();
+            return readString == null ? "" : readString.trim();
+        }
+        catch (IOException e) {
+            LOGGER.error("Cannot read " + filename + ": " + e.getMessage());
+            return "";
+        }
+        finally {
+            try {
+                if (is != null) is.close();
+            }
+            catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    private String decryptFromBase64(char[] key, byte[] salt, byte[] iv, String ciphertext)
+            throws GeneralSecurityException {
+        // javax.crypto parameters
+        final String secretKeyFactoryAlgorithm = "PBKDF2WithHmacSHA1";
+        final String secretKeyAlgorithm = "AES";
+        final String cipherAlgorithm = "AES/CBC/PKCS5Padding";
+        final int pbeKeySpecIterations= 65536;
+        final int pbeKeySpecKeyLength = 128;
+
+        /* Derive the key, given password and salt. */
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(secretKeyFactoryAlgorithm);
+        KeySpec spec = new PBEKeySpec(key, salt, pbeKeySpecIterations, pbeKeySpecKeyLength);
+        SecretKey tmp = factory.generateSecret(spec);
+        SecretKey secret = new SecretKeySpec(tmp.getEncoded(), secretKeyAlgorithm);
+
+        /* Decrypt the message, given derived key and initialization vector. */
+        Cipher cipher = Cipher.getInstance(cipherAlgorithm);
+        cipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(iv));
+        byte[] plaintext = cipher.doFinal(Base64.decodeBase64(ciphertext.getBytes()));
+
+        // Log Decryption algorithms
+        LOGGER.debug("SecretKeyFactory: " + factory.getAlgorithm());
+        LOGGER.debug("Secret: " + secret.getAlgorithm());
+        LOGGER.debug("Cipher: " + cipher.getAlgorithm());
+
+        return new String(plaintext);
+    }
+}
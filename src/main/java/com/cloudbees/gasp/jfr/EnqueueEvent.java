@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Queueing a delivery job for the dispatcher.
+ */
+@Name("com.cloudbees.gasp.Enqueue")
+@Label("Job Enqueue")
+@Category({"Gasp", "Sync"})
+@StackTrace(false)
+public class EnqueueEvent extends jdk.jfr.Event {
+    @Label("Entity Type")
+    public String entityType;
+
+    @Label("Entity Id")
+    public int entityId;
+
+    @Label("Job Id")
+    public long jobId;
+
+    @Label("Queue Depth")
+    public int queueDepth;
+}
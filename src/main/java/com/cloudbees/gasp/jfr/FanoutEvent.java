@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A delivery job's send to every registered device of one platform.
+ */
+@Name("com.cloudbees.gasp.Fanout")
+@Label("Platform Fan-out")
+@Category({"Gasp", "Push"})
+@StackTrace(false)
+public class FanoutEvent extends jdk.jfr.Event {
+    @Label("Entity Type")
+    public String entityType;
+
+    @Label("Entity Id")
+    public int entityId;
+
+    @Label("Job Id")
+    public long jobId;
+
+    @Label("Platform")
+    public String platform;
+
+    @Label("Transport")
+    public String transport;
+
+    @Label("Targets")
+    public int targets;
+
+    @Label("Sent")
+    public int sent;
+
+    @Label("Failed")
+    public int failed;
+}
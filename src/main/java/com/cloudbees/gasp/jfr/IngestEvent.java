@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A sync request, from receipt to response: admission, parse, de-duplication,
+ * render and enqueue.
+ */
+@Name("com.cloudbees.gasp.Ingest")
+@Label("Sync Ingest")
+@Category({"Gasp", "Sync"})
+@Description("Sync request handled by DataSyncService")
+@StackTrace(false)
+public class IngestEvent extends jdk.jfr.Event {
+    @Label("Entity Type")
+    public String entityType;
+
+    @Label("Entity Id")
+    public int entityId;
+
+    @Label("Request Bytes")
+    public int bytes;
+
+    @Label("Status")
+    public int status;
+
+    @Label("Job Id")
+    public long jobId;
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A registry mutation or snapshot. The duration includes waiting for the
+ * registry lock, so contention with a fan-out shows up here.
+ */
+@Name("com.cloudbees.gasp.Registry")
+@Label("Registry Operation")
+@Category({"Gasp", "Registry"})
+@StackTrace(false)
+public class RegistryEvent extends jdk.jfr.Event {
+    @Label("Registry")
+    public String registry;
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Slot")
+    public int slot;
+
+    @Label("Devices")
+    public int devices;
+}
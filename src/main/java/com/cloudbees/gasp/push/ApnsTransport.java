@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.config.Config;
+import com.cloudbees.gasp.config.Credentials;
+import com.cloudbees.gasp.config.CredentialsListener;
+import com.cloudbees.gasp.config.CredentialsProvider;
+import com.cloudbees.gasp.jfr.PublishEvent;
+import com.cloudbees.gasp.services.APNDataStore;
+import com.cloudbees.gasp.services.SNSMobile;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Native APNs delivery, bypassing SNS: each notification is a request to
+ * the APNs provider API (POST /3/device/[token]) over HTTP/2, authenticated
+ * with the certificate/key that PushServlet already decrypts.
+ * <p>
+ * The transport keeps a small pool of HTTP clients, each holding one
+ * HTTP/2 connection on which many requests are multiplexed; requests are
+ * made concurrently on virtual threads (see Fanout). A device that APNs
+ * reports as no longer valid (BadDeviceToken, or 410 Unregistered) is
+ * removed from the registry.
+ * <p>
+ * Settings:
+ * APNS_HOST / APNS_PORT override the provider API (e.g. to use
+ * MockApnsServer), APNS_TLS=false connects in plain text (mock server only),
+ * APNS_CONNECTIONS sets the pool size, APNS_CONCURRENCY the requests in
+ * flight, APNS_TOPIC the apns-topic (the app's bundle id, needed when the
+ * certificate covers several topics), APNS_PUSH_TYPE the apns-push-type
+ * (default alert) and APNS_EXPIRY_SECONDS how long APNs should keep trying
+ * an offline device.
+ */
+public class ApnsTransport implements PushTransport, CredentialsListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ApnsTransport.class.getName());
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private final SNSMobile.Platform platform;
+    private final CredentialsProvider credentialsProvider;
+    private final String baseUrl;
+    private final boolean tls;
+    private final String topic = Config.get("APNS_TOPIC");
+    private final String pushType = Config.get("APNS_PUSH_TYPE", "alert");
+    private final int expirySeconds = Config.getInt("APNS_EXPIRY_SECONDS", 86400);
+
+    private final HttpClient[] pool;
+    private final Fanout fanout;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+
+    /**
+     * The body of an APNs error response: see the APNs provider API
+     * reference.
+     */
+    static class ApnsError {
+        String reason;
+    }
+
+    public ApnsTransport(SNSMobile.Platform platform, CredentialsProvider credentialsProvider) {
+        this.platform = platform;
+        this.credentialsProvider = credentialsProvider;
+        this.tls = Config.getBoolean("APNS_TLS", true);
+        String host = Config.get("APNS_HOST", platform == SNSMobile.Platform.APNS
+                ? "api.push.apple.com"
+                : "api.sandbox.push.apple.com");
+        int port = Config.getInt("APNS_PORT", 443);
+        this.baseUrl = (tls ? "https://" : "http://") + host + ":" + port + "/3/device/";
+        this.pool = new HttpClient[Math.max(1, Config.getInt("APNS_CONNECTIONS", 4))];
+        this.fanout = new Fanout("gasp-apns-" + platform.name().toLowerCase(),
+                                 Config.getInt("APNS_CONCURRENCY", 1000));
+
+        credentialsProvider.addListener(this);
+        LOGGER.info("APNs provider API: " + host + ":" + port + " (" + pool.length + " connections, "
+                + fanout.getMaxInFlight() + " requests in flight)");
+    }
+
+    @Override
+    public String getName() {
+        return "apns";
+    }
+
+    @Override
+    public void send(SNSMobile.Platform platform, List<Registration> targets, Payload payload,
+                     DeliveryListener listener) {
+        String expiry = String.valueOf(System.currentTimeMillis() / 1000 + expirySeconds);
+
+        int started = fanout.forEach(targets, target -> push(platform, target, payload, expiry, listener),
+                                     listener::isCancelled);
+        if (started < targets.size() && listener.isCancelled()) {
+            listener.stopped(platform, targets.get(started));
+        }
+    }
+
+    @Override
+    public void close() {
+        credentialsProvider.removeListener(this);
+        closeConnections();
+    }
+
+    /**
+     * Drops the pooled connections after a certificate rotation: the next
+     * send reconnects with the new key, and requests already made on an old
+     * connection are allowed to finish.
+     */
+    @Override
+    public void credentialsChanged(Credentials previous, Credentials current) {
+        if (previous != null && current.apnsChanged(previous)) {
+            closeConnections();
+            LOGGER.info("APNs connections recycled for new certificate");
+        }
+    }
+
+    private void push(SNSMobile.Platform platform, Registration target, Payload payload, String expiry,
+                      DeliveryListener listener) {
+        String token = normalizeToken(target.getToken());
+        if (token == null) {
+            LOGGER.error("Invalid APN device token: " + target.getToken());
+            listener.failed(platform, target, "InvalidToken");
+            return;
+        }
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + token))
+                .timeout(Duration.ofMillis(READ_TIMEOUT))
+                .header("apns-expiration", expiry)
+                .header("apns-priority", "10")
+                .header("apns-push-type", pushType)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(payload.forTarget(target).getBytes()));
+        if (topic != null) request.header("apns-topic", topic);
+
+        PublishEvent event = new PublishEvent();
+        String errorCode = null;
+        event.begin();
+        try {
+            HttpResponse<String> response = connection().send(request.build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() == 200) {
+                listener.sent(platform, target);
+                return;
+            }
+            errorCode = reason(response);
+            LOGGER.error("APNs rejected " + target.getToken() + ": HTTP " + response.statusCode() + " " + errorCode);
+            if (response.statusCode() == 410 || "BadDeviceToken".equals(errorCode)) {
+                APNDataStore.unregisterArn(platform, target.getToken());
+            }
+            listener.failed(platform, target, errorCode);
+        }
+        catch (IOException e) {
+            errorCode = "ConnectionError";
+            LOGGER.error("Failed to send update to APN device token: " + target.getToken() + ": " + e.getMessage());
+            listener.failed(platform, target, errorCode);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errorCode = "Interrupted";
+            listener.failed(platform, target, errorCode);
+        }
+        finally {
+            PushEvents.commitPublish(event, platform, target.getToken(), 1, errorCode, listener);
+        }
+    }
+
+    // The reason in an error response, or the HTTP status if there is none
+    private static String reason(HttpResponse<String> response) {
+        try {
+            ApnsError error = new Gson().fromJson(response.body(), ApnsError.class);
+            if (error != null && error.reason != null) return error.reason;
+        }
+        catch (JsonParseException e) {
+            LOGGER.debug("Unreadable APNs error response: " + response.body());
+        }
+        return "Status" + response.statusCode();
+    }
+
+    private HttpClient connection() throws IOException {
+        // Masking keeps the index positive after the counter wraps
+        int index = (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % pool.length;
+        synchronized (pool) {
+            HttpClient client = pool[index];
+            if (client == null) {
+                client = createClient();
+                pool[index] = client;
+                LOGGER.debug("Opened APNs connection " + index + " to " + baseUrl);
+            }
+            return client;
+        }
+    }
+
+    private HttpClient createClient() throws IOException {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT));
+        if (tls) {
+            Credentials credentials = credentialsProvider.getCredentials();
+            try {
+                builder.sslContext(PemKeys.createSSLContext(credentials.getApnsCertificate(),
+                                                            credentials.getApnsKey()));
+            }
+            catch (GeneralSecurityException e) {
+                throw new IOException("Cannot load APNS certificate: " + e.getMessage());
+            }
+        }
+        return builder.build();
+    }
+
+    private void closeConnections() {
+        synchronized (pool) {
+            for (int i = 0; i < pool.length; i++) {
+                // Requests in progress complete before the connection closes
+                if (pool[i] != null) pool[i].shutdown();
+                pool[i] = null;
+            }
+        }
+    }
+
+    /**
+     * The token as sent in the request path: hex digits, without the spaces
+     * and angle brackets of its NSData description, or null if it is not
+     * hex. Tokens are not a fixed length.
+     */
+    static String normalizeToken(String token) {
+        if (token == null) return null;
+
+        String hex = token.replace(" ", "").replace("<", "").replace(">", "");
+        if (hex.isEmpty()) return null;
+        for (int i = 0; i < hex.length(); i++) {
+            if (Character.digit(hex.charAt(i), 16) < 0) return null;
+        }
+        return hex.toLowerCase();
+    }
+}
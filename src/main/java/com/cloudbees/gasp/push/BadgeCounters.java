@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-device badge counts, indexed by EndpointRegistry slot.
+ * <p>
+ * A device's count is the number of pushes sent to it since it last reset
+ * its badge. The fan-out reserves the badges of each slice of targets in
+ * bulk before handing it to the transport, so two jobs sending to the same
+ * device at once carry different badges. Badges a slice did not deliver
+ * (failed sends, devices a superseded or stopped job never reached) are
+ * given back, unless a later push has already reserved the device's next
+ * badge. Counts are kept in fixed-size pages of AtomicLongArray, allocated
+ * as the registry grows.
+ */
+public class BadgeCounters {
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+    /**
+     * Gets the badge the next push to a device would carry, without
+     * reserving it (as for a dry run).
+     */
+    public long next(int slot) {
+        return page(slot).get(slot & PAGE_MASK) + 1;
+    }
+
+    /**
+     * Reserves the next badge of each target, in slot order.
+     */
+    public Reservation reserve(List<Registration> targets) {
+        int[] slots = new int[targets.size()];
+        long[] badges = new long[targets.size()];
+        int count = 0;
+        for (Registration target : targets) {
+            int slot = target.getSlot();
+            if (slot < 0) continue;
+            slots[count] = slot;
+            badges[count] = page(slot).incrementAndGet(slot & PAGE_MASK);
+            count++;
+        }
+        return new Reservation(this, Arrays.copyOf(slots, count), Arrays.copyOf(badges, count));
+    }
+
+    /**
+     * Gets the current badge count for a device.
+     */
+    public long get(int slot) {
+        return page(slot).get(slot & PAGE_MASK);
+    }
+
+    /**
+     * Clears a device's badge, e.g. when the user has opened the app or a
+     * slot is given to a new device.
+     */
+    public void reset(int slot) {
+        page(slot).set(slot & PAGE_MASK, 0);
+    }
+
+    // Takes back a badge, if it is still the device's latest
+    private boolean giveBack(int slot, long badge) {
+        return page(slot).compareAndSet(slot & PAGE_MASK, badge, badge - 1);
+    }
+
+    private AtomicLongArray page(int slot) {
+        int index = slot >>> PAGE_BITS;
+        AtomicLongArray[] current = pages;
+        if (index < current.length) {
+            return current[index];
+        }
+        return grow(index);
+    }
+
+    private synchronized AtomicLongArray grow(int index) {
+        AtomicLongArray[] current = pages;
+        if (index >= current.length) {
+            AtomicLongArray[] grown = new AtomicLongArray[index + 1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            for (int i = current.length; i < grown.length; i++) {
+                grown[i] = new AtomicLongArray(PAGE_SIZE);
+            }
+            pages = grown;
+            current = grown;
+        }
+        return current[index];
+    }
+
+    /**
+     * The badges reserved for a slice of targets. Each badge is marked used
+     * when a payload is rendered with it, and unmarked if the send fails;
+     * release gives back the ones left unused.
+     */
+    public static final class Reservation {
+        private final BadgeCounters counters;
+        private final int[] slots;
+        private final long[] badges;
+        private final AtomicIntegerArray used;
+
+        private Reservation(BadgeCounters counters, int[] slots, long[] badges) {
+            this.counters = counters;
+            this.slots = slots;
+            this.badges = badges;
+            this.used = new AtomicIntegerArray(slots.length);
+        }
+
+        /**
+         * Gets the badge reserved for a device, marking it used. A device
+         * that was not in the slice gets its next badge unreserved.
+         */
+        public long use(int slot) {
+            int index = Arrays.binarySearch(slots, slot);
+            if (index < 0) return counters.next(slot);
+            used.set(index, 1);
+            return badges[index];
+        }
+
+        /**
+         * Records that the push to a device was not delivered.
+         */
+        public void failed(int slot) {
+            int index = Arrays.binarySearch(slots, slot);
+            if (index >= 0) used.set(index, 0);
+        }
+
+        /**
+         * Gives back the badges that were not used.
+         *
+         * @return the number given back
+         */
+        public int release() {
+            int released = 0;
+            for (int i = 0; i < slots.length; i++) {
+                if (used.get(i) == 0 && counters.giveBack(slots[i], badges[i])) released++;
+            }
+            return released;
+        }
+
+        public int size() {
+            return slots.length;
+        }
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+import com.google.gson.JsonObject;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * One sync event's broadcast and its outcome: per-platform counts of
+ * targeted, sent and failed devices, timings, and a sample of error codes.
+ * <p>
+ * Counters are updated by the transports while the job runs, so the job
+ * can be queried (via JobService) at any time.
+ * <p>
+ * A job can be superseded by a newer job for the same entity (see
+ * Supersession): it stops at the next device of each platform send, and
+ * the newer job's send starts from the slot where it stopped.
+ * <p>
+ * A dry-run job goes through the whole pipeline but sends nothing: its
+ * JSON carries a DryRunReport instead.
+ */
+public class DeliveryJob implements DeliveryListener {
+    private static final int MAX_ERROR_CODES = 8;
+
+    public static enum State {
+        QUEUED, SCHEDULED, RUNNING, DONE, FAILED, SUPERSEDED
+    }
+
+    // Counter index: platform.ordinal() * COUNTERS + counter
+    private static final int TARGETS = 0;
+    private static final int SENT = 1;
+    private static final int FAILED = 2;
+    private static final int COUNTERS = 3;
+
+    // Platform send phases
+    private static final int NOT_STARTED = 0;
+    private static final int RUNNING = 1;
+    private static final int FINISHED = 2;
+
+    // Cursor of a platform send that was not stopped early
+    private static final int COMPLETED = Integer.MAX_VALUE;
+
+    private final long id;
+    private final String type;
+    private final int entityId;
+    private final Map<SNSMobile.Platform, Payload> payloads;
+    private final long createdAt = System.currentTimeMillis();
+    private final AtomicIntegerArray counters
+            = new AtomicIntegerArray(SNSMobile.Platform.values().length * COUNTERS);
+    private final AtomicLongArray scheduledAt = new AtomicLongArray(SNSMobile.Platform.values().length);
+    // Per platform: the badge counts a delivered push is counted in, if any
+    // Per platform: the badges reserved for the slice being sent
+    private final AtomicReferenceArray<BadgeCounters.Reservation> badges
+            = new AtomicReferenceArray<BadgeCounters.Reservation>(SNSMobile.Platform.values().length);
+    // Platform sends not yet finished: the job is done when this reaches 0
+    private final AtomicInteger pending;
+    private final Map<String, Integer> errorCodes = new LinkedHashMap<String, Integer>();
+    private final AtomicIntegerArray phases = new AtomicIntegerArray(SNSMobile.Platform.values().length);
+    // Per platform: the slot the send stopped before, if superseded
+    private final AtomicIntegerArray cursors = new AtomicIntegerArray(SNSMobile.Platform.values().length);
+    private final AtomicIntegerArray resumedFrom = new AtomicIntegerArray(SNSMobile.Platform.values().length);
+    // Per platform: the slot the current send started from, where a newer job takes over if it fails
+    private final AtomicIntegerArray sendFrom = new AtomicIntegerArray(SNSMobile.Platform.values().length);
+    // Per platform: the slot a deferred send continues from, or -1
+    private final AtomicIntegerArray deferredFrom = new AtomicIntegerArray(SNSMobile.Platform.values().length);
+    // Per platform: the superseded job whose send this job's send continues
+    private final AtomicReferenceArray<DeliveryJob> predecessors
+            = new AtomicReferenceArray<DeliveryJob>(SNSMobile.Platform.values().length);
+    // Per platform: region -> the slot before which every device in it was reached (see DeliveryListener.reached)
+    private final Map<SNSMobile.Platform, Map<String, Integer>> reached
+            = new EnumMap<SNSMobile.Platform, Map<String, Integer>>(SNSMobile.Platform.class);
+    // Per platform: the newer job whose send waits for this job's send to finish
+    private final AtomicReferenceArray<DeliveryJob> successors
+            = new AtomicReferenceArray<DeliveryJob>(SNSMobile.Platform.values().length);
+
+    private volatile State state = State.QUEUED;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error;
+    private volatile long supersededBy;
+    private volatile long supersedes;
+    private volatile boolean highPriority;
+    private volatile boolean dryRun;
+    // Stage timings, for the dry-run report
+    private volatile long renderNanos;
+    private final AtomicLongArray audienceNanos = new AtomicLongArray(SNSMobile.Platform.values().length);
+    private final AtomicLongArray sendNanos = new AtomicLongArray(SNSMobile.Platform.values().length);
+    // Per platform: the pushes per second each limit on delivery allows, measured when a dry run's send started
+    private final AtomicReferenceArray<Map<String, Double>> limits
+            = new AtomicReferenceArray<Map<String, Double>>(SNSMobile.Platform.values().length);
+
+    public DeliveryJob(long id, String type, int entityId, Map<SNSMobile.Platform, Payload> payloads) {
+        this.id = id;
+        this.type = type;
+        this.entityId = entityId;
+        this.payloads = new EnumMap<SNSMobile.Platform, Payload>(payloads);
+        this.pending = new AtomicInteger(payloads.size());
+        for (SNSMobile.Platform platform : payloads.keySet()) {
+            cursors.set(platform.ordinal(), COMPLETED);
+            deferredFrom.set(platform.ordinal(), -1);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public int getEntityId() {
+        return entityId;
+    }
+
+    public Map<SNSMobile.Platform, Payload> getPayloads() {
+        return payloads;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getSent(SNSMobile.Platform platform) {
+        return counters.get(index(platform, SENT));
+    }
+
+    public int getFailed(SNSMobile.Platform platform) {
+        return counters.get(index(platform, FAILED));
+    }
+
+    /**
+     * High-priority jobs are sent at once, without pacing (see Pacing).
+     */
+    public boolean isHighPriority() {
+        return highPriority;
+    }
+
+    public void setHighPriority(boolean highPriority) {
+        this.highPriority = highPriority;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    long getStartedAt() {
+        return startedAt;
+    }
+
+    long getFinishedAt() {
+        return finishedAt;
+    }
+
+    int getTargets(SNSMobile.Platform platform) {
+        return counters.get(index(platform, TARGETS));
+    }
+
+    long getRenderNanos() {
+        return renderNanos;
+    }
+
+    /**
+     * Records the time taken to render the job's payloads.
+     */
+    public void setRenderNanos(long renderNanos) {
+        this.renderNanos = renderNanos;
+    }
+
+    long getAudienceNanos(SNSMobile.Platform platform) {
+        return audienceNanos.get(platform.ordinal());
+    }
+
+    long getSendNanos(SNSMobile.Platform platform) {
+        return sendNanos.get(platform.ordinal());
+    }
+
+    /**
+     * Adds the time a platform send took to resolve its audience and to
+     * hand it to the transport.
+     */
+    void timed(SNSMobile.Platform platform, long audience, long send) {
+        audienceNanos.addAndGet(platform.ordinal(), audience);
+        sendNanos.addAndGet(platform.ordinal(), send);
+    }
+
+    Map<String, Double> getLimits(SNSMobile.Platform platform) {
+        Map<String, Double> measured = limits.get(platform.ordinal());
+        return measured == null ? Collections.<String, Double>emptyMap() : measured;
+    }
+
+    /**
+     * Records the limits on a dry run's platform send (see DryRunReport).
+     */
+    void measured(SNSMobile.Platform platform, Map<String, Double> measured) {
+        limits.set(platform.ordinal(), measured);
+    }
+
+    public long getScheduledAt(SNSMobile.Platform platform) {
+        return scheduledAt.get(platform.ordinal());
+    }
+
+    /**
+     * The id of the job that superseded this one, or 0.
+     */
+    public long getSupersededBy() {
+        return supersededBy;
+    }
+
+    /**
+     * Stops this job in favour of a newer one for the same entity: platform
+     * sends not yet started are skipped, running ones stop at their next
+     * device, and the newer job continues each from where this one stopped.
+     *
+     * @return false if this job had already finished
+     */
+    synchronized boolean supersede(DeliveryJob newer) {
+        if (finishedAt != 0 || supersededBy != 0) return false;
+
+        supersededBy = newer.id;
+        newer.supersedes = id;
+        for (SNSMobile.Platform platform : newer.payloads.keySet()) {
+            int i = platform.ordinal();
+            if (!payloads.containsKey(platform)) continue;
+            if (phases.compareAndSet(i, NOT_STARTED, FINISHED)) {
+                // Never started, so the newer job takes over this job's starting point
+                newer.predecessors.set(i, predecessors.getAndSet(i, null));
+            }
+            else {
+                newer.predecessors.set(i, this);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Marks a platform's send as started.
+     *
+     * @return false if the job was superseded before the send started
+     */
+    boolean startPlatform(SNSMobile.Platform platform) {
+        return phases.compareAndSet(platform.ordinal(), NOT_STARTED, RUNNING);
+    }
+
+    /**
+     * Whether a platform's send was deferred by its transport, to be
+     * continued (see PushDispatcher.resume).
+     */
+    boolean isDeferred(SNSMobile.Platform platform) {
+        return deferredFrom.get(platform.ordinal()) >= 0;
+    }
+
+    /**
+     * The slot a deferred platform send continues from, or -1 if the send
+     * is not deferred.
+     */
+    int getDeferredSlot(SNSMobile.Platform platform) {
+        return deferredFrom.get(platform.ordinal());
+    }
+
+    /**
+     * Restores a platform send deferred before a restart (see
+     * DeliveryScheduler), to be continued from the given slot.
+     */
+    void restoreDeferred(SNSMobile.Platform platform, int slot, long at) {
+        started();
+        phases.set(platform.ordinal(), RUNNING);
+        deferred(platform, new Registration(null, null, slot), at);
+    }
+
+    /**
+     * Whether a platform's send must wait for the send of the job this one
+     * superseded to finish, to continue from where that stopped. If so, the
+     * send is queued again (see PushDispatcher.resume) once it has.
+     */
+    boolean waitsForPredecessor(SNSMobile.Platform platform) {
+        DeliveryJob predecessor = predecessors.get(platform.ordinal());
+        return predecessor != null && predecessor.follow(platform, this);
+    }
+
+    // Hands the platform's send on to the newer job when it finishes, unless it already has
+    private synchronized boolean follow(SNSMobile.Platform platform, DeliveryJob newer) {
+        if (phases.get(platform.ordinal()) == FINISHED) return false;
+        successors.set(platform.ordinal(), newer);
+        return true;
+    }
+
+    /**
+     * The slot a platform's send starts from: where it was deferred, or
+     * where the send of the job this one superseded stopped, or 0. Call once
+     * waitsForPredecessor is false.
+     */
+    int resumeSlot(SNSMobile.Platform platform) {
+        int deferred = deferredFrom.getAndSet(platform.ordinal(), -1);
+        if (deferred >= 0) {
+            cursors.set(platform.ordinal(), COMPLETED);
+            sendFrom.set(platform.ordinal(), deferred);
+            return deferred;
+        }
+        DeliveryJob predecessor = predecessors.getAndSet(platform.ordinal(), null);
+        int slot = predecessor == null ? 0 : predecessor.cursors.get(platform.ordinal());
+        if (predecessor != null && slot != COMPLETED) {
+            for (Map.Entry<String, Integer> region : predecessor.getReached(platform).entrySet()) {
+                reached(platform, region.getKey(), region.getValue());
+            }
+        }
+        resumedFrom.set(platform.ordinal(), slot);
+        sendFrom.set(platform.ordinal(), slot);
+        return slot;
+    }
+
+    /**
+     * Whether a platform's send has recorded where it stopped.
+     */
+    boolean isStopped(SNSMobile.Platform platform) {
+        return cursors.get(platform.ordinal()) != COMPLETED;
+    }
+
+    /**
+     * Records that a platform's send is held back until the given time.
+     */
+    void scheduled(SNSMobile.Platform platform, long at) {
+        scheduledAt.set(platform.ordinal(), at);
+        if (state == State.QUEUED) state = State.SCHEDULED;
+    }
+
+    synchronized void started() {
+        if (startedAt == 0) startedAt = System.currentTimeMillis();
+        if (finishedAt == 0) state = State.RUNNING;
+    }
+
+    void reserved(SNSMobile.Platform platform, BadgeCounters.Reservation reservation) {
+        badges.set(platform.ordinal(), reservation);
+    }
+
+    void targeted(SNSMobile.Platform platform, int count) {
+        counters.addAndGet(index(platform, TARGETS), count);
+    }
+
+    /**
+     * Records that a platform's send has finished (or was skipped), finishing
+     * the job once every platform has.
+     */
+    void platformFinished(SNSMobile.Platform platform) {
+        DeliveryJob successor;
+        boolean done;
+        synchronized (this) {
+            phases.set(platform.ordinal(), FINISHED);
+            successor = successors.getAndSet(platform.ordinal(), null);
+            done = pending.decrementAndGet() == 0;
+            if (done) {
+                finishedAt = System.currentTimeMillis();
+                state = supersededBy != 0 ? State.SUPERSEDED : error == null ? State.DONE : State.FAILED;
+            }
+        }
+        if (successor != null) PushDispatcher.resume(successor, platform);
+        if (done) Supersession.finished(this);
+    }
+
+    /**
+     * Records that a platform's send failed part way: unless the transport
+     * recorded where it stopped, a newer job takes over from where the send
+     * started, as it cannot tell which devices were reached.
+     */
+    void failed(SNSMobile.Platform platform, Exception e) {
+        error = e.getMessage();
+        cursors.compareAndSet(platform.ordinal(), COMPLETED, sendFrom.get(platform.ordinal()));
+    }
+
+    @Override
+    public void sent(SNSMobile.Platform platform, Registration target) {
+        counters.incrementAndGet(index(platform, SENT));
+    }
+
+    @Override
+    public void failed(SNSMobile.Platform platform, Registration target, String errorCode) {
+        counters.incrementAndGet(index(platform, FAILED));
+        countError(errorCode);
+        BadgeCounters.Reservation reservation = badges.get(platform.ordinal());
+        if (reservation != null && target.getSlot() >= 0) reservation.failed(target.getSlot());
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return supersededBy != 0;
+    }
+
+    @Override
+    public void stopped(SNSMobile.Platform platform, Registration next) {
+        cursors.set(platform.ordinal(), next.getSlot());
+    }
+
+    @Override
+    public void deferred(SNSMobile.Platform platform, Registration next, long retryAt) {
+        // Where a newer job takes over if this one is superseded meanwhile
+        cursors.set(platform.ordinal(), next.getSlot());
+        scheduledAt.set(platform.ordinal(), retryAt);
+        deferredFrom.set(platform.ordinal(), next.getSlot());
+    }
+
+    @Override
+    public void reached(SNSMobile.Platform platform, String region, int slot) {
+        synchronized (reached) {
+            reached.computeIfAbsent(platform, p -> new HashMap<String, Integer>()).merge(region, slot, Math::max);
+        }
+    }
+
+    @Override
+    public int reachedBefore(SNSMobile.Platform platform, String region) {
+        synchronized (reached) {
+            Map<String, Integer> regions = reached.get(platform);
+            Integer slot = regions == null ? null : regions.get(region);
+            return slot == null ? 0 : slot;
+        }
+    }
+
+    /**
+     * Per region, the slot before which every device was reached, for the
+     * regions that got further than the platform send's cursor.
+     */
+    Map<String, Integer> getReached(SNSMobile.Platform platform) {
+        synchronized (reached) {
+            Map<String, Integer> regions = reached.get(platform);
+            return regions == null ? Collections.<String, Integer>emptyMap() : new TreeMap<String, Integer>(regions);
+        }
+    }
+
+    private void countError(String errorCode) {
+        String code = errorCode == null ? "Unknown" : errorCode;
+        synchronized (errorCodes) {
+            Integer count = errorCodes.get(code);
+            if (count != null) {
+                errorCodes.put(code, count + 1);
+            }
+            else if (errorCodes.size() < MAX_ERROR_CODES) {
+                errorCodes.put(code, 1);
+            }
+        }
+    }
+
+    private static int index(SNSMobile.Platform platform, int counter) {
+        return platform.ordinal() * COUNTERS + counter;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", id);
+        json.addProperty("entity", type + "/" + entityId);
+        json.addProperty("state", state.name());
+        if (highPriority) json.addProperty("priority", "high");
+        if (dryRun) json.addProperty("dryRun", true);
+        json.addProperty("createdAt", createdAt);
+        if (startedAt > 0) json.addProperty("startedAt", startedAt);
+        JsonObject scheduled = new JsonObject();
+        for (SNSMobile.Platform platform : payloads.keySet()) {
+            long at = scheduledAt.get(platform.ordinal());
+            if (at > 0) scheduled.addProperty(platform.name(), at);
+        }
+        if (scheduled.entrySet().size() > 0) json.add("scheduledAt", scheduled);
+        if (finishedAt > 0) {
+            json.addProperty("finishedAt", finishedAt);
+            if (startedAt > 0) json.addProperty("durationMs", finishedAt - startedAt);
+        }
+        if (error != null) json.addProperty("error", error);
+        if (supersedes != 0) json.addProperty("supersedes", supersedes);
+        if (supersededBy != 0) json.addProperty("supersededBy", supersededBy);
+
+        JsonObject platforms = new JsonObject();
+        for (SNSMobile.Platform platform : payloads.keySet()) {
+            JsonObject counts = new JsonObject();
+            counts.addProperty("targets", counters.get(index(platform, TARGETS)));
+            counts.addProperty("sent", counters.get(index(platform, SENT)));
+            counts.addProperty("failed", counters.get(index(platform, FAILED)));
+            int from = resumedFrom.get(platform.ordinal());
+            if (from > 0) counts.addProperty("fromSlot", from);
+            int cursor = cursors.get(platform.ordinal());
+            if (cursor != COMPLETED) counts.addProperty("stoppedAtSlot", cursor);
+            platforms.add(platform.name(), counts);
+        }
+        json.add("platforms", platforms);
+
+        JsonObject errors = new JsonObject();
+        synchronized (errorCodes) {
+            for (Map.Entry<String, Integer> entry : errorCodes.entrySet()) {
+                errors.addProperty(entry.getKey(), entry.getValue());
+            }
+        }
+        json.add("errors", errors);
+        if (dryRun && finishedAt > 0) json.add("report", DryRunReport.toJson(this));
+        return json;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+
+/**
+ * Told the outcome of each device send by a PushTransport.
+ */
+public interface DeliveryListener {
+
+    void sent(SNSMobile.Platform platform, Registration target);
+
+    void failed(SNSMobile.Platform platform, Registration target, String errorCode);
+
+    /**
+     * Checked by the transport before each send: once true, the transport
+     * sends no more and reports where it stopped.
+     */
+    default boolean isCancelled() {
+        return false;
+    }
+
+    /**
+     * The transport stopped before next, and the targets after it, because
+     * the delivery was cancelled.
+     */
+    default void stopped(SNSMobile.Platform platform, Registration next) {
+    }
+
+    /**
+     * The transport held back next, and the targets after it, until retryAt
+     * (e.g. while the platform's circuit is open), for the send to be
+     * continued then.
+     */
+    default void deferred(SNSMobile.Platform platform, Registration next, long retryAt) {
+    }
+
+    /**
+     * A transport that sends to several regions independently has reached
+     * every device before slot in one region. A send stopped or deferred at
+     * an earlier slot skips those devices when it is continued.
+     */
+    default void reached(SNSMobile.Platform platform, String region, int slot) {
+    }
+
+    /**
+     * The slot before which every device in a region has been reached (see
+     * reached), or 0.
+     */
+    default int reachedBefore(SNSMobile.Platform platform, String region) {
+        return 0;
+    }
+}
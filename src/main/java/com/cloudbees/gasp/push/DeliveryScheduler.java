@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.config.Config;
+import com.cloudbees.gasp.services.PlatformApplication;
+import com.cloudbees.gasp.services.SNSMobile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds back platform sends that have a deliver-at time, or that fall in
+ * the platform audience's quiet hours (see QuietHours), until they are due.
+ * <p>
+ * Pending sends are timers in a TimingWheel, so millions can be pending.
+ * Due sends are released to the PushDispatcher in waves: at most
+ * SCHEDULE_RELEASE_RATE per second (default 20), and none for a platform
+ * application while its dispatcher queue is backed up, so the end of the
+ * quiet hours does not release every deferred broadcast at once. Due sends
+ * are queued per application and released in turn, so one application's
+ * backlog does not hold up another's.
+ * <p>
+ * Pending sends are journaled to SCHEDULE_FILE (default gasp-schedule.log
+ * in java.io.tmpdir), with their rendered payloads, and restored on start:
+ * sends that fell due while the server was down are released first, and
+ * restored jobs are tracked by Supersession again. The journal is
+ * compacted on start. Dry-run jobs are not journaled.
+ * <p>
+ * Sends deferred part way through by their transport (see
+ * DeliveryListener.deferred) are held here too, and continued when due.
+ */
+public final class DeliveryScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeliveryScheduler.class.getName());
+
+    private static final long tickMillis = Math.max(1, Config.getLong("SCHEDULE_TICK_MS", 100));
+    private static final int releaseRate = Math.max(1, Config.getInt("SCHEDULE_RELEASE_RATE", 20));
+    private static final File journalFile = new File(Config.get("SCHEDULE_FILE",
+            new File(System.getProperty("java.io.tmpdir"), "gasp-schedule.log").getPath()));
+
+    /**
+     * A platform send waiting to be released.
+     */
+    private static final class Entry {
+        final long id;
+        final DeliveryJob job;
+        final SNSMobile.Platform platform;
+        // Continue a deferred send rather than start one
+        final boolean resume;
+        TimingWheel.Timer<Entry> timer;
+
+        Entry(long id, DeliveryJob job, SNSMobile.Platform platform, boolean resume) {
+            this.id = id;
+            this.job = job;
+            this.platform = platform;
+            this.resume = resume;
+        }
+    }
+
+    private static final Object lock = new Object();
+    private static final TimingWheel<Entry> wheel = new TimingWheel<Entry>(tickMillis, System.currentTimeMillis());
+    private static final Map<SNSMobile.Platform, ArrayDeque<Entry>> due = createDueQueues();
+    // Pending entries by job id, so that a superseded job's sends can be dropped
+    private static final Map<Long, List<Entry>> byJob = new HashMap<Long, List<Entry>>();
+    private static final Map<SNSMobile.Platform, QuietHours> quietHours = loadQuietHours();
+    private static long lastId;
+    private static Writer journal;
+    private static ScheduledExecutorService ticker;
+    private static double releaseBudget;
+    private static long lastTick;
+
+    private DeliveryScheduler() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Sends a job to each platform now, or schedules it for the later of
+     * deliverAt and the end of the platform's quiet hours.
+     *
+     * @param deliverAt epoch millis, or 0 to deliver as soon as allowed
+     */
+    public static void schedule(DeliveryJob job, long deliverAt) {
+        long now = System.currentTimeMillis();
+        Map<SNSMobile.Platform, Long> later = new EnumMap<SNSMobile.Platform, Long>(SNSMobile.Platform.class);
+        for (SNSMobile.Platform platform : job.getPayloads().keySet()) {
+            long at = quietHours.get(platform).nextAllowed(Math.max(now, deliverAt));
+            // A job superseded already is dispatched now, to be skipped
+            if (at - now >= tickMillis && !job.isCancelled()) later.put(platform, at);
+        }
+
+        if (later.isEmpty()) {
+            PushDispatcher.submit(job);
+            return;
+        }
+        for (SNSMobile.Platform platform : job.getPayloads().keySet()) {
+            Long at = later.get(platform);
+            if (at == null) {
+                PushDispatcher.submit(job, platform);
+            }
+            else {
+                job.scheduled(platform, at);
+                synchronized (lock) {
+                    Entry entry = new Entry(++lastId, job, platform, false);
+                    add(entry, at);
+                }
+                LOGGER.info("Job " + job.getId() + ": " + platform.name() + " send scheduled for "
+                        + Instant.ofEpochMilli(at));
+            }
+        }
+    }
+
+    /**
+     * Holds the rest of a platform send that its transport deferred, and
+     * continues it at the given time.
+     */
+    static void defer(DeliveryJob job, SNSMobile.Platform platform, long at) {
+        synchronized (lock) {
+            add(new Entry(++lastId, job, platform, true), at);
+        }
+        LOGGER.info("Job " + job.getId() + ": " + platform.name() + " send deferred until " + Instant.ofEpochMilli(at));
+        // Superseded while it was being deferred
+        if (job.isCancelled()) cancel(job);
+    }
+
+    /**
+     * Drops a superseded job's pending sends, finishing them.
+     */
+    static void cancel(DeliveryJob job) {
+        List<Entry> entries;
+        synchronized (lock) {
+            entries = byJob.remove(job.getId());
+            if (entries == null) return;
+            for (Entry entry : entries) {
+                if (!wheel.cancel(entry.timer)) due.get(entry.platform).remove(entry);
+                journalRemove(entry);
+            }
+        }
+        for (Entry entry : entries) {
+            job.platformFinished(entry.platform);
+        }
+    }
+
+    /**
+     * Sends waiting for their time, or due and waiting for a release wave.
+     */
+    public static int getPending() {
+        synchronized (lock) {
+            int pending = wheel.size();
+            for (ArrayDeque<Entry> queue : due.values()) {
+                pending += queue.size();
+            }
+            return pending;
+        }
+    }
+
+    /**
+     * Restores the journaled sends and starts releasing them.
+     */
+    public static void start() {
+        synchronized (lock) {
+            if (ticker != null) return;
+
+            restore();
+            lastTick = System.currentTimeMillis();
+            ticker = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("gasp-delivery-scheduler").daemon().factory());
+            ticker.scheduleAtFixedRate(DeliveryScheduler::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+        LOGGER.info("Delivery scheduler started: " + getPending() + " sends pending, quiet hours " + quietHours);
+    }
+
+    public static void stop() {
+        synchronized (lock) {
+            if (ticker != null) {
+                ticker.shutdownNow();
+                ticker = null;
+            }
+            closeJournal();
+        }
+    }
+
+    private static void tick() {
+        try {
+            int released = 0;
+            synchronized (lock) {
+                long now = System.currentTimeMillis();
+                wheel.advance(now, entry -> due.get(entry.platform).add(entry));
+
+                // Refill the release budget, keeping at most one second's worth
+                releaseBudget = Math.min(releaseRate, releaseBudget + releaseRate * (now - lastTick) / 1000.0);
+                lastTick = now;
+
+                // One send per application in turn, skipping applications that are backed up
+                boolean progress = true;
+                while (releaseBudget >= 1 && progress) {
+                    progress = false;
+                    for (Map.Entry<SNSMobile.Platform, ArrayDeque<Entry>> queue : due.entrySet()) {
+                        if (releaseBudget < 1) break;
+                        if (queue.getValue().isEmpty()
+                                || PushDispatcher.getQueueDepth(queue.getKey()) >= releaseRate) continue;
+
+                        release(queue.getValue().poll());
+                        releaseBudget--;
+                        released++;
+                        progress = true;
+                    }
+                }
+                if (journal != null) journal.flush();
+            }
+            if (released > 0) {
+                LOGGER.info("Released " + released + " scheduled sends, " + getPending() + " pending");
+            }
+        }
+        catch (Exception e) {
+            LOGGER.error("Delivery scheduler: " + e.getMessage());
+        }
+    }
+
+    private static void release(Entry entry) {
+        if (entry.resume) {
+            PushDispatcher.resume(entry.job, entry.platform);
+        }
+        else {
+            PushDispatcher.submit(entry.job, entry.platform);
+        }
+        journalRemove(entry);
+        forget(entry);
+    }
+
+    private static void add(Entry entry, long at) {
+        entry.timer = wheel.add(at, entry);
+        byJob.computeIfAbsent(entry.job.getId(), id -> new ArrayList<Entry>(1)).add(entry);
+        journalAdd(entry, at);
+    }
+
+    private static void forget(Entry entry) {
+        List<Entry> entries = byJob.get(entry.job.getId());
+        if (entries != null && entries.remove(entry) && entries.isEmpty()) {
+            byJob.remove(entry.job.getId());
+        }
+    }
+
+    private static Map<SNSMobile.Platform, ArrayDeque<Entry>> createDueQueues() {
+        Map<SNSMobile.Platform, ArrayDeque<Entry>> queues
+                = new EnumMap<SNSMobile.Platform, ArrayDeque<Entry>>(SNSMobile.Platform.class);
+        for (SNSMobile.Platform platform : SNSMobile.Platform.values()) {
+            queues.put(platform, new ArrayDeque<Entry>());
+        }
+        return queues;
+    }
+
+    private static Map<SNSMobile.Platform, QuietHours> loadQuietHours() {
+        Map<SNSMobile.Platform, QuietHours> rules = new EnumMap<SNSMobile.Platform, QuietHours>(SNSMobile.Platform.class);
+        for (SNSMobile.Platform platform : SNSMobile.Platform.values()) {
+            rules.put(platform, QuietHours.forPlatform(platform));
+        }
+        return rules;
+    }
+
+    /*
+     * Journal format, one line per change:
+     * A [id] [releaseAt] [platform] [type] [entityId] [high|normal] [resume slot|-] [badge offsets|-] [base64 payload]
+     * D [id]
+     * A deferred send is journaled with the slot it continues from, followed
+     * by /[region]:[slot],... for regions that got further (see
+     * DeliveryListener.reached).
+     */
+
+    private static void journalAdd(Entry entry, long at) {
+        // A dry run is not worth rehearsing again after a restart
+        if (journal == null || entry.job.isDryRun()) return;
+
+        Payload payload = entry.job.getPayloads().get(entry.platform);
+        StringBuilder offsets = new StringBuilder();
+        int[] badgeOffsets = payload.getBadgeOffsets();
+        if (badgeOffsets == null) {
+            offsets.append('-');
+        }
+        else {
+            for (int i = 0; i < badgeOffsets.length; i++) {
+                if (i > 0) offsets.append(',');
+                offsets.append(badgeOffsets[i]);
+            }
+        }
+        write("A " + entry.id + " " + at + " " + entry.platform.name() + " " + entry.job.getType() + " "
+                + entry.job.getEntityId() + " " + (entry.job.isHighPriority() ? "high" : "normal") + " "
+                + (entry.resume ? resumeSlot(entry.job, entry.platform) : "-") + " "
+                + offsets + " " + Base64.getEncoder().encodeToString(payload.getBytes()));
+    }
+
+    private static String resumeSlot(DeliveryJob job, SNSMobile.Platform platform) {
+        StringBuilder slot = new StringBuilder().append(job.getDeferredSlot(platform));
+        char separator = '/';
+        for (Map.Entry<String, Integer> region : job.getReached(platform).entrySet()) {
+            slot.append(separator).append(region.getKey()).append(':').append(region.getValue());
+            separator = ',';
+        }
+        return slot.toString();
+    }
+
+    private static void journalRemove(Entry entry) {
+        if (journal != null && !entry.job.isDryRun()) write("D " + entry.id);
+    }
+
+    private static void write(String line) {
+        try {
+            journal.write(line);
+            journal.write('\n');
+        }
+        catch (IOException e) {
+            LOGGER.error("Cannot write " + journalFile + ", scheduled sends will not survive a restart: "
+                    + e.getMessage());
+            closeJournal();
+        }
+    }
+
+    private static void closeJournal() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        }
+        catch (IOException e) {
+            LOGGER.debug("Close " + journalFile + ": " + e.getMessage());
+        }
+        journal = null;
+    }
+
+    /**
+     * A journaled send, as read back.
+     */
+    private static final class Journaled {
+        final long id;
+        final long at;
+        final SNSMobile.Platform platform;
+        final String type;
+        final int entityId;
+        final boolean highPriority;
+        // The slot a deferred send continues from, or -1
+        final int resumeSlot;
+        final Map<String, Integer> reached = new LinkedHashMap<String, Integer>();
+        final Payload payload;
+
+        /**
+         * @throws IllegalArgumentException if the line is not a whole A record
+         */
+        Journaled(String[] fields) {
+            if (fields.length != 10) throw new IllegalArgumentException("expected 10 fields, not " + fields.length);
+            id = Long.parseLong(fields[1]);
+            at = Long.parseLong(fields[2]);
+            platform = SNSMobile.Platform.valueOf(fields[3]);
+            type = fields[4];
+            entityId = Integer.parseInt(fields[5]);
+            highPriority = fields[6].equals("high");
+            String[] resume = fields[7].split("/", 2);
+            resumeSlot = resume[0].equals("-") ? -1 : Integer.parseInt(resume[0]);
+            if (resume.length > 1) {
+                for (String region : resume[1].split(",")) {
+                    int colon = region.lastIndexOf(':');
+                    if (colon < 0) throw new IllegalArgumentException("bad region cursor " + region);
+                    reached.put(region.substring(0, colon), Integer.parseInt(region.substring(colon + 1)));
+                }
+            }
+            int[] badgeOffsets = null;
+            if (!fields[8].equals("-")) {
+                String[] offsets = fields[8].split(",");
+                badgeOffsets = new int[offsets.length];
+                for (int i = 0; i < offsets.length; i++) {
+                    badgeOffsets[i] = Integer.parseInt(offsets[i]);
+                }
+            }
+            payload = new Payload(Base64.getDecoder().decode(fields[9]), badgeOffsets);
+        }
+    }
+
+    /**
+     * Reads the journal, re-creates the pending sends and rewrites the
+     * journal with just those. Lines that cannot be read, such as a partly
+     * written last line after a crash, are skipped.
+     */
+    private static void restore() {
+        Map<Long, Journaled> pending = new LinkedHashMap<Long, Journaled>();
+        if (journalFile.isFile()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(journalFile), StandardCharsets.US_ASCII))) {
+                String line;
+                int number = 0;
+                while ((line = reader.readLine()) != null) {
+                    number++;
+                    String[] fields = line.split(" ");
+                    try {
+                        if (fields[0].equals("A")) {
+                            Journaled send = new Journaled(fields);
+                            pending.put(send.id, send);
+                        }
+                        else if (fields[0].equals("D") && fields.length == 2) {
+                            pending.remove(Long.parseLong(fields[1]));
+                        }
+                        else {
+                            throw new IllegalArgumentException("unknown record");
+                        }
+                    }
+                    catch (IllegalArgumentException e) {
+                        LOGGER.error("Skipping line " + number + " of " + journalFile + ": " + e.getMessage());
+                    }
+                }
+            }
+            catch (IOException e) {
+                LOGGER.error("Reading " + journalFile + ": " + e.getMessage());
+            }
+        }
+
+        // A job's send to each platform is journaled on its own line: they are restored as one job again
+        Map<String, List<Journaled>> byEntity = new LinkedHashMap<String, List<Journaled>>();
+        for (Journaled send : pending.values()) {
+            if (!PlatformApplication.isEnabled(send.platform)) {
+                LOGGER.error("Dropping scheduled send " + send.id + ": " + send.platform.name() + " is not in PLATFORMS");
+                continue;
+            }
+            byEntity.computeIfAbsent(send.type + "/" + send.entityId, key -> new ArrayList<Journaled>()).add(send);
+        }
+
+        File compacted = new File(journalFile.getPath() + ".tmp");
+        try {
+            journal = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(compacted), StandardCharsets.US_ASCII));
+            for (List<Journaled> sends : byEntity.values()) {
+                restore(sends);
+            }
+            journal.close();
+            Files.move(compacted.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            journal = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(journalFile, true), StandardCharsets.US_ASCII));
+        }
+        catch (IOException e) {
+            LOGGER.error("Cannot write " + journalFile + ", scheduled sends will not survive a restart: "
+                    + e.getMessage());
+            closeJournal();
+        }
+        if (!pending.isEmpty()) {
+            LOGGER.info("Restored " + pending.size() + " scheduled sends from " + journalFile);
+        }
+    }
+
+    // Re-creates an entity's pending sends as one job, which a newer update to the entity supersedes
+    private static void restore(List<Journaled> sends) {
+        Map<SNSMobile.Platform, Journaled> byPlatform
+                = new EnumMap<SNSMobile.Platform, Journaled>(SNSMobile.Platform.class);
+        Map<SNSMobile.Platform, Payload> payloads = new EnumMap<SNSMobile.Platform, Payload>(SNSMobile.Platform.class);
+        for (Journaled send : sends) {
+            Journaled older = byPlatform.put(send.platform, send);
+            if (older != null) LOGGER.error("Dropping scheduled send " + older.id + ": superseded by send " + send.id);
+            payloads.put(send.platform, send.payload);
+        }
+        Journaled first = sends.get(0);
+        DeliveryJob job = JobRegistry.create(first.type, first.entityId, payloads);
+        job.setHighPriority(first.highPriority);
+        Supersession.track(job);
+
+        for (Journaled send : byPlatform.values()) {
+            if (send.resumeSlot >= 0) {
+                // Continues where it was deferred, as one send: not counted or started again
+                job.restoreDeferred(send.platform, send.resumeSlot, send.at);
+                for (Map.Entry<String, Integer> region : send.reached.entrySet()) {
+                    job.reached(send.platform, region.getKey(), region.getValue());
+                }
+            }
+            else {
+                job.scheduled(send.platform, send.at);
+            }
+            add(new Entry(send.id, job, send.platform, send.resumeSlot >= 0), send.at);
+            lastId = Math.max(lastId, send.id);
+        }
+    }
+}
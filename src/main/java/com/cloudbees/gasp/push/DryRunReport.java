@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.config.Config;
+import com.cloudbees.gasp.services.CircuitBreaker;
+import com.cloudbees.gasp.services.PlatformApplication;
+import com.cloudbees.gasp.services.SNSMobile;
+import com.google.gson.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of a dry run (see DeliveryJob.isDryRun): the time each stage
+ * of the pipeline took, and the duration and rate a real send of the
+ * broadcast would have.
+ * <p>
+ * Nothing is sent, so the delivery stage is projected from the limits a
+ * real send would meet, as they stand when the dry run's send starts (see
+ * limits). A dry run takes nothing from the publish rate or pacing budgets,
+ * but the waits live broadcasts have already queued on them are included.
+ * The lowest limit, or the server's own pipeline if that is slower still,
+ * is the bottleneck. Platforms are sent in parallel, so the slowest
+ * platform sets the projected duration.
+ */
+final class DryRunReport {
+    private static final int requestMillis = Math.max(1, Config.getInt("DRY_RUN_REQUEST_MS", 30));
+    // Requests APNs multiplexes on one HTTP/2 connection (its SETTINGS_MAX_CONCURRENT_STREAMS)
+    private static final int APNS_STREAMS_PER_CONNECTION = 1000;
+
+    private DryRunReport() {
+        throw new UnsupportedOperationException();
+    }
+
+    static JsonObject toJson(DeliveryJob job) {
+        JsonObject json = new JsonObject();
+        long renderMillis = job.getRenderNanos() / 1000000;
+        long queueMillis = job.getStartedAt() > 0 ? job.getStartedAt() - job.getCreatedAt() : 0;
+
+        long projectedMillis = 0;
+        int targets = 0;
+        SNSMobile.Platform slowestPlatform = null;
+        String bottleneck = null;
+        JsonObject platforms = new JsonObject();
+        for (SNSMobile.Platform platform : job.getPayloads().keySet()) {
+            int platformTargets = job.getTargets(platform);
+            long audienceMillis = job.getAudienceNanos(platform) / 1000000;
+            long sendNanos = job.getSendNanos(platform);
+
+            Map<String, Double> limits = new LinkedHashMap<String, Double>(job.getLimits(platform));
+            if (sendNanos > 0 && platformTargets > 0) {
+                limits.put("pipeline", platformTargets * 1e9 / sendNanos);
+            }
+            String slowest = null;
+            for (Map.Entry<String, Double> limit : limits.entrySet()) {
+                if (slowest == null || limit.getValue() < limits.get(slowest)) slowest = limit.getKey();
+            }
+            double rate = slowest == null ? 0 : limits.get(slowest);
+            long platformMillis = renderMillis + audienceMillis
+                    + (rate > 0 ? (long) Math.ceil(platformTargets * 1000.0 / rate) : 0);
+
+            JsonObject stages = new JsonObject();
+            stages.addProperty("render", renderMillis);
+            stages.addProperty("queue", queueMillis);
+            stages.addProperty("audience", audienceMillis);
+            stages.addProperty("fanOut", sendNanos / 1000000);
+
+            JsonObject perSecond = new JsonObject();
+            for (Map.Entry<String, Double> limit : limits.entrySet()) {
+                perSecond.addProperty(limit.getKey(), Math.round(limit.getValue()));
+            }
+
+            JsonObject report = new JsonObject();
+            report.addProperty("targets", platformTargets);
+            report.addProperty("transport", PushTransports.getName(platform));
+            report.add("stagesMs", stages);
+            report.add("limitsPerSecond", perSecond);
+            report.addProperty("pushesPerSecond", Math.round(rate));
+            if (slowest != null) report.addProperty("bottleneck", slowest);
+            report.addProperty("projectedDurationMs", platformMillis);
+            platforms.add(platform.name(), report);
+
+            targets += platformTargets;
+            if (slowestPlatform == null || platformMillis > projectedMillis) {
+                slowestPlatform = platform;
+                projectedMillis = platformMillis;
+                bottleneck = slowest == null ? null : platform.name() + " " + slowest;
+            }
+        }
+
+        json.addProperty("projectedDurationMs", projectedMillis);
+        json.addProperty("pushesPerSecond", projectedMillis > 0 ? Math.round(targets * 1000.0 / projectedMillis) : 0);
+        if (bottleneck != null) json.addProperty("bottleneck", bottleneck);
+        json.add("platforms", platforms);
+        return json;
+    }
+
+    /**
+     * The pushes per second each limit on a platform's delivery allows for
+     * an audience:
+     * <ul>
+     * <li>SNS: the publish rate (SNS_PUBLISH_RATE) and publishes in flight
+     * (SNS_PUBLISH_CONCURRENCY) at DRY_RUN_REQUEST_MS per request (default
+     * 30). Each region sends its share of the audience within its own
+     * limits, in parallel, so the region that takes longest sets the rate.
+     * An open circuit breaker holds the send back until it half-opens.</li>
+     * <li>native APNs: the requests in flight (APNS_CONCURRENCY), and the
+     * streams the connection pool (APNS_CONNECTIONS) can multiplex.</li>
+     * <li>native GCM: one batch (GCM_BATCH_SIZE) per request, with
+     * GCM_CONCURRENCY requests in flight.</li>
+     * <li>the pacing capacity (PACING_FETCH_CAPACITY), unless the job is high
+     * priority.</li>
+     * </ul>
+     */
+    static Map<String, Double> limits(DeliveryJob job, SNSMobile.Platform platform, List<Registration> targets) {
+        Map<String, Double> limits = new LinkedHashMap<String, Double>();
+        int audience = targets.size();
+        if (audience == 0) return limits;
+        PlatformApplication application = PlatformApplication.get(platform);
+        String transport = PushTransports.getName(platform);
+
+        if ("sns".equals(transport) && application != null) {
+            Map<String, Integer> shares = regionShares(targets);
+            Map<String, Double> rateSeconds = new LinkedHashMap<String, Double>();
+            Map<String, Double> concurrencySeconds = new LinkedHashMap<String, Double>();
+            double concurrency = application.getPublishConcurrency() * 1000.0 / requestMillis;
+            for (Map.Entry<String, Integer> share : shares.entrySet()) {
+                RateLimiter limiter = application.getPublishRate(share.getKey());
+                if (limiter != null) {
+                    rateSeconds.put(share.getKey(), limiter.getWaitNanos() / 1e9 + share.getValue() / limiter.getRate());
+                }
+                concurrencySeconds.put(share.getKey(), share.getValue() / concurrency);
+            }
+            if (!rateSeconds.isEmpty()) limits.put("rateLimit", acrossRegions(audience, rateSeconds));
+            limits.put("concurrency", acrossRegions(audience, concurrencySeconds));
+
+            CircuitBreaker breaker = CircuitBreaker.forPlatform(platform);
+            if (breaker != null && breaker.getState() == CircuitBreaker.State.OPEN) {
+                long openMillis = breaker.getRetryAt() - System.currentTimeMillis();
+                if (openMillis > 0) limits.put("circuitOpen", audience * 1000.0 / openMillis);
+            }
+        }
+        else if ("apns".equals(transport)) {
+            limits.put("concurrency", Math.max(1, Config.getInt("APNS_CONCURRENCY", 1000)) * 1000.0 / requestMillis);
+            limits.put("connections", Math.max(1, Config.getInt("APNS_CONNECTIONS", 4))
+                    * APNS_STREAMS_PER_CONNECTION * 1000.0 / requestMillis);
+        }
+        else if ("gcm".equals(transport)) {
+            int batchSize = Math.min(1000, Math.max(1, Config.getInt("GCM_BATCH_SIZE", 1000)));
+            int concurrency = Math.max(1, Config.getInt("GCM_CONCURRENCY", 8));
+            limits.put("gcmBatches", concurrency * batchSize * 1000.0 / requestMillis);
+        }
+
+        Pacing pacing = Pacing.get();
+        if (pacing.isEnabled() && !job.isHighPriority()) {
+            limits.put("pacing", audience / (pacing.getWaitMillis() / 1000.0 + (double) audience / pacing.getCapacity()));
+        }
+        return limits;
+    }
+
+    // Devices per region, as SNSTransport sends them: endpoints outside SNS_REGIONS go to the default region
+    private static Map<String, Integer> regionShares(List<Registration> targets) {
+        List<String> regions = PlatformApplication.getRegions();
+        Map<String, Integer> shares = new LinkedHashMap<String, Integer>();
+        for (Registration target : targets) {
+            String region = SNSMobile.regionOf(target.getEndpointArn());
+            if (region == null || !regions.contains(region)) region = PlatformApplication.getDefaultRegion();
+            shares.merge(region, 1, Integer::sum);
+        }
+        return shares;
+    }
+
+    /**
+     * The rate an audience is sent at when each region sends its share in
+     * parallel, given the seconds each region takes: the slowest region
+     * finishes last.
+     */
+    static double acrossRegions(int audience, Map<String, Double> secondsByRegion) {
+        double slowest = 0;
+        for (double seconds : secondsByRegion.values()) {
+            slowest = Math.max(slowest, seconds);
+        }
+        return slowest > 0 ? audience / slowest : Double.MAX_VALUE;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+
+import java.util.List;
+
+/**
+ * Stands in for the platform's transport in a dry run: each device's
+ * payload is prepared as for a real send (badge and all) and the device is
+ * counted as sent, but nothing leaves the server.
+ */
+public class DryRunTransport implements PushTransport {
+    static final DryRunTransport INSTANCE = new DryRunTransport();
+
+    @Override
+    public String getName() {
+        return "dry-run";
+    }
+
+    @Override
+    public void send(SNSMobile.Platform platform, List<Registration> targets, Payload payload,
+                     DeliveryListener listener) {
+        for (Registration target : targets) {
+            if (listener.isCancelled()) {
+                listener.stopped(platform, target);
+                break;
+            }
+            // Build each device's payload as a real transport would
+            payload.forTarget(target).toString();
+            listener.sent(platform, target);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
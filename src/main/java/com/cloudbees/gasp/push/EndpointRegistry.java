@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.jfr.RegistryEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Registered devices for one platform, each held in a numbered slot.
+ * <p>
+ * Slots are stable for the lifetime of a registration, so per-device state
+ * (e.g. badge counts) can live in primitive arrays indexed by slot, and a
+ * fan-out walks the devices in a stable order. Freed slots are reused.
+ * <p>
+ * This class is thread-safe but not persistent. Mutations and snapshots are
+ * recorded as JFR RegistryEvents, including the time spent waiting for the
+ * lock.
+ */
+public class EndpointRegistry {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EndpointRegistry.class.getName());
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final String name;
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+    private String[] tokens = new String[INITIAL_CAPACITY];
+    private String[] endpointArns = new String[INITIAL_CAPACITY];
+    private int[] free = new int[INITIAL_CAPACITY];
+    private int freeCount;
+    private int highWater;
+
+    public EndpointRegistry(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Registers a device, or updates its endpoint Arn if already registered.
+     *
+     * @return the device's slot
+     */
+    public int register(String token, String endpointArn) {
+        return register(token, endpointArn, null);
+    }
+
+    /**
+     * Registers a device, or updates its endpoint Arn if already registered.
+     * If the device is new, newSlot is called with its slot before the lock
+     * is released, so no other registration or send sees the slot first.
+     *
+     * @return the device's slot
+     */
+    public int register(String token, String endpointArn, IntConsumer newSlot) {
+        RegistryEvent event = new RegistryEvent();
+        event.begin();
+        int slot = registerLocked(token, endpointArn, newSlot);
+        commit(event, "register", slot, 1);
+        return slot;
+    }
+
+    private synchronized int registerLocked(String token, String endpointArn, IntConsumer newSlot) {
+        Integer existing = slots.get(token);
+        if (existing != null) {
+            endpointArns[existing] = endpointArn;
+            return existing;
+        }
+
+        int slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+        }
+        else {
+            if (highWater == tokens.length) grow();
+            slot = highWater++;
+        }
+        tokens[slot] = token;
+        endpointArns[slot] = endpointArn;
+        slots.put(token, slot);
+        if (newSlot != null) newSlot.accept(slot);
+        LOGGER.debug(name + ": registered slot " + slot);
+        return slot;
+    }
+
+    /**
+     * Unregisters a device.
+     *
+     * @return the slot it held, or -1 if it was not registered
+     */
+    public int unregister(String token) {
+        RegistryEvent event = new RegistryEvent();
+        event.begin();
+        int slot = unregisterLocked(token);
+        commit(event, "unregister", slot, 1);
+        return slot;
+    }
+
+    private synchronized int unregisterLocked(String token) {
+        Integer slot = slots.remove(token);
+        if (slot == null) return -1;
+
+        tokens[slot] = null;
+        endpointArns[slot] = null;
+        if (freeCount == free.length) {
+            int[] grown = new int[free.length * 2];
+            System.arraycopy(free, 0, grown, 0, freeCount);
+            free = grown;
+        }
+        free[freeCount++] = slot;
+        return slot;
+    }
+
+    /**
+     * Replaces a device's token (e.g. with a GCM canonical id), keeping its
+     * slot. If the new token is already registered the old one is dropped.
+     */
+    public void updateToken(String token, String newToken) {
+        RegistryEvent event = new RegistryEvent();
+        event.begin();
+        int slot = updateTokenLocked(token, newToken);
+        commit(event, "updateToken", slot, 1);
+    }
+
+    private synchronized int updateTokenLocked(String token, String newToken) {
+        Integer slot = slots.get(token);
+        if (slot == null) return -1;
+
+        if (slots.containsKey(newToken)) {
+            return unregisterLocked(token);
+        }
+        slots.remove(token);
+        slots.put(newToken, slot);
+        tokens[slot] = newToken;
+        return slot;
+    }
+
+    public synchronized String getEndpointArn(String token) {
+        Integer slot = slots.get(token);
+        return slot == null ? null : endpointArns[slot];
+    }
+
+    /**
+     * Gets a device's slot, or -1 if it is not registered.
+     */
+    public synchronized int getSlot(String token) {
+        Integer slot = slots.get(token);
+        return slot == null ? -1 : slot;
+    }
+
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    /**
+     * Gets the endpoint Arns of all registered devices, in slot order.
+     */
+    public List<String> getEndpoints() {
+        RegistryEvent event = new RegistryEvent();
+        event.begin();
+        List<String> endpoints = getEndpointsLocked();
+        commit(event, "getEndpoints", -1, endpoints.size());
+        return endpoints;
+    }
+
+    private synchronized List<String> getEndpointsLocked() {
+        List<String> endpoints = new ArrayList<String>(slots.size());
+        for (int slot = 0; slot < highWater; slot++) {
+            if (tokens[slot] != null) endpoints.add(endpointArns[slot]);
+        }
+        return endpoints;
+    }
+
+    /**
+     * Gets all registered devices, in slot order.
+     */
+    public List<Registration> getRegistrations() {
+        RegistryEvent event = new RegistryEvent();
+        event.begin();
+        List<Registration> registrations = getRegistrationsLocked();
+        commit(event, "getRegistrations", -1, registrations.size());
+        return registrations;
+    }
+
+    private synchronized List<Registration> getRegistrationsLocked() {
+        List<Registration> registrations = new ArrayList<Registration>(slots.size());
+        for (int slot = 0; slot < highWater; slot++) {
+            if (tokens[slot] != null) {
+                registrations.add(new Registration(tokens[slot], endpointArns[slot], slot));
+            }
+        }
+        return registrations;
+    }
+
+    private void commit(RegistryEvent event, String operation, int slot, int devices) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.registry = name;
+            event.operation = operation;
+            event.slot = slot;
+            event.devices = devices;
+            event.commit();
+        }
+    }
+
+    private void grow() {
+        String[] grownTokens = new String[tokens.length * 2];
+        String[] grownArns = new String[tokens.length * 2];
+        System.arraycopy(tokens, 0, grownTokens, 0, highWater);
+        System.arraycopy(endpointArns, 0, grownArns, 0, highWater);
+        tokens = grownTokens;
+        endpointArns = grownArns;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Runs a blocking call for each item of a list concurrently, one thread per
+ * call, with at most maxInFlight calls running at once.
+ * <p>
+ * With virtual threads (the default) a blocked call holds a few KB of heap
+ * rather than a platform thread's stack, so tens of thousands of calls can
+ * be in flight: the permits, not a thread pool, bound memory use. The
+ * permits are shared by every fan-out using this instance.
+ */
+public class Fanout {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Fanout.class.getName());
+
+    private final Semaphore permits;
+    private final int maxInFlight;
+    private final ThreadFactory threadFactory;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+
+    public Fanout(String name, int maxInFlight) {
+        this(maxInFlight, Thread.ofVirtual().name(name + "-", 1).factory());
+    }
+
+    public Fanout(int maxInFlight, ThreadFactory threadFactory) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.permits = new Semaphore(this.maxInFlight);
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Calls task for every item and waits for all the calls to complete.
+     * Exceptions thrown by a call are logged and do not affect the others.
+     * If interrupted, no further calls are started and those already
+     * running are waited for.
+     */
+    public <T> void forEach(List<T> items, Consumer<T> task) {
+        forEach(items, task, () -> false);
+    }
+
+    /**
+     * Calls task for each item in order until stop returns true (checked
+     * before each call is started), then waits for the calls that were
+     * started.
+     *
+     * @return the number of calls started: the index of the first item
+     *         skipped, or items.size()
+     */
+    public <T> int forEach(List<T> items, Consumer<T> task, BooleanSupplier stop) {
+        CountDownLatch done = new CountDownLatch(items.size());
+        boolean interrupted = false;
+        int started = 0;
+
+        for (T item : items) {
+            if (interrupted) break;
+            try {
+                permits.acquire();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+                break;
+            }
+            // A call may have waited a long time for its permit
+            if (stop.getAsBoolean()) {
+                permits.release();
+                break;
+            }
+            peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            started++;
+
+            Thread thread = threadFactory.newThread(() -> {
+                try {
+                    task.accept(item);
+                }
+                catch (RuntimeException e) {
+                    LOGGER.error("Fan-out call failed: " + e.getMessage());
+                }
+                finally {
+                    inFlight.decrementAndGet();
+                    permits.release();
+                    done.countDown();
+                }
+            });
+            thread.start();
+        }
+        for (int skipped = started; skipped < items.size(); skipped++) {
+            done.countDown();
+        }
+
+        while (true) {
+            try {
+                done.await();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return started;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * The most calls that have been in flight at once.
+     */
+    public int getPeakInFlight() {
+        return peakInFlight.get();
+    }
+}
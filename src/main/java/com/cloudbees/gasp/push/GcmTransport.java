@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.amazonaws.AmazonClientException;
+import com.cloudbees.gasp.config.Config;
+import com.cloudbees.gasp.config.CredentialsProvider;
+import com.cloudbees.gasp.jfr.PublishEvent;
+import com.cloudbees.gasp.services.GCMDataStore;
+import com.cloudbees.gasp.services.SNSMobile;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Native GCM delivery, bypassing SNS: registration ids are grouped into
+ * multicast batches (up to 1000 per request, the GCM limit) and the
+ * per-token results are applied back to the GCMDataStore: canonical ids
+ * replace the registered id, NotRegistered/InvalidRegistration ids are
+ * removed. A device the response has no result for is counted as failed
+ * ("MissingResult"), as it cannot be told whether it was reached.
+ * <p>
+ * Settings:
+ * GCM_SEND_URL overrides the GCM endpoint (e.g. to use MockGcmServer),
+ * GCM_BATCH_SIZE sets the number of registration ids per request,
+ * GCM_CONCURRENCY the batches in flight at once (see Fanout) and
+ * GCM_RETRIES how many times an unavailable batch is retried.
+ */
+public class GcmTransport implements PushTransport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GcmTransport.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private final CredentialsProvider credentialsProvider;
+    private final String sendUrl = Config.get("GCM_SEND_URL", "https://android.googleapis.com/gcm/send");
+    private final int batchSize = Math.min(MAX_BATCH_SIZE, Math.max(1, Config.getInt("GCM_BATCH_SIZE", MAX_BATCH_SIZE)));
+    private final int retries = Config.getInt("GCM_RETRIES", 3);
+    private final Fanout fanout = new Fanout("gasp-gcm", Config.getInt("GCM_CONCURRENCY", 8));
+    private final SNSMobile snsMobile = new SNSMobile();
+
+    /**
+     * The parts of a GCM response that are used: see the GCM HTTP reference.
+     */
+    static class GcmResponse {
+        int success;
+        int failure;
+        int canonical_ids;
+        List<GcmResult> results;
+    }
+
+    static class GcmResult {
+        String message_id;
+        String registration_id;
+        String error;
+    }
+
+    public GcmTransport(CredentialsProvider credentialsProvider) {
+        this.credentialsProvider = credentialsProvider;
+        LOGGER.info("GCM endpoint: " + sendUrl + " (batches of " + batchSize + ", "
+                + fanout.getMaxInFlight() + " in flight)");
+    }
+
+    @Override
+    public String getName() {
+        return "gcm";
+    }
+
+    @Override
+    public void send(SNSMobile.Platform platform, List<Registration> targets, Payload payload,
+                     DeliveryListener listener) {
+        // A multicast request has one payload for every device
+        Payload multicast = payload.withBadge(1);
+        List<List<Registration>> batches = new ArrayList<List<Registration>>();
+        for (int from = 0; from < targets.size(); from += batchSize) {
+            batches.add(targets.subList(from, Math.min(targets.size(), from + batchSize)));
+        }
+
+        int started = fanout.forEach(batches, batch -> sendBatch(platform, batch, multicast, listener),
+                                     listener::isCancelled);
+        if (started < batches.size() && listener.isCancelled()) {
+            listener.stopped(platform, batches.get(started).get(0));
+        }
+    }
+
+    @Override
+    public void close() {
+        // HttpURLConnection keep-alive connections are pooled by the JDK
+    }
+
+    private void sendBatch(SNSMobile.Platform platform, List<Registration> batch, Payload payload,
+                           DeliveryListener listener) {
+        long backoff = 1000;
+        String error = "Unavailable";
+
+        for (int attempt = 0; attempt <= retries && !batch.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                try {
+                    Thread.sleep(backoff);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error = "Interrupted";
+                    break;
+                }
+                backoff *= 2;
+            }
+
+            HttpURLConnection connection = null;
+            PublishEvent event = new PublishEvent();
+            int devices = batch.size();
+            String requestError = null;
+            event.begin();
+            try {
+                byte[] body = multicastBody(batch, payload);
+
+                connection = (HttpURLConnection) new URL(sendUrl).openConnection();
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+                connection.setDoOutput(true);
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setRequestProperty("Authorization",
+                        "key=" + credentialsProvider.getCredentials().getGcmApiKey());
+                connection.setFixedLengthStreamingMode(body.length);
+
+                OutputStream out = connection.getOutputStream();
+                out.write(body);
+                out.close();
+
+                int status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_OK) {
+                    batch = applyResults(platform, batch, read(connection.getInputStream()), listener);
+                    error = "Unavailable";
+                }
+                else if (status >= 500) {
+                    LOGGER.error("GCM unavailable (HTTP " + status + "), retrying " + batch.size() + " devices");
+                    drain(connection.getErrorStream());
+                    backoff = Math.max(backoff, retryAfter(connection));
+                    error = "HTTP" + status;
+                    requestError = error;
+                }
+                else {
+                    // 400 (bad JSON) and 401 (bad API key) will not succeed on retry
+                    LOGGER.error("GCM rejected batch of " + batch.size() + " devices: HTTP " + status);
+                    drain(connection.getErrorStream());
+                    error = "HTTP" + status;
+                    requestError = error;
+                    break;
+                }
+            }
+            catch (IOException e) {
+                LOGGER.error("GCM request failed: " + e.getMessage());
+                error = "IOException";
+                requestError = error;
+                if (connection != null) drain(connection.getErrorStream());
+            }
+            finally {
+                PushEvents.commitPublish(event, platform, sendUrl, devices, requestError, listener);
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            LOGGER.error("Failed to send update to " + batch.size() + " GCM devices");
+            for (Registration registration : batch) {
+                listener.failed(platform, registration, error);
+            }
+        }
+    }
+
+    /**
+     * Applies the per-token results to the registry.
+     *
+     * @return the devices that should be retried (error "Unavailable")
+     */
+    List<Registration> applyResults(SNSMobile.Platform platform, List<Registration> batch, String json,
+                                            DeliveryListener listener) {
+        List<Registration> retry = new ArrayList<Registration>();
+        GcmResponse response;
+        try {
+            response = new Gson().fromJson(json, GcmResponse.class);
+        }
+        catch (JsonSyntaxException e) {
+            LOGGER.error("Invalid GCM response: " + e.getMessage());
+            response = null;
+        }
+
+        // Results are in the same order as registration_ids
+        List<GcmResult> results = response == null || response.results == null
+                ? new ArrayList<GcmResult>()
+                : response.results;
+        if (results.size() < batch.size()) {
+            LOGGER.error("GCM response has " + results.size() + " results for " + batch.size() + " devices");
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            GcmResult result = i < results.size() ? results.get(i) : null;
+            Registration registration = batch.get(i);
+
+            if (result == null) {
+                listener.failed(platform, registration, "MissingResult");
+            }
+            else if (result.message_id != null) {
+                if (result.registration_id != null) {
+                    LOGGER.info("Canonical GCM id for " + registration.getToken() + ": " + result.registration_id);
+                    GCMDataStore.updateRegistration(registration.getToken(), result.registration_id);
+                }
+                listener.sent(platform, registration);
+            }
+            else if ("NotRegistered".equals(result.error) || "InvalidRegistration".equals(result.error)) {
+                LOGGER.info("Removing GCM device " + registration.getToken() + ": " + result.error);
+                unregister(registration);
+                listener.failed(platform, registration, result.error);
+            }
+            else if ("Unavailable".equals(result.error)) {
+                retry.add(registration);
+            }
+            else {
+                LOGGER.error("GCM error for " + registration.getToken() + ": " + result.error);
+                listener.failed(platform, registration, result.error);
+            }
+        }
+        return retry;
+    }
+
+    private void unregister(Registration registration) {
+        GCMDataStore.unregisterArn(registration.getToken());
+        if (registration.getEndpointArn() == null) return;
+
+        try {
+            snsMobile.deleteEndpointArn(registration.getEndpointArn());
+        }
+        catch (AmazonClientException ace) {
+            LOGGER.debug("Cannot delete endpoint " + registration.getEndpointArn() + ": " + ace.getMessage());
+        }
+    }
+
+    /**
+     * Splices registration_ids into the rendered GCM envelope, so the
+     * payload is not parsed and serialized again for every batch.
+     */
+    private static byte[] multicastBody(List<Registration> batch, Payload payload) {
+        StringBuilder json = new StringBuilder(batch.size() * 180);
+        json.append("{\"registration_ids\":[");
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) json.append(',');
+            json.append('"');
+            appendEscaped(json, batch.get(i).getToken());
+            json.append('"');
+        }
+        json.append(']');
+
+        // Skip the envelope's opening brace, adding a comma if it has fields
+        byte[] envelope = payload.getBytes();
+        int fields = 0;
+        while (fields < envelope.length && envelope[fields] != '{') fields++;
+        fields++;
+        int next = fields;
+        while (next < envelope.length && Character.isWhitespace(envelope[next])) next++;
+        if (next < envelope.length && envelope[next] != '}') {
+            json.append(',');
+        }
+
+        byte[] ids = json.toString().getBytes(UTF8);
+        byte[] body = new byte[ids.length + envelope.length - fields];
+        System.arraycopy(ids, 0, body, 0, ids.length);
+        System.arraycopy(envelope, fields, body, ids.length, envelope.length - fields);
+        return body;
+    }
+
+    private static void appendEscaped(StringBuilder json, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') json.append('\\');
+            json.append(c);
+        }
+    }
+
+    private static long retryAfter(HttpURLConnection connection) {
+        String retryAfter = connection.getHeaderField("Retry-After");
+        try {
+            return retryAfter == null ? 0 : Long.parseLong(retryAfter.trim()) * 1000;
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        Reader reader = new InputStreamReader(in, UTF8);
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[4096];
+            int n;
+            while ((n = reader.read(buffer)) > 0) {
+                text.append(buffer, 0, n);
+            }
+            return text.toString();
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    // Reading the error body lets the JDK reuse the keep-alive connection
+    private static void drain(InputStream in) {
+        if (in == null) return;
+        try {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) > 0) {
+                // Discard
+            }
+            in.close();
+        }
+        catch (IOException e) {
+            // Connection will not be reused
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.config.Config;
+import com.cloudbees.gasp.services.SNSMobile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The most recent delivery jobs, in a fixed-size ring buffer (JOB_HISTORY,
+ * default 1024): older jobs are overwritten, so memory use is bounded
+ * however many events are received.
+ */
+public final class JobRegistry {
+    private static final int capacity = Math.max(1, Config.getInt("JOB_HISTORY", 1024));
+    private static final AtomicReferenceArray<DeliveryJob> jobs = new AtomicReferenceArray<DeliveryJob>(capacity);
+    private static final AtomicLong lastId = new AtomicLong();
+
+    private JobRegistry() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static DeliveryJob create(String type, int entityId, Map<SNSMobile.Platform, Payload> payloads) {
+        long id = lastId.incrementAndGet();
+        DeliveryJob job = new DeliveryJob(id, type, entityId, payloads);
+        jobs.set(slot(id), job);
+        return job;
+    }
+
+    /**
+     * Gets a job, or null if it is unknown or has been overwritten.
+     */
+    public static DeliveryJob get(long id) {
+        if (id <= 0) return null;
+
+        DeliveryJob job = jobs.get(slot(id));
+        return job != null && job.getId() == id ? job : null;
+    }
+
+    /**
+     * Gets up to count of the most recent jobs, newest first.
+     */
+    public static List<DeliveryJob> recent(int count) {
+        List<DeliveryJob> recent = new ArrayList<DeliveryJob>();
+        long last = lastId.get();
+        for (long id = last; id > 0 && id > last - capacity && recent.size() < count; id--) {
+            DeliveryJob job = get(id);
+            if (job != null) recent.add(job);
+        }
+        return recent;
+    }
+
+    public static int getCapacity() {
+        return capacity;
+    }
+
+    private static int slot(long id) {
+        return (int) (id % capacity);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.config.Config;
+
+/**
+ * Paces broadcasts so the fetches devices make when a push arrives stay
+ * within what the origin server can absorb.
+ * <p>
+ * PACING_FETCH_CAPACITY is the origin's budget in fetches per second
+ * (default 0: broadcasts are not paced). Each platform send is split, in
+ * slot order, into pacing slots of one PACING_TICK_MS (default 1000) worth
+ * of the budget, so a broadcast to N devices takes N / capacity seconds
+ * and each device's pacing slot follows from its place in the audience.
+ * Pacing slots are taken from one budget shared by every broadcast and
+ * platform, so the peak load on the origin is set by the capacity however
+ * large or many the broadcasts are. A send whose next pacing slot is not
+ * yet free waits on PushDispatcher's pacing timer, without holding a
+ * dispatcher thread, and continues from the same device.
+ * <p>
+ * High-priority jobs are not paced.
+ */
+public final class Pacing {
+    // The budget shared by every broadcast
+    private static final Pacing budget = new Pacing(Config.getInt("PACING_FETCH_CAPACITY", 0),
+                                                    Config.getInt("PACING_TICK_MS", 1000));
+
+    private final int capacity;
+    private final int tickMillis;
+    // When the budget is next free: pacing slots are handed out one after another
+    private long nextFree;
+
+    Pacing(int capacity, int tickMillis) {
+        this.capacity = Math.max(0, capacity);
+        this.tickMillis = Math.max(10, tickMillis);
+    }
+
+    public static Pacing get() {
+        return budget;
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Devices in a pacing slot.
+     */
+    int getSlotSize() {
+        return Math.max(1, (int) ((long) capacity * tickMillis / 1000));
+    }
+
+    /**
+     * How long a send to an audience takes when paced.
+     */
+    long getWindowMillis(int audience) {
+        return capacity == 0 ? 0 : audience * 1000L / capacity;
+    }
+
+    /**
+     * How long a pacing slot asked for now would wait, without taking one.
+     */
+    synchronized long getWaitMillis() {
+        return Math.max(0, nextFree - System.currentTimeMillis());
+    }
+
+    /**
+     * Takes the budget for a pacing slot of devices, if it is free.
+     *
+     * @return 0 if the devices can be sent now, otherwise when to try again
+     */
+    synchronized long tryAcquire(int devices) {
+        long now = System.currentTimeMillis();
+        if (nextFree > now) return nextFree;
+
+        nextFree = now + devices * 1000L / capacity;
+        return 0;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import java.nio.charset.Charset;
+import java.util.function.IntToLongFunction;
+
+/**
+ * A rendered platform payload: UTF-8 bytes, as written by the native
+ * transports, with the String form (needed by SNS) decoded on first use.
+ * <p>
+ * If the template has a ${badge} placeholder the payload also records where
+ * the badge digits go; forTarget splices in each device's badge count
+ * without rendering the template again.
+ */
+public final class Payload {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] bytes;
+    private final int[] badgeOffsets;
+    // A device's badge, by slot
+    private final IntToLongFunction badges;
+    private volatile String text;
+
+    public Payload(byte[] bytes) {
+        this(bytes, null, null);
+    }
+
+    public Payload(String text) {
+        this(text.getBytes(UTF8));
+        this.text = text;
+    }
+
+    Payload(byte[] bytes, int[] badgeOffsets) {
+        this(bytes, badgeOffsets, null);
+    }
+
+    private Payload(byte[] bytes, int[] badgeOffsets, IntToLongFunction badges) {
+        this.bytes = bytes;
+        this.badgeOffsets = badgeOffsets;
+        this.badges = badges;
+    }
+
+    /**
+     * The encoded payload: callers must not modify the array. If the
+     * payload has a badge, use forTarget first.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * Largest size once a badge has been spliced in.
+     */
+    public int maxSize() {
+        return bytes.length + (badgeOffsets == null ? 0 : badgeOffsets.length * PayloadTemplate.BADGE_RESERVE);
+    }
+
+    int[] getBadgeOffsets() {
+        return badgeOffsets;
+    }
+
+    public boolean hasBadge() {
+        return badgeOffsets != null;
+    }
+
+    /**
+     * Binds the payload to per-device badge counts, without reserving the
+     * badges it renders (as for a dry run).
+     */
+    public Payload withBadges(BadgeCounters badgeCounters) {
+        if (badgeOffsets == null) return this;
+        return new Payload(bytes, badgeOffsets, badgeCounters::next);
+    }
+
+    /**
+     * Binds the payload to the badges reserved for a slice of targets.
+     */
+    public Payload withBadges(BadgeCounters.Reservation reservation) {
+        if (badgeOffsets == null) return this;
+        return new Payload(bytes, badgeOffsets, reservation::use);
+    }
+
+    /**
+     * The payload for one device: with its badge count spliced in, or this
+     * payload if it has no badge. Without badge counts the badge is 1.
+     */
+    public Payload forTarget(Registration target) {
+        if (badgeOffsets == null) return this;
+
+        long badge = badges == null || target.getSlot() < 0
+                ? 1
+                : badges.applyAsLong(target.getSlot());
+        return withBadge(badge);
+    }
+
+    public Payload withBadge(long badge) {
+        if (badgeOffsets == null) return this;
+
+        byte[] digits = Long.toString(badge).getBytes(UTF8);
+        byte[] spliced = new byte[bytes.length + digits.length * badgeOffsets.length];
+        int from = 0;
+        int to = 0;
+        for (int offset : badgeOffsets) {
+            System.arraycopy(bytes, from, spliced, to, offset - from);
+            to += offset - from;
+            System.arraycopy(digits, 0, spliced, to, digits.length);
+            to += digits.length;
+            from = offset;
+        }
+        System.arraycopy(bytes, from, spliced, to, bytes.length - from);
+        return new Payload(spliced);
+    }
+
+    @Override
+    public String toString() {
+        String result = text;
+        if (result == null) {
+            result = new String(bytes, UTF8);
+            text = result;
+        }
+        return result;
+    }
+}
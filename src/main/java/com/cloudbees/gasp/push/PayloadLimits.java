@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.config.Config;
+import com.cloudbees.gasp.services.SNSMobile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+
+/**
+ * Pre-flight size check, run once per event and platform before any
+ * publish: a payload that SNS or the provider would reject fails every
+ * single endpoint of a fan-out, so it is fixed (or rejected) up front.
+ * <p>
+ * Policy, applied until the payload fits:
+ * 1. truncate the ${text} value at a UTF-8 character boundary (with an
+ *    ellipsis), but not below PAYLOAD_MIN_TEXT bytes;
+ * 2. drop the template's optional [[ ]] segments, last first, trying the
+ *    full and then the truncated text at each step;
+ * 3. reject the event with PayloadTooLargeException.
+ * <p>
+ * Limits are APNS_PAYLOAD_LIMIT (default 2048 bytes; use 256 for devices
+ * older than iOS 8), GCM_PAYLOAD_LIMIT (default 4096 bytes) and
+ * ADM_PAYLOAD_LIMIT (default 6144 bytes). The payload
+ * must also fit SNS_MESSAGE_LIMIT once escaped into the SNS JSON wrapper.
+ */
+public final class PayloadLimits {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PayloadLimits.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String ellipsis = "\u2026";
+    private static final int ellipsisSize = ellipsis.getBytes(UTF8).length;
+
+    private static final int apnsLimit = Config.getInt("APNS_PAYLOAD_LIMIT", 2048);
+    private static final int gcmLimit = Config.getInt("GCM_PAYLOAD_LIMIT", 4096);
+    private static final int admLimit = Config.getInt("ADM_PAYLOAD_LIMIT", 6144);
+    private static final int snsLimit = Config.getInt("SNS_MESSAGE_LIMIT", 262144);
+    private static final int minText = Config.getInt("PAYLOAD_MIN_TEXT", 32);
+
+    // {"default":"","<PLATFORM>":"<payload>"}
+    private static final int snsWrapperSize = "{\"default\":\"\",\"\":\"\"}".length();
+
+    private PayloadLimits() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static int limitFor(SNSMobile.Platform platform) {
+        switch (platform) {
+            case APNS:
+            case APNS_SANDBOX:
+                return apnsLimit;
+            case GCM:
+                return gcmLimit;
+            case ADM:
+                return admLimit;
+            default:
+                return snsLimit;
+        }
+    }
+
+    /**
+     * Renders the template so that the payload fits the platform's limit.
+     *
+     * @throws PayloadTooLargeException if it cannot be made to fit
+     */
+    public static Payload fit(SNSMobile.Platform platform, PayloadTemplate template, String... values) {
+        int limit = limitFor(platform);
+        byte[][] encoded = template.encode(values);
+
+        Payload payload = template.payload(-1, encoded);
+        if (fits(platform, payload, limit)) {
+            return payload;
+        }
+        int smallest = payload.maxSize();
+
+        int textSlot = PayloadTemplate.Slot.TEXT.ordinal();
+        String text = textSlot < values.length ? values[textSlot] : null;
+        int textCount = template.count(PayloadTemplate.Slot.TEXT);
+
+        for (int keep = template.getSegmentCount(); keep >= 0; keep--) {
+            if (keep < template.getSegmentCount()) {
+                encoded[textSlot] = PayloadTemplate.escape(text);
+                payload = template.payload(keep, encoded);
+                if (fits(platform, payload, limit)) {
+                    return fitted(platform, payload, limit, keep, template, false);
+                }
+                smallest = Math.min(smallest, payload.maxSize());
+            }
+
+            if (text == null || textCount == 0) continue;
+
+            encoded[textSlot] = null;
+            int budget = (limit - template.size(keep, encoded)) / textCount;
+            if (budget < minText) continue;
+
+            encoded[textSlot] = PayloadTemplate.escape(truncate(text, budget));
+            payload = template.payload(keep, encoded);
+            if (fits(platform, payload, limit)) {
+                return fitted(platform, payload, limit, keep, template, true);
+            }
+            smallest = Math.min(smallest, payload.maxSize());
+        }
+
+        throw new PayloadTooLargeException(platform, smallest, limit);
+    }
+
+    private static Payload fitted(SNSMobile.Platform platform, Payload payload, int limit,
+                                  int keep, PayloadTemplate template, boolean truncated) {
+        LOGGER.info(platform.name() + " payload fitted to " + payload.maxSize() + "/" + limit + " bytes"
+                + (truncated ? ", text truncated" : "")
+                + (keep < template.getSegmentCount()
+                        ? ", dropped " + (template.getSegmentCount() - keep) + " optional fields" : ""));
+        return payload;
+    }
+
+    private static boolean fits(SNSMobile.Platform platform, Payload payload, int limit) {
+        return payload.maxSize() <= limit
+                && snsSize(platform, payload.getBytes()) + payload.maxSize() - payload.size() <= snsLimit;
+    }
+
+    /**
+     * Size of the SNS message once the payload is escaped into the
+     * per-platform JSON wrapper built by SNSMobile.
+     */
+    private static int snsSize(SNSMobile.Platform platform, byte[] bytes) {
+        int size = snsWrapperSize + platform.name().length() + bytes.length;
+        for (byte b : bytes) {
+            if (b == '"' || b == '\\') size += 1;
+            else if (b >= 0 && b < 0x20) size += 5;
+        }
+        return size;
+    }
+
+    /**
+     * Cuts the text so that its escaped UTF-8 form, plus an ellipsis, is
+     * at most budget bytes, never splitting a character.
+     */
+    static String truncate(String text, int budget) {
+        if (escapedSize(text, 0, text.length()) <= budget) {
+            return text;
+        }
+
+        int available = budget - ellipsisSize;
+        int size = 0;
+        int end = 0;
+        while (end < text.length()) {
+            int next = text.offsetByCodePoints(end, 1);
+            int charSize = escapedSize(text, end, next);
+            if (size + charSize > available) break;
+            size += charSize;
+            end = next;
+        }
+        return text.substring(0, end) + ellipsis;
+    }
+
+    private static int escapedSize(String text, int from, int to) {
+        int size = 0;
+        for (int i = from; i < to; ) {
+            int c = text.codePointAt(i);
+            if (c == '"' || c == '\\') size += 2;
+            else if (c < 0x20) size += 6;
+            else if (c < 0x80) size += 1;
+            else if (c < 0x800) size += 2;
+            else if (c < 0x10000) size += 3;
+            else size += 4;
+            i += Character.charCount(c);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A JSON payload template compiled once into UTF-8 literal fragments and
+ * placeholder slots, e.g.
+ * <pre>
+ * {"aps":{"alert":"${text}"[[,"badge":1]][[,"sound":"default"]]}}
+ * </pre>
+ * Rendering escapes each value once and copies fragments and values into a
+ * single array: there is no Map building or reflective serialization per
+ * event. Placeholders are substituted as raw JSON string content, so they
+ * belong inside quotes (or, for numeric values such as ${id} and ${seq},
+ * outside).
+ * <p>
+ * Text between [[ and ]] is an optional segment that PayloadLimits may drop
+ * to fit a payload within the provider's size limit. Segments are numbered
+ * from 1 in template order and dropped last first.
+ * <p>
+ * ${badge} is filled in per device: the rendered Payload records where the
+ * digits go, and Payload.forTarget splices them in for each device.
+ */
+public final class PayloadTemplate {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] HEX = "0123456789abcdef".getBytes(UTF8);
+    private static final byte[] EMPTY = new byte[0];
+
+    // Room reserved for the per-device ${badge} when sizing a payload
+    static final int BADGE_RESERVE = String.valueOf(Long.MAX_VALUE).length();
+
+    private static final String SEGMENT_START = "[[";
+    private static final String SEGMENT_END = "]]";
+
+    /**
+     * The values that can be spliced into a template.
+     */
+    public static enum Slot {
+        TYPE("type"), ID("id"), TEXT("text"), SEQ("seq"), DRY_RUN("dry_run"), BADGE("badge");
+
+        private final String placeholder;
+
+        Slot(String placeholder) {
+            this.placeholder = "${" + placeholder + "}";
+        }
+
+        public String getPlaceholder() {
+            return placeholder;
+        }
+    }
+
+    private final String source;
+    // Piece i is either literals[i] or slots[i], in optional segment segments[i] (0 if required)
+    private final byte[][] literals;
+    private final Slot[] slots;
+    private final int[] segments;
+    private final int segmentCount;
+
+    private PayloadTemplate(String source, byte[][] literals, Slot[] slots, int[] segments, int segmentCount) {
+        this.source = source;
+        this.literals = literals;
+        this.slots = slots;
+        this.segments = segments;
+        this.segmentCount = segmentCount;
+    }
+
+    /**
+     * Compiles a template.
+     *
+     * @throws IllegalArgumentException if it has an unknown ${...} placeholder
+     *                                  or unbalanced [[ ]] segments
+     */
+    public static PayloadTemplate compile(String source) {
+        List<byte[]> literals = new ArrayList<byte[]>();
+        List<Slot> slots = new ArrayList<Slot>();
+        List<Integer> segments = new ArrayList<Integer>();
+
+        int segment = 0;
+        int segmentCount = 0;
+        StringBuilder literal = new StringBuilder();
+        int position = 0;
+        while (position < source.length()) {
+            if (source.startsWith("${", position)) {
+                int end = source.indexOf('}', position);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated placeholder in template: " + source);
+                }
+                addLiteral(literal, segment, literals, slots, segments);
+                literals.add(null);
+                slots.add(slotFor(source.substring(position, end + 1)));
+                segments.add(segment);
+                position = end + 1;
+            }
+            else if (source.startsWith(SEGMENT_START, position)) {
+                if (segment != 0) {
+                    throw new IllegalArgumentException("Nested optional segment in template: " + source);
+                }
+                addLiteral(literal, segment, literals, slots, segments);
+                segment = ++segmentCount;
+                position += SEGMENT_START.length();
+            }
+            else if (source.startsWith(SEGMENT_END, position) && segment != 0) {
+                addLiteral(literal, segment, literals, slots, segments);
+                segment = 0;
+                position += SEGMENT_END.length();
+            }
+            else {
+                literal.append(source.charAt(position++));
+            }
+        }
+        if (segment != 0) {
+            throw new IllegalArgumentException("Unterminated optional segment in template: " + source);
+        }
+        addLiteral(literal, segment, literals, slots, segments);
+
+        int[] segmentArray = new int[segments.size()];
+        for (int i = 0; i < segmentArray.length; i++) {
+            segmentArray[i] = segments.get(i);
+        }
+        return new PayloadTemplate(source,
+                                   literals.toArray(new byte[literals.size()][]),
+                                   slots.toArray(new Slot[slots.size()]),
+                                   segmentArray,
+                                   segmentCount);
+    }
+
+    private static void addLiteral(StringBuilder literal, int segment,
+                                   List<byte[]> literals, List<Slot> slots, List<Integer> segments) {
+        if (literal.length() == 0) return;
+
+        literals.add(literal.toString().getBytes(UTF8));
+        slots.add(null);
+        segments.add(segment);
+        literal.setLength(0);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Number of optional [[ ]] segments.
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    public boolean uses(Slot slot) {
+        return count(slot) > 0;
+    }
+
+    /**
+     * Number of times a placeholder appears in the template.
+     */
+    public int count(Slot slot) {
+        int count = 0;
+        for (Slot used : slots) {
+            if (used == slot) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Renders the template: values are indexed by Slot.ordinal() and a
+     * missing value renders as an empty string.
+     */
+    public Payload render(String... values) {
+        return render(-1, values);
+    }
+
+    /**
+     * Renders the template without the optional segments numbered above
+     * keepSegments (all segments are kept if keepSegments is negative).
+     */
+    public Payload render(int keepSegments, String... values) {
+        return payload(keepSegments, encode(values));
+    }
+
+    /**
+     * Escapes the values once, so several renderings (e.g. while fitting a
+     * payload to a size limit) can share them. The badge is per device and
+     * is not taken from the values.
+     */
+    byte[][] encode(String... values) {
+        byte[][] encoded = new byte[Slot.values().length][];
+        for (Slot slot : slots) {
+            if (slot != null && slot != Slot.BADGE && encoded[slot.ordinal()] == null) {
+                encoded[slot.ordinal()] = escape(slot.ordinal() < values.length ? values[slot.ordinal()] : null);
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Largest size of the rendered payload, whatever the device's badge.
+     */
+    int size(int keepSegments, byte[][] encoded) {
+        int keep = keepSegments < 0 ? segmentCount : keepSegments;
+
+        int size = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] > keep) continue;
+            if (slots[i] == Slot.BADGE) size += BADGE_RESERVE;
+            else size += slots[i] == null ? literals[i].length : valueOf(encoded, slots[i]).length;
+        }
+        return size;
+    }
+
+    Payload payload(int keepSegments, byte[][] encoded) {
+        int keep = keepSegments < 0 ? segmentCount : keepSegments;
+
+        int size = 0;
+        int badges = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] > keep) continue;
+            if (slots[i] == Slot.BADGE) badges++;
+            else size += slots[i] == null ? literals[i].length : valueOf(encoded, slots[i]).length;
+        }
+
+        byte[] bytes = new byte[size];
+        int[] badgeOffsets = badges == 0 ? null : new int[badges];
+        int offset = 0;
+        badges = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] > keep) continue;
+            if (slots[i] == Slot.BADGE) {
+                badgeOffsets[badges++] = offset;
+                continue;
+            }
+            byte[] piece = slots[i] == null ? literals[i] : valueOf(encoded, slots[i]);
+            System.arraycopy(piece, 0, bytes, offset, piece.length);
+            offset += piece.length;
+        }
+        return new Payload(bytes, badgeOffsets);
+    }
+
+    private static byte[] valueOf(byte[][] encoded, Slot slot) {
+        byte[] value = encoded[slot.ordinal()];
+        return value == null ? EMPTY : value;
+    }
+
+    /**
+     * JSON string escaping, straight to UTF-8.
+     */
+    static byte[] escape(String value) {
+        if (value == null) return EMPTY;
+
+        byte[] utf8 = value.getBytes(UTF8);
+        int extra = 0;
+        for (byte b : utf8) {
+            if (b == '"' || b == '\\') extra += 1;
+            else if (b >= 0 && b < 0x20) extra += 5;
+        }
+        if (extra == 0) return utf8;
+
+        byte[] escaped = new byte[utf8.length + extra];
+        int i = 0;
+        for (byte b : utf8) {
+            if (b == '"' || b == '\\') {
+                escaped[i++] = '\\';
+                escaped[i++] = b;
+            }
+            else if (b >= 0 && b < 0x20) {
+                escaped[i++] = '\\';
+                escaped[i++] = 'u';
+                escaped[i++] = '0';
+                escaped[i++] = '0';
+                escaped[i++] = HEX[b >> 4];
+                escaped[i++] = HEX[b & 0xf];
+            }
+            else {
+                escaped[i++] = b;
+            }
+        }
+        return escaped;
+    }
+
+    private static Slot slotFor(String placeholder) {
+        for (Slot slot : Slot.values()) {
+            if (slot.getPlaceholder().equals(placeholder)) return slot;
+        }
+        throw new IllegalArgumentException("Unknown placeholder: " + placeholder);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
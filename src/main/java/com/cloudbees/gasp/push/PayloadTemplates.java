@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.config.Config;
+import com.cloudbees.gasp.services.SNSMobile;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Per-entity, per-platform notification templates.
+ * <p>
+ * Templates are read from push-templates.properties on the classpath, then
+ * from the file named by PUSH_TEMPLATES (if set), which overrides it. Keys
+ * are [entity].[platform], e.g. reviews.apns or restaurants.gcm, falling
+ * back to default.apns / default.gcm / default.adm. All templates are compiled and checked
+ * to render valid JSON when first used, so a bad template is reported at
+ * startup rather than on a broadcast.
+ */
+public final class PayloadTemplates {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PayloadTemplates.class.getName());
+
+    private static final String templatesResource = "push-templates.properties";
+    private static final String defaultEntity = "default";
+
+    private PayloadTemplates() {
+        throw new UnsupportedOperationException();
+    }
+
+    // Lazy holder: loaded and compiled once
+    private static class Holder {
+        static final Map<String, PayloadTemplate> templates = load();
+    }
+
+    /**
+     * Gets the template for an entity type (e.g. "reviews") on a platform.
+     */
+    public static PayloadTemplate get(String entity, SNSMobile.Platform platform) {
+        String suffix = "." + platformKey(platform);
+        PayloadTemplate template = Holder.templates.get(entity + suffix);
+        if (template == null) {
+            template = Holder.templates.get(defaultEntity + suffix);
+        }
+        if (template == null) {
+            throw new IllegalArgumentException("No payload template for " + entity + suffix);
+        }
+        return template;
+    }
+
+    /**
+     * Forces the templates to load, so that configuration errors are
+     * reported at startup.
+     */
+    public static void initialize() {
+        for (Map.Entry<String, PayloadTemplate> entry : Holder.templates.entrySet()) {
+            LOGGER.info("Payload template " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
+    static String platformKey(SNSMobile.Platform platform) {
+        switch (platform) {
+            case APNS:
+            case APNS_SANDBOX:
+                return "apns";
+            case GCM:
+                return "gcm";
+            default:
+                return platform.name().toLowerCase();
+        }
+    }
+
+    private static Map<String, PayloadTemplate> load() {
+        Properties properties = new Properties();
+        InputStream in = PayloadTemplates.class.getClassLoader().getResourceAsStream(templatesResource);
+        try {
+            if (in != null) {
+                properties.load(new InputStreamReader(in, "UTF-8"));
+                in.close();
+            }
+            String file = Config.get("PUSH_TEMPLATES");
+            if (file != null) {
+                in = new FileInputStream(file);
+                properties.load(new InputStreamReader(in, "UTF-8"));
+                in.close();
+                LOGGER.info("Loaded payload templates from " + file);
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Cannot load payload templates: " + e.getMessage(), e);
+        }
+
+        Map<String, PayloadTemplate> templates = new HashMap<String, PayloadTemplate>();
+        for (String key : properties.stringPropertyNames()) {
+            PayloadTemplate template = PayloadTemplate.compile(properties.getProperty(key).trim());
+            try {
+                new JsonParser().parse(template.render("type", "1", "text", "1", "false").withBadge(1).toString());
+            }
+            catch (JsonParseException e) {
+                throw new IllegalArgumentException("Payload template " + key + " is not valid JSON: "
+                        + template, e);
+            }
+            templates.put(key, template);
+        }
+        return templates;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+
+/**
+ * Thrown before any publish when an event's payload cannot be made to fit
+ * the platform's limit, even after truncation and dropping optional fields.
+ */
+public class PayloadTooLargeException extends RuntimeException {
+    private final SNSMobile.Platform platform;
+    private final int size;
+    private final int limit;
+
+    public PayloadTooLargeException(SNSMobile.Platform platform, int size, int limit) {
+        super(platform.name() + " payload is " + size + " bytes, limit is " + limit);
+        this.platform = platform;
+        this.size = size;
+        this.limit = limit;
+    }
+
+    public SNSMobile.Platform getPlatform() {
+        return platform;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import org.apache.commons.codec.binary.Base64;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.spec.PKCS8EncodedKeySpec;
+
+/**
+ * Builds a client SSLContext from the PEM certificate and private key
+ * decrypted by the CredentialsProvider (see README for the openssl steps).
+ * <p>
+ * Both "BEGIN PRIVATE KEY" (PKCS#8) and "BEGIN RSA PRIVATE KEY" (PKCS#1)
+ * keys are accepted, depending on the openssl version used for export.
+ */
+public final class PemKeys {
+    private static final char[] keyStorePassword = "gasp".toCharArray();
+
+    // AlgorithmIdentifier for rsaEncryption (1.2.840.113549.1.1.1) with NULL parameters
+    private static final byte[] rsaAlgorithm = {
+            0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86,
+            (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01, 0x05, 0x00
+    };
+
+    private PemKeys() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static SSLContext createSSLContext(String certificatePem, String keyPem)
+            throws GeneralSecurityException {
+        Certificate certificate = CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(decodePem(certificatePem)));
+
+        byte[] keyBytes = decodePem(keyPem);
+        if (keyPem.contains("BEGIN RSA PRIVATE KEY")) {
+            keyBytes = pkcs1ToPkcs8(keyBytes);
+        }
+        PrivateKey key = KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(keyBytes));
+
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        try {
+            keyStore.load(null, null);
+        }
+        catch (java.io.IOException e) {
+            throw new GeneralSecurityException(e.getMessage());
+        }
+        keyStore.setKeyEntry("apns", key, keyStorePassword, new Certificate[] { certificate });
+
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, keyStorePassword);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), null, null);
+        return context;
+    }
+
+    private static byte[] decodePem(String pem) throws GeneralSecurityException {
+        if (pem == null || pem.length() == 0) {
+            throw new GeneralSecurityException("No PEM data");
+        }
+        StringBuilder base64 = new StringBuilder();
+        for (String line : pem.split("\r?\n")) {
+            if (!line.startsWith("-----")) base64.append(line.trim());
+        }
+        return Base64.decodeBase64(base64.toString());
+    }
+
+    private static byte[] pkcs1ToPkcs8(byte[] pkcs1) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write(0x02);    // INTEGER 0 (version)
+        content.write(0x01);
+        content.write(0x00);
+        content.write(rsaAlgorithm, 0, rsaAlgorithm.length);
+        byte[] octets = der(0x04, pkcs1);
+        content.write(octets, 0, octets.length);
+        return der(0x30, content.toByteArray());
+    }
+
+    private static byte[] der(int tag, byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        int length = content.length;
+        if (length < 0x80) {
+            out.write(length);
+        }
+        else {
+            int bytes = length > 0xffffff ? 4 : length > 0xffff ? 3 : length > 0xff ? 2 : 1;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                out.write((length >>> (8 * i)) & 0xff);
+            }
+        }
+        out.write(content, 0, content.length);
+        return out.toByteArray();
+    }
+}
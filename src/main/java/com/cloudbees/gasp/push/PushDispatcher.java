@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.jfr.FanoutEvent;
+import com.cloudbees.gasp.services.PlatformApplication;
+import com.cloudbees.gasp.services.SNSMobile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs delivery jobs in the background, so a sync request returns as soon
+ * as its payloads have been rendered.
+ * <p>
+ * Each platform application has its own pool (DISPATCH_THREADS sends at
+ * once, see PlatformApplication) and queue, so a large broadcast for one
+ * application does not hold up deliveries for another.
+ * <p>
+ * The audience is resolved when the job starts, so devices registered
+ * while a job is queued still receive it.
+ * <p>
+ * Unless the job is high priority, sends are paced when PACING_FETCH_CAPACITY
+ * is set (see Pacing): the transport is given one pacing slot of devices at
+ * a time. While the budget is taken the send waits on a timer, not holding
+ * a dispatcher thread, and is queued again when the budget is free, with
+ * the audience it resolved when it started.
+ * <p>
+ * A dry-run job is sent through DryRunTransport and does not count towards
+ * badges. Rather than take from the pacing budget, it records the limits
+ * its send would meet, and the time taken to resolve its audience and to
+ * fan out, for its DryRunReport.
+ */
+public final class PushDispatcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PushDispatcher.class.getName());
+
+    private static final Map<SNSMobile.Platform, ThreadPoolExecutor> executors = createExecutors();
+    // Paced sends waiting for the pacing budget
+    private static final ScheduledExecutorService pacer = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("gasp-pacing").daemon().factory());
+
+    private PushDispatcher() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Queues a job's send to every platform. Each platform's send is queued
+     * separately, so a slow platform does not hold up the others.
+     */
+    public static void submit(DeliveryJob job) {
+        for (SNSMobile.Platform platform : job.getPayloads().keySet()) {
+            submit(job, platform);
+        }
+    }
+
+    /**
+     * Queues a job's send to one platform (see DeliveryScheduler).
+     */
+    public static void submit(DeliveryJob job, SNSMobile.Platform platform) {
+        executor(platform).execute(() -> dispatch(job, platform));
+    }
+
+    /**
+     * Queues the rest of a platform send that its transport deferred, or a
+     * send that waited for the send it superseded to finish.
+     */
+    static void resume(DeliveryJob job, SNSMobile.Platform platform) {
+        executor(platform).execute(() -> run(job, platform));
+    }
+
+    /**
+     * Platform sends waiting for a dispatcher thread, for all applications.
+     */
+    public static int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor executor : executors.values()) {
+            depth += executor.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * Sends waiting for one platform application's dispatcher threads.
+     */
+    public static int getQueueDepth(SNSMobile.Platform platform) {
+        ThreadPoolExecutor executor = executors.get(platform);
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    public static void shutdown() {
+        pacer.shutdownNow();
+        for (ThreadPoolExecutor executor : executors.values()) {
+            executor.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        for (Map.Entry<SNSMobile.Platform, ThreadPoolExecutor> entry : executors.entrySet()) {
+            ThreadPoolExecutor executor = entry.getValue();
+            try {
+                if (!executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()),
+                                               TimeUnit.MILLISECONDS)) {
+                    LOGGER.error("Abandoning " + executor.shutdownNow().size() + " queued "
+                            + entry.getKey().name() + " delivery jobs");
+                }
+            }
+            catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    static void dispatch(DeliveryJob job, SNSMobile.Platform platform) {
+        job.started();
+        if (job.startPlatform(platform)) {
+            run(job, platform);
+        }
+        else {
+            LOGGER.info("Job " + job.getId() + ": " + platform.name() + " send superseded by job "
+                    + job.getSupersededBy());
+            job.platformFinished(platform);
+        }
+    }
+
+    private static void run(DeliveryJob job, SNSMobile.Platform platform) {
+        // Rather than hold a dispatcher thread, the send is queued again when the superseded send finishes
+        if (job.waitsForPredecessor(platform)) {
+            LOGGER.info("Job " + job.getId() + ": " + platform.name() + " send waits for the superseded send to stop");
+            return;
+        }
+        run(job, platform, null);
+    }
+
+    // Starts a platform send, or continues a paced one, and then queues whatever comes next
+    private static void run(DeliveryJob job, SNSMobile.Platform platform, Send paced) {
+        Send send = paced;
+        long pacedUntil = 0;
+        try {
+            if (send == null) send = start(job, platform, job.getPayloads().get(platform), Pacing.get());
+            else job.resumeSlot(platform);
+            if (send != null) pacedUntil = send(job, platform, send, Pacing.get());
+        }
+        catch (Exception e) {
+            LOGGER.error("Delivery job " + job.getId() + " failed for " + platform.name() + ": " + e.getMessage());
+            job.failed(platform, e);
+        }
+        if (pacedUntil > 0) {
+            // Pacing waits are short and frequent, so they are neither journaled nor released in waves
+            Send continued = send;
+            pacer.schedule(() -> executor(platform).execute(() -> run(job, platform, continued)),
+                           Math.max(0, pacedUntil - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        else if (job.isDeferred(platform)) {
+            DeliveryScheduler.defer(job, platform, job.getScheduledAt(platform));
+        }
+        else {
+            job.platformFinished(platform);
+        }
+    }
+
+    /**
+     * Resolves the audience of a platform send.
+     *
+     * @return the send, or null if there are no devices left to send to
+     */
+    private static Send start(DeliveryJob job, SNSMobile.Platform platform, Payload payload, Pacing pacing) {
+        boolean continuing = job.isDeferred(platform);
+        int from = job.resumeSlot(platform);
+        if (from == Integer.MAX_VALUE) {
+            LOGGER.info("Job " + job.getId() + ": superseded job already reached every " + platform.name() + " device");
+            return null;
+        }
+        if (continuing) {
+            LOGGER.info("Job " + job.getId() + ": continuing deferred " + platform.name() + " send from slot " + from);
+        }
+        else if (from > 0) {
+            LOGGER.info("Job " + job.getId() + ": " + platform.name() + " send continues from slot " + from);
+        }
+
+        long resolving = System.nanoTime();
+        List<Registration> targets = fromSlot(getRegistrations(platform), from);
+        long audienceNanos = System.nanoTime() - resolving;
+        if (targets.isEmpty()) return null;
+
+        if (!continuing) job.targeted(platform, targets.size());
+
+        // Each APN device's badge counts the pushes sent to it: reserved a slice at a time (a dry run reserves none)
+        BadgeCounters badgeCounters = null;
+        if ((platform == SNSMobile.Platform.APNS || platform == SNSMobile.Platform.APNS_SANDBOX)
+                && payload.hasBadge()) {
+            badgeCounters = PlatformApplication.get(platform).getBadgeCounters();
+            if (job.isDryRun()) {
+                payload = payload.withBadges(badgeCounters);
+                badgeCounters = null;
+            }
+        }
+
+        PushTransport transport = job.isDryRun() ? DryRunTransport.INSTANCE : PushTransports.forPlatform(platform);
+        if (job.isDryRun()) job.measured(platform, DryRunReport.limits(job, platform, targets));
+        Send send = new Send(job, platform, targets, payload, transport);
+        send.badgeCounters = badgeCounters;
+        send.audienceNanos = audienceNanos;
+        if (isPaced(job, pacing) && !continuing) {
+            LOGGER.info("Job " + job.getId() + ": pacing " + targets.size() + " " + platform.name()
+                    + " devices over " + pacing.getWindowMillis(targets.size()) / 1000 + " s");
+        }
+        return send;
+    }
+
+    /**
+     * Sends a platform send's targets, or as many of them as the pacing
+     * budget allows.
+     *
+     * @return when a paced send is to continue, or 0
+     */
+    static long send(DeliveryJob job, SNSMobile.Platform platform, Send send, Pacing pacing) {
+        long sending = System.nanoTime();
+        long pacedUntil = 0;
+        if (isPaced(job, pacing)) {
+            pacedUntil = sendPaced(job, platform, send, pacing);
+        }
+        else {
+            transmit(job, platform, send, send.targets);
+        }
+        send.sendNanos += System.nanoTime() - sending;
+        if (pacedUntil == 0) sent(job, platform, send);
+        return pacedUntil;
+    }
+
+    private static boolean isPaced(DeliveryJob job, Pacing pacing) {
+        return pacing.isEnabled() && !job.isHighPriority() && !job.isDryRun();
+    }
+
+    /**
+     * Sends a pacing slot of targets at a time while the pacing budget is
+     * free.
+     *
+     * @return when the budget is free again, for the rest of the send, or 0
+     */
+    private static long sendPaced(DeliveryJob job, SNSMobile.Platform platform, Send send, Pacing pacing) {
+        List<Registration> targets = send.targets;
+        int slotSize = pacing.getSlotSize();
+        while (send.next < targets.size()) {
+            int from = send.next;
+            if (job.isCancelled()) {
+                // Unless the transport already stopped within the last pacing slot
+                if (!job.isStopped(platform)) job.stopped(platform, targets.get(from));
+                return 0;
+            }
+            int to = Math.min(targets.size(), from + slotSize);
+            long retryAt = pacing.tryAcquire(to - from);
+            if (retryAt > 0) {
+                job.deferred(platform, targets.get(from), retryAt);
+                return retryAt;
+            }
+            send.next = to;
+            transmit(job, platform, send, targets.subList(from, to));
+            if (job.isDeferred(platform)) return 0;
+        }
+        return 0;
+    }
+
+    // Hands a slice of targets to the transport, with their badges reserved in bulk first
+    private static void transmit(DeliveryJob job, SNSMobile.Platform platform, Send send, List<Registration> slice) {
+        if (send.badgeCounters == null) {
+            send.transport.send(platform, slice, send.payload, job);
+            return;
+        }
+        BadgeCounters.Reservation reservation = send.badgeCounters.reserve(slice);
+        job.reserved(platform, reservation);
+        try {
+            send.transport.send(platform, slice, send.payload.withBadges(reservation), job);
+        }
+        finally {
+            job.reserved(platform, null);
+            int released = reservation.release();
+            if (released > 0) {
+                LOGGER.debug("Job " + job.getId() + ": gave back " + released + " undelivered " + platform.name() + " badges");
+            }
+        }
+    }
+
+    // Records a platform send once it is over, however many pacing slots it took
+    private static void sent(DeliveryJob job, SNSMobile.Platform platform, Send send) {
+        job.timed(platform, send.audienceNanos, send.sendNanos);
+        int sent = job.getSent(platform) - send.sentBefore;
+        int failed = job.getFailed(platform) - send.failedBefore;
+
+        FanoutEvent event = send.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.entityType = job.getType();
+            event.entityId = job.getEntityId();
+            event.jobId = job.getId();
+            event.platform = platform.name();
+            event.transport = send.transport.getName();
+            event.targets = send.targets.size();
+            event.sent = sent;
+            event.failed = failed;
+            event.commit();
+        }
+        LOGGER.info("Job " + job.getId() + ": sent update to " + sent + "/" + send.targets.size()
+                + " " + platform.name() + " devices via " + send.transport.getName()
+                + " in " + (System.currentTimeMillis() - send.startedAt) + " ms");
+    }
+
+    private static List<Registration> getRegistrations(SNSMobile.Platform platform) {
+        return PlatformApplication.get(platform).getRegistry().getRegistrations();
+    }
+
+    private static ThreadPoolExecutor executor(SNSMobile.Platform platform) {
+        ThreadPoolExecutor executor = executors.get(platform);
+        if (executor == null) {
+            throw new IllegalArgumentException("Platform application not enabled: " + platform.name());
+        }
+        return executor;
+    }
+
+    /**
+     * The targets from the given slot on: targets are in slot order.
+     */
+    private static List<Registration> fromSlot(List<Registration> targets, int slot) {
+        int low = 0;
+        int high = targets.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (targets.get(mid).getSlot() < slot) low = mid + 1;
+            else high = mid;
+        }
+        return low == 0 ? targets : targets.subList(low, targets.size());
+    }
+
+    // Jobs block on their transport's sends, so they run on virtual threads
+    private static Map<SNSMobile.Platform, ThreadPoolExecutor> createExecutors() {
+        Map<SNSMobile.Platform, ThreadPoolExecutor> map
+                = new EnumMap<SNSMobile.Platform, ThreadPoolExecutor>(SNSMobile.Platform.class);
+        for (PlatformApplication application : PlatformApplication.all()) {
+            int threads = application.getDispatchThreads();
+            map.put(application.getPlatform(), new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    Thread.ofVirtual().name("gasp-dispatch-" + application.getName().toLowerCase() + "-", 1).factory()));
+        }
+        return map;
+    }
+
+    /**
+     * A platform send: the audience resolved when it started, and how far
+     * it has got. A paced send carries it over while it waits for the
+     * pacing budget, so the audience is resolved once per send.
+     */
+    static final class Send {
+        final List<Registration> targets;
+        final Payload payload;
+        final PushTransport transport;
+        // Reserved from for each slice, or null if the payload has no badge (or is a dry run)
+        BadgeCounters badgeCounters;
+        final FanoutEvent event = new FanoutEvent();
+        final long startedAt = System.currentTimeMillis();
+        // The job's counts when the send started
+        final int sentBefore;
+        final int failedBefore;
+        long audienceNanos;
+        long sendNanos;
+        // The next target to send to
+        int next;
+
+        Send(DeliveryJob job, SNSMobile.Platform platform, List<Registration> targets, Payload payload,
+             PushTransport transport) {
+            this.targets = targets;
+            this.payload = payload;
+            this.transport = transport;
+            this.sentBefore = job.getSent(platform);
+            this.failedBefore = job.getFailed(platform);
+            event.begin();
+        }
+    }
+}
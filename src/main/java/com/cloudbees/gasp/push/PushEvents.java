@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.jfr.PublishEvent;
+import com.cloudbees.gasp.services.SNSMobile;
+
+/**
+ * Fills in and commits the JFR events recorded by the transports.
+ */
+final class PushEvents {
+
+    private PushEvents() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Commits a publish event that has been begun, if it is enabled and over
+     * its threshold: the fields are only filled in for events that are kept.
+     */
+    static void commitPublish(PublishEvent event, SNSMobile.Platform platform, String target, int devices,
+                              String errorCode, DeliveryListener listener) {
+        event.end();
+        if (!event.shouldCommit()) return;
+
+        if (listener instanceof DeliveryJob job) {
+            event.entityType = job.getType();
+            event.entityId = job.getEntityId();
+            event.jobId = job.getId();
+        }
+        event.platform = platform.name();
+        event.target = target;
+        event.devices = devices;
+        event.errorCode = errorCode;
+        event.commit();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+
+import java.util.List;
+
+/**
+ * Delivers one platform payload to a set of registered devices.
+ * <p>
+ * Implementations are shared by all fan-outs and must be thread-safe.
+ */
+public interface PushTransport {
+
+    /**
+     * Name used in configuration and logs (e.g. "sns", "apns").
+     */
+    String getName();
+
+    /**
+     * Sends the payload to every target: failures for individual devices
+     * are reported to the listener and do not stop the remaining sends.
+     * Transports that can vary the payload per device send
+     * payload.forTarget(target).
+     */
+    void send(SNSMobile.Platform platform, List<Registration> targets, Payload payload,
+              DeliveryListener listener);
+
+    /**
+     * Releases connections held by the transport.
+     */
+    void close();
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.PushServlet;
+import com.cloudbees.gasp.config.Config;
+import com.cloudbees.gasp.services.PlatformApplication;
+import com.cloudbees.gasp.services.SNSMobile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Selects the transport for each platform: SNS unless overridden with
+ * APNS_TRANSPORT=apns (for APNS and APNS_SANDBOX) or GCM_TRANSPORT=gcm.
+ * Each platform application gets its own transport instance.
+ */
+public final class PushTransports {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PushTransports.class.getName());
+
+    private static final Map<SNSMobile.Platform, PushTransport> transports
+            = new EnumMap<SNSMobile.Platform, PushTransport>(SNSMobile.Platform.class);
+
+    private PushTransports() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static PushTransport forPlatform(SNSMobile.Platform platform) {
+        synchronized (transports) {
+            PushTransport transport = transports.get(platform);
+            if (transport == null) {
+                transport = create(platform);
+                transports.put(platform, transport);
+                LOGGER.info("Using " + transport.getName() + " transport for " + platform.name());
+            }
+            return transport;
+        }
+    }
+
+    public static void closeAll() {
+        synchronized (transports) {
+            for (PushTransport transport : transports.values()) {
+                transport.close();
+            }
+            transports.clear();
+        }
+    }
+
+    /**
+     * The name of the transport configured for a platform, without
+     * creating it.
+     */
+    public static String getName(SNSMobile.Platform platform) {
+        switch (platform) {
+            case APNS:
+            case APNS_SANDBOX:
+                return "apns".equalsIgnoreCase(Config.get("APNS_TRANSPORT", "sns")) ? "apns" : "sns";
+            case GCM:
+                return "gcm".equalsIgnoreCase(Config.get("GCM_TRANSPORT", "sns")) ? "gcm" : "sns";
+            default:
+                return "sns";
+        }
+    }
+
+    private static PushTransport create(SNSMobile.Platform platform) {
+        switch (platform) {
+            case APNS:
+            case APNS_SANDBOX:
+                if ("apns".equalsIgnoreCase(Config.get("APNS_TRANSPORT", "sns"))) {
+                    return new ApnsTransport(platform, PushServlet.getCredentialsProvider());
+                }
+                return createSNSTransport(platform);
+
+            case GCM:
+                if ("gcm".equalsIgnoreCase(Config.get("GCM_TRANSPORT", "sns"))) {
+                    return new GcmTransport(PushServlet.getCredentialsProvider());
+                }
+                return createSNSTransport(platform);
+
+            default:
+                return createSNSTransport(platform);
+        }
+    }
+
+    // Publishes for each platform application, in each region, have their own concurrency and rate budget
+    private static PushTransport createSNSTransport(SNSMobile.Platform platform) {
+        PlatformApplication application = PlatformApplication.get(platform);
+        Map<String, Fanout> fanouts = new LinkedHashMap<String, Fanout>();
+        Map<String, RateLimiter> rateLimiters = new HashMap<String, RateLimiter>();
+        for (String region : PlatformApplication.getRegions()) {
+            fanouts.put(region, new Fanout("gasp-sns-" + platform.name().toLowerCase() + "-" + region,
+                                           application.getPublishConcurrency()));
+            rateLimiters.put(region, application.getPublishRate(region));
+        }
+        return new SNSTransport(fanouts, rateLimiters);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.config.Config;
+import com.cloudbees.gasp.services.SNSMobile;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+/**
+ * A daily window in which an audience should not be notified, e.g.
+ * "22:00-07:00 America/Los_Angeles" (the zone defaults to UTC). A window
+ * that ends before it starts runs over midnight.
+ * <p>
+ * Each platform's audience takes its rule from QUIET_HOURS_[platform]
+ * (e.g. QUIET_HOURS_GCM), falling back to QUIET_HOURS.
+ */
+public final class QuietHours {
+    private static final QuietHours NONE = new QuietHours(null, null, ZoneOffset.UTC);
+
+    private final LocalTime start;
+    private final LocalTime end;
+    private final ZoneId zone;
+
+    private QuietHours(LocalTime start, LocalTime end, ZoneId zone) {
+        this.start = start;
+        this.end = end;
+        this.zone = zone;
+    }
+
+    public static QuietHours forPlatform(SNSMobile.Platform platform) {
+        return parse(Config.get("QUIET_HOURS_" + platform.name(), Config.get("QUIET_HOURS", "")));
+    }
+
+    /**
+     * Parses "HH:mm-HH:mm [zone]"; an empty rule has no quiet hours.
+     */
+    public static QuietHours parse(String rule) {
+        String trimmed = rule == null ? "" : rule.trim();
+        if (trimmed.isEmpty()) return NONE;
+
+        try {
+            String[] parts = trimmed.split("\\s+");
+            String[] times = parts[0].split("-");
+            if (parts.length > 2 || times.length != 2) {
+                throw new IllegalArgumentException("Expected HH:mm-HH:mm [zone]: " + rule);
+            }
+            ZoneId zone = parts.length == 2 ? ZoneId.of(parts[1]) : ZoneOffset.UTC;
+            return new QuietHours(LocalTime.parse(times[0]), LocalTime.parse(times[1]), zone);
+        }
+        catch (DateTimeException e) {
+            throw new IllegalArgumentException("Invalid quiet hours " + rule + ": " + e.getMessage());
+        }
+    }
+
+    public boolean isEmpty() {
+        return start == null || start.equals(end);
+    }
+
+    /**
+     * Gets the earliest time at or after the given time that is outside the
+     * quiet hours.
+     */
+    public long nextAllowed(long millis) {
+        if (isEmpty()) return millis;
+
+        ZonedDateTime time = Instant.ofEpochMilli(millis).atZone(zone);
+        LocalTime local = time.toLocalTime();
+        boolean overnight = end.isBefore(start);
+        boolean quiet = overnight
+                ? !local.isBefore(start) || local.isBefore(end)
+                : !local.isBefore(start) && local.isBefore(end);
+        if (!quiet) return millis;
+
+        // The window ends today, or tomorrow if it started today and runs over midnight
+        ZonedDateTime endsAt = time.with(end);
+        if (!endsAt.isAfter(time)) {
+            endsAt = time.plusDays(1).with(end);
+        }
+        return endsAt.toInstant().toEpochMilli();
+    }
+
+    @Override
+    public String toString() {
+        return isEmpty() ? "none" : start + "-" + end + " " + zone;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out calls to at most a given rate, allowing a burst of up to a
+ * tenth of a second's worth after an idle spell.
+ * <p>
+ * Each call reserves the next free time slot under the lock and then
+ * sleeps until it, so waiting callers do not hold the lock. Callers are
+ * expected to be virtual threads, for which sleeping is cheap.
+ */
+public final class RateLimiter {
+    private final double permitsPerSecond;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private long next = System.nanoTime();
+
+    public RateLimiter(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.burstNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    }
+
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Waits for a permit.
+     *
+     * @return false if interrupted while waiting (the interrupt is kept)
+     */
+    public boolean acquire() {
+        long wait = reserve();
+        if (wait <= 0) return true;
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * How long a permit asked for now would wait, without taking one.
+     */
+    public synchronized long getWaitNanos() {
+        return Math.max(0, next - System.nanoTime());
+    }
+
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        // Unused time beyond the burst allowance is not saved up
+        if (now - next > burstNanos) next = now - burstNanos;
+        long wait = next - now;
+        next += intervalNanos;
+        return wait;
+    }
+
+    @Override
+    public String toString() {
+        return permitsPerSecond + "/s";
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+/**
+ * A registered device: the platform token and the SNS endpoint ARN
+ * created for it. SNS delivery uses the endpoint ARN, native delivery
+ * (APNs, GCM) uses the token.
+ */
+public final class Registration {
+    private final String token;
+    private final String endpointArn;
+    private final int slot;
+
+    public Registration(String token, String endpointArn, int slot) {
+        this.token = token;
+        this.endpointArn = endpointArn;
+        this.slot = slot;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getEndpointArn() {
+        return endpointArn;
+    }
+
+    /**
+     * The device's slot in its EndpointRegistry.
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    @Override
+    public String toString() {
+        return endpointArn != null ? endpointArn : token;
+    }
+}
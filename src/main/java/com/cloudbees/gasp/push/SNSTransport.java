@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.cloudbees.gasp.jfr.PublishEvent;
+import com.cloudbees.gasp.services.CircuitBreaker;
+import com.cloudbees.gasp.services.PlatformApplication;
+import com.cloudbees.gasp.services.SNSMobile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes to each device's SNS platform endpoint, one request per device.
+ * <p>
+ * Each publish blocks on the SNS client, so publishes run concurrently on
+ * virtual threads. Each platform application has its own transport, with
+ * its own limit on publishes in flight and optional publish rate (see
+ * PlatformApplication). Publishes beyond the SNS client's connection pool
+ * (SNS_MAX_CONNECTIONS) wait for a connection.
+ * <p>
+ * With several SNS regions (see PlatformApplication), each device is
+ * published to in the region of its endpoint. SNS quotas are per region,
+ * so each region has its own concurrency limit and rate budget, and the
+ * regions' publishes run in parallel.
+ * <p>
+ * While the platform application's CircuitBreaker is open no publishes are
+ * made: the rest of the send is deferred until the circuit half-opens. If
+ * the send is interrupted, the rest is deferred too. If
+ * a send is stopped or deferred, it continues from the first device not
+ * yet reached in any region, and each region skips the devices it had
+ * already reached (see DeliveryListener.reached), so no device is sent to
+ * twice.
+ */
+public class SNSTransport implements PushTransport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SNSTransport.class.getName());
+
+    private final SNSMobile snsMobile = new SNSMobile();
+    // Per region, the default region first
+    private final Map<String, Lane> lanes = new LinkedHashMap<String, Lane>();
+
+    private static final class Lane {
+        final String region;
+        final Fanout fanout;
+        final RateLimiter rateLimiter;
+
+        Lane(String region, Fanout fanout, RateLimiter rateLimiter) {
+            this.region = region;
+            this.fanout = fanout;
+            this.rateLimiter = rateLimiter;
+        }
+    }
+
+    public SNSTransport(Fanout fanout) {
+        this(fanout, null);
+    }
+
+    /**
+     * A transport that publishes in the default region only.
+     *
+     * @param rateLimiter the publish rate budget, or null for no limit
+     */
+    public SNSTransport(Fanout fanout, RateLimiter rateLimiter) {
+        this(Collections.singletonMap(PlatformApplication.getDefaultRegion(), fanout),
+             Collections.singletonMap(PlatformApplication.getDefaultRegion(), rateLimiter));
+    }
+
+    /**
+     * @param fanouts      the publish concurrency limit for each region
+     * @param rateLimiters the publish rate budget for each region (absent or
+     *                     null for no limit)
+     */
+    public SNSTransport(Map<String, Fanout> fanouts, Map<String, RateLimiter> rateLimiters) {
+        for (Map.Entry<String, Fanout> entry : fanouts.entrySet()) {
+            lanes.put(entry.getKey(), new Lane(entry.getKey(), entry.getValue(), rateLimiters.get(entry.getKey())));
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "sns";
+    }
+
+    @Override
+    public void send(SNSMobile.Platform platform, List<Registration> targets, Payload payload,
+                     DeliveryListener listener) {
+        // Each publish needs a permit from the platform's circuit breaker
+        CircuitBreaker breaker = CircuitBreaker.forPlatform(platform);
+        AtomicBoolean refused = new AtomicBoolean();
+
+        // Targets stay in slot order within each region, less those a continued send already reached
+        Map<Lane, Integer> reachedBefore = new HashMap<Lane, Integer>();
+        for (Lane lane : lanes.values()) {
+            reachedBefore.put(lane, listener.reachedBefore(platform, lane.region));
+        }
+        Map<Lane, List<Registration>> byLane = new LinkedHashMap<Lane, List<Registration>>();
+        for (Registration target : targets) {
+            Lane lane = lane(target);
+            if (target.getSlot() < reachedBefore.get(lane)) continue;
+            byLane.computeIfAbsent(lane, l -> new ArrayList<Registration>()).add(target);
+        }
+        if (byLane.isEmpty()) return;
+
+        Map<Lane, Integer> started = new LinkedHashMap<Lane, Integer>();
+        if (byLane.size() == 1) {
+            Map.Entry<Lane, List<Registration>> entry = byLane.entrySet().iterator().next();
+            started.put(entry.getKey(), publish(platform, entry.getKey(), entry.getValue(), payload, listener,
+                                                breaker, refused));
+        }
+        else {
+            started.putAll(publishInParallel(platform, byLane, payload, listener, breaker, refused));
+        }
+
+        // The first device not reached in any region, and how far each region got
+        Registration next = null;
+        for (Map.Entry<Lane, List<Registration>> entry : byLane.entrySet()) {
+            String region = entry.getKey().region;
+            List<Registration> laneTargets = entry.getValue();
+            int count = started.get(entry.getKey());
+            if (count < laneTargets.size()) {
+                Registration first = laneTargets.get(count);
+                if (next == null || first.getSlot() < next.getSlot()) next = first;
+                listener.reached(platform, region, first.getSlot());
+            }
+            else {
+                listener.reached(platform, region, laneTargets.get(laneTargets.size() - 1).getSlot() + 1);
+            }
+        }
+        if (next != null) {
+            if (listener.isCancelled()) {
+                listener.stopped(platform, next);
+            }
+            else if (refused.get()) {
+                LOGGER.warn("Circuit open for " + platform.name() + ", holding back publishes from slot "
+                        + next.getSlot());
+                listener.deferred(platform, next, breaker.getRetryAt());
+            }
+            else {
+                // Interrupted while waiting for a permit (e.g. on shutdown): the rest is deferred, not dropped
+                LOGGER.warn("Publishes to " + platform.name() + " interrupted, holding back publishes from slot "
+                        + next.getSlot());
+                listener.deferred(platform, next, System.currentTimeMillis());
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Map<Lane, Integer> publishInParallel(SNSMobile.Platform platform, Map<Lane, List<Registration>> byLane,
+                                                 Payload payload, DeliveryListener listener,
+                                                 CircuitBreaker breaker, AtomicBoolean refused) {
+        Map<Lane, Future<Integer>> futures = new LinkedHashMap<Lane, Future<Integer>>();
+        Map<Lane, Integer> started = new LinkedHashMap<Lane, Integer>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Map.Entry<Lane, List<Registration>> entry : byLane.entrySet()) {
+                futures.put(entry.getKey(), executor.submit(() -> publish(platform, entry.getKey(), entry.getValue(),
+                                                                          payload, listener, breaker, refused)));
+            }
+        }
+        for (Map.Entry<Lane, Future<Integer>> entry : futures.entrySet()) {
+            try {
+                started.put(entry.getKey(), entry.getValue().get());
+            }
+            catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+            catch (InterruptedException e) {
+                // close() waited for every region, so this is not expected
+                Thread.currentThread().interrupt();
+                started.put(entry.getKey(), 0);
+            }
+        }
+        return started;
+    }
+
+    /**
+     * Publishes to one region's targets.
+     *
+     * @return the number of targets published to before the send stopped
+     */
+    private int publish(SNSMobile.Platform platform, Lane lane, List<Registration> targets, Payload payload,
+                        DeliveryListener listener, CircuitBreaker breaker, AtomicBoolean refused) {
+        return lane.fanout.forEach(targets, target -> {
+            PublishEvent event = new PublishEvent();
+            String errorCode = null;
+            event.begin();
+            try {
+                LOGGER.debug("Sending update to " + platform.name() + " endpoint ARN: " + target.getEndpointArn());
+                snsMobile.pushNotification(platform, target.getEndpointArn(), payload.forTarget(target).toString());
+                listener.sent(platform, target);
+            } catch (AmazonServiceException ase) {
+                errorCode = ase.getErrorCode();
+                listener.failed(platform, target, errorCode);
+                LOGGER.debug("AmazonServiceException");
+                LOGGER.debug("  Error Message:    " + ase.getMessage());
+                LOGGER.debug("  HTTP Status Code: " + ase.getStatusCode());
+                LOGGER.debug("  AWS Error Code:   " + ase.getErrorCode());
+                LOGGER.debug("  Error Type:       " + ase.getErrorType());
+                LOGGER.debug("  Request ID:       " + ase.getRequestId());
+            } catch (AmazonClientException ace) {
+                errorCode = "ClientError";
+                listener.failed(platform, target, errorCode);
+                LOGGER.debug("AmazonClientException");
+                LOGGER.debug("  Error Message: " + ace.getMessage());
+            } finally {
+                PushEvents.commitPublish(event, platform, target.getEndpointArn(), 1, errorCode, listener);
+            }
+        }, () -> {
+            if (listener.isCancelled()) return true;
+            if (refused.get()) return true;
+            if (lane.rateLimiter != null && !lane.rateLimiter.acquire()) return true;
+            if (breaker.tryAcquire()) return false;
+            refused.set(true);
+            return true;
+        });
+    }
+
+    // The lane of the endpoint's region, or the default region's
+    private Lane lane(Registration target) {
+        Lane lane = lanes.get(SNSMobile.regionOf(target.getEndpointArn()));
+        return lane != null ? lane : lanes.values().iterator().next();
+    }
+
+    @Override
+    public void close() {
+        // The SNS client is owned by PushServlet
+    }
+}
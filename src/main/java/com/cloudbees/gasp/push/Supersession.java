@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the latest delivery job for each entity (type/id).
+ * <p>
+ * If an entity changes again while the job for its previous version is
+ * still queued or sending, the new job supersedes it: the old job sends to
+ * no more devices, and the new job's send to each platform starts from the
+ * slot where the old one stopped. Devices are sent in slot order, so during
+ * a burst of updates each device gets at most one push for the entity,
+ * carrying the latest version available when it was reached. A new job's
+ * send does not wait on a dispatcher thread for the old one to stop: it is
+ * queued again when the old send finishes. If the old send failed, the new
+ * one starts where the old one started.
+ */
+public final class Supersession {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Supersession.class.getName());
+
+    private static final ConcurrentHashMap<String, DeliveryJob> latest = new ConcurrentHashMap<String, DeliveryJob>();
+
+    private Supersession() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Makes a new job the latest for its entity, superseding the previous
+     * job if that has not finished. Call before the job is scheduled.
+     */
+    public static void track(DeliveryJob job) {
+        DeliveryJob previous = latest.put(key(job), job);
+        if (previous != null && previous.supersede(job)) {
+            DeliveryScheduler.cancel(previous);
+            LOGGER.info("Job " + job.getId() + " supersedes job " + previous.getId() + " for " + key(job));
+        }
+    }
+
+    /**
+     * Jobs being tracked: those not finished.
+     */
+    public static int size() {
+        return latest.size();
+    }
+
+    static void finished(DeliveryJob job) {
+        latest.remove(key(job), job);
+    }
+
+    private static String key(DeliveryJob job) {
+        return job.getType() + "/" + job.getEntityId();
+    }
+}
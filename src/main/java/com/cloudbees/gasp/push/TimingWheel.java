@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.push;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel: timers are inserted, cancelled and expired
+ * in O(1) (amortized), however many are pending.
+ * <p>
+ * Time is divided into ticks. Level 0 has one bucket per tick for the next
+ * 256 ticks; each higher level has 256 buckets each spanning a whole turn of
+ * the level below. When a lower level completes a turn, the next bucket of
+ * the level above is cascaded: its timers are re-inserted, landing in lower
+ * levels as their expiry approaches. Buckets are doubly-linked lists, so a
+ * timer can be cancelled without searching.
+ * <p>
+ * This class is not thread-safe: callers must synchronize.
+ */
+class TimingWheel<T> {
+    private static final int BITS = 8;
+    private static final int SIZE = 1 << BITS;
+    private static final int MASK = SIZE - 1;
+    private static final int LEVELS = 5;
+
+    /**
+     * A pending timer.
+     */
+    static final class Timer<T> {
+        final long expiresAt;
+        final T value;
+        private long tick;
+        private Timer<T> prev;
+        private Timer<T> next;
+        private Bucket<T> bucket;
+
+        Timer(long expiresAt, T value) {
+            this.expiresAt = expiresAt;
+            this.value = value;
+        }
+
+        boolean isPending() {
+            return bucket != null;
+        }
+    }
+
+    private static final class Bucket<T> {
+        Timer<T> head;
+        Timer<T> tail;
+
+        void add(Timer<T> timer) {
+            timer.bucket = this;
+            timer.prev = tail;
+            timer.next = null;
+            if (tail == null) head = timer;
+            else tail.next = timer;
+            tail = timer;
+        }
+
+        void remove(Timer<T> timer) {
+            if (timer.prev == null) head = timer.next;
+            else timer.prev.next = timer.next;
+            if (timer.next == null) tail = timer.prev;
+            else timer.next.prev = timer.prev;
+            timer.prev = null;
+            timer.next = null;
+            timer.bucket = null;
+        }
+
+        Timer<T> takeAll() {
+            Timer<T> all = head;
+            head = null;
+            tail = null;
+            return all;
+        }
+    }
+
+    private final long tickMillis;
+    private final Bucket<T>[][] levels;
+    // The next tick to be processed
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickMillis, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+        this.levels = new Bucket[LEVELS][SIZE];
+        for (Bucket<T>[] level : levels) {
+            for (int i = 0; i < SIZE; i++) {
+                level[i] = new Bucket<T>();
+            }
+        }
+    }
+
+    /**
+     * Adds a timer: one that is already due expires on the next advance.
+     */
+    Timer<T> add(long expiresAt, T value) {
+        Timer<T> timer = new Timer<T>(expiresAt, value);
+        timer.tick = Math.max(currentTick, expiresAt / tickMillis);
+        insert(timer);
+        size++;
+        return timer;
+    }
+
+    /**
+     * Cancels a timer.
+     *
+     * @return false if it had already expired or been cancelled
+     */
+    boolean cancel(Timer<T> timer) {
+        if (timer.bucket == null) return false;
+
+        timer.bucket.remove(timer);
+        size--;
+        return true;
+    }
+
+    /**
+     * Expires every timer due at or before now, in order of expiry tick.
+     */
+    void advance(long nowMillis, Consumer<T> expired) {
+        long nowTick = nowMillis / tickMillis;
+        while (currentTick <= nowTick) {
+            int index = (int) (currentTick & MASK);
+            // Cascade each level whose lower level has completed a turn
+            for (int level = 1; level < LEVELS && index == 0; level++) {
+                index = (int) ((currentTick >>> (BITS * level)) & MASK);
+                cascade(levels[level][index]);
+            }
+
+            Timer<T> timer = levels[0][(int) (currentTick & MASK)].takeAll();
+            while (timer != null) {
+                Timer<T> next = timer.next;
+                timer.prev = null;
+                timer.next = null;
+                timer.bucket = null;
+                size--;
+                expired.accept(timer.value);
+                timer = next;
+            }
+            currentTick++;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void cascade(Bucket<T> bucket) {
+        Timer<T> timer = bucket.takeAll();
+        while (timer != null) {
+            Timer<T> next = timer.next;
+            insert(timer);
+            timer = next;
+        }
+    }
+
+    private void insert(Timer<T> timer) {
+        long delta = timer.tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        long tick = timer.tick;
+        if (level == LEVELS - 1 && delta >= 1L << (BITS * LEVELS)) {
+            // Beyond the wheel's range: park in the furthest bucket and re-cascade from there
+            tick = currentTick + (1L << (BITS * LEVELS)) - 1;
+        }
+        levels[level][(int) ((tick >>> (BITS * level)) & MASK)].add(timer);
+    }
+}
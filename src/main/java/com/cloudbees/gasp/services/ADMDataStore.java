@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Google Inc.
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.services;
+
+import com.cloudbees.gasp.push.EndpointRegistry;
+import com.cloudbees.gasp.push.Registration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+
+/**
+ * Simple implementation of a data store using standard Java collections.
+ * <p>
+ * This class is thread-safe but not persistent (it will lost the data when the
+ * app is restarted) - it is meant just as an example.
+ */
+public final class ADMDataStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ADMDataStore.class.getName());
+
+    private ADMDataStore() {
+        throw new UnsupportedOperationException();
+    }
+
+    // The ADM application's partition of the device registry
+    private static EndpointRegistry registry() {
+        return PlatformApplication.get(SNSMobile.Platform.ADM).getRegistry();
+    }
+
+    /**
+     * Registers a device.
+     */
+    public static void registerArn(String regId, String endpointArn) {
+        LOGGER.debug("Registering Id: " + regId + " with endpoint Arn: " + endpointArn);
+
+        registry().register(regId, endpointArn);
+    }
+
+    /**
+     * Unregisters a device.
+     */
+    public static void unregisterArn(String regId) {
+        LOGGER.debug("Unregistering Id: " + regId + " with endpoint Arn: " + registry().getEndpointArn(regId));
+
+        registry().unregister(regId);
+    }
+
+    /**
+     * Gets all registered devices.
+     */
+    public static List<String> getEndpoints() {
+        return registry().getEndpoints();
+    }
+
+    /**
+     * Gets all registered devices with their tokens and slots.
+     */
+    public static List<Registration> getRegistrations() {
+        return registry().getRegistrations();
+    }
+
+    /**
+     * Gets the endpoint Arn for a given device Id
+     */
+    public static String getEndpointArn(String regId) {
+        return registry().getEndpointArn(regId);
+    }
+}
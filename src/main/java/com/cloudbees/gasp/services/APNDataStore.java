@@ -1,41 +1,42 @@
 /*
- * Copyright 2012 Google Inc.
  * Copyright (c) 2013 Mark Prichard, CloudBees
  *
- * Licensed under the Apache License, Version 2.0 (the "License"); you may not
- * use this file except in compliance with the License. You may obtain a copy of
- * the License at
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
  *
  * http://www.apache.org/licenses/LICENSE-2.0
  *
  * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
- * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
 
+
 package com.cloudbees.gasp.services;
 
+import com.cloudbees.gasp.push.BadgeCounters;
+import com.cloudbees.gasp.push.EndpointRegistry;
+import com.cloudbees.gasp.push.Registration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 
 /**
  * Simple implementation of a data store using standard Java collections.
  * <p>
+ * Devices are held in the registry of their platform application: APNS
+ * (production) or APNS_SANDBOX (development builds), see PlatformApplication.
+ * <p>
  * This class is thread-safe but not persistent (it will lost the data when the
  * app is restarted) - it is meant just as an example.
  */
 public final class APNDataStore {
 
-    private static final List<String> endpoints = new ArrayList<String>();
-    private static final Map<String, String> tokenMap = new HashMap<String, String>();
     private static final Logger LOGGER = LoggerFactory.getLogger(APNDataStore.class.getName());
 
     private APNDataStore() {
@@ -45,45 +46,65 @@ public final class APNDataStore {
     /**
      * Registers a device.
      */
-    public static void registerArn(String deviceToken, String endpointArn) {
-        LOGGER.debug("Registering device token: " + deviceToken + "with endpoint Arn: " + endpointArn);
-
-        synchronized (endpoints) {
-            endpoints.add(endpointArn);
-        }
-        synchronized (tokenMap) {
-            tokenMap.put(deviceToken, endpointArn);
-        }
+    public static void registerArn(SNSMobile.Platform platform, String deviceToken, String endpointArn) {
+        LOGGER.debug("Registering " + platform.name() + " device token: " + deviceToken
+                + " with endpoint Arn: " + endpointArn);
+
+        // A new device's slot may have been used by another device
+        BadgeCounters badgeCounters = getBadgeCounters(platform);
+        registry(platform).register(deviceToken, endpointArn, badgeCounters::reset);
     }
 
     /**
      * Unregisters a device.
      */
-    public static void unregisterArn(String deviceToken) {
-        String endpointArn = tokenMap.get(deviceToken);
-        LOGGER.debug("Unregistering device token: " + deviceToken + "with endpoint Arn: " + endpointArn);
-
-        synchronized (endpoints) {
-            endpoints.remove(endpointArn);
-        }
-        synchronized (tokenMap) {
-            tokenMap.remove(deviceToken);
-        }
+    public static void unregisterArn(SNSMobile.Platform platform, String deviceToken) {
+        EndpointRegistry registry = registry(platform);
+        LOGGER.debug("Unregistering " + platform.name() + " device token: " + deviceToken
+                + " with endpoint Arn: " + registry.getEndpointArn(deviceToken));
+
+        registry.unregister(deviceToken);
+    }
+
+    /**
+     * Clears the badge count for a device.
+     *
+     * @return false if the device is not registered
+     */
+    public static boolean resetBadge(SNSMobile.Platform platform, String deviceToken) {
+        int slot = registry(platform).getSlot(deviceToken);
+        if (slot < 0) return false;
+
+        getBadgeCounters(platform).reset(slot);
+        return true;
     }
 
     /**
      * Gets all registered devices.
      */
-    public static List<String> getEndpoints() {
-        synchronized (endpoints) {
-            return new ArrayList<String>(endpoints);
-        }
+    public static List<String> getEndpoints(SNSMobile.Platform platform) {
+        return registry(platform).getEndpoints();
+    }
+
+    /**
+     * Gets all registered devices with their tokens and slots.
+     */
+    public static List<Registration> getRegistrations(SNSMobile.Platform platform) {
+        return registry(platform).getRegistrations();
     }
 
     /**
      * Gets the endpoint Arn for a given device token
      */
-    public static String getEndpointArn(String deviceToken) {
-        return tokenMap.get(deviceToken);
+    public static String getEndpointArn(SNSMobile.Platform platform, String deviceToken) {
+        return registry(platform).getEndpointArn(deviceToken);
+    }
+
+    public static BadgeCounters getBadgeCounters(SNSMobile.Platform platform) {
+        return PlatformApplication.get(platform).getBadgeCounters();
+    }
+
+    private static EndpointRegistry registry(SNSMobile.Platform platform) {
+        return PlatformApplication.get(platform).getRegistry();
     }
 }
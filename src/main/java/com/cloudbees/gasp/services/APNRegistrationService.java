@@ -37,17 +37,34 @@ public class APNRegistrationService {
     @POST
     @Path("register")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
-    public Response doRegister(@FormParam("token") String token) {
+    public Response doRegister(@FormParam("token") String token,
+                               @FormParam("platform") String platformName,
+                               @FormParam("region") String regionName) {
+        SNSMobile.Platform platform = platform(platformName);
+        if (platform == null) return Response.status(Response.Status.NOT_FOUND).build();
+        String region = PlatformApplication.get(platform).regionFor(regionName);
+        if (region == null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("Unknown region: " + regionName).build();
+        }
+        Response rejected = AdmissionControl.REGISTRATION.admit();
+        if (rejected != null) return rejected;
+
         try {
             // Create an SNS app endpoint
             CreatePlatformEndpointResult platformEndpointResult =
-                    snsMobile.createPlatformEndpoint("Gasp APN Platform Endpoint",
+                    snsMobile.createPlatformEndpoint(platform,
+                                                     "Gasp APN Platform Endpoint",
                                                      token,
-                                                     snsMobile.getApnPlatformArn());
+                                                     PlatformApplication.get(platform).getArn(region));
 
-            APNDataStore.registerArn(token, platformEndpointResult.getEndpointArn());
+            APNDataStore.registerArn(platform, token, platformEndpointResult.getEndpointArn());
             LOGGER.info("Registered: " + platformEndpointResult.getEndpointArn());
 
+        } catch (CircuitOpenException coe) {
+            LOGGER.warn(coe.getMessage() + ", rejecting registration");
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", String.valueOf(coe.getRetryAfterSeconds()))
+                    .build();
         } catch (AmazonServiceException ase) {
             LOGGER.debug("AmazonServiceException");
             LOGGER.debug("  Error Message:    " + ase.getMessage());
@@ -60,6 +77,8 @@ public class APNRegistrationService {
             LOGGER.debug("AmazonClientException");
             LOGGER.debug("  Error Message: " + ace.getMessage());
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        } finally {
+            AdmissionControl.REGISTRATION.release();
         }
 
         return Response.status(Response.Status.OK).build();
@@ -68,13 +87,19 @@ public class APNRegistrationService {
     @POST
     @Path("unregister")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
-    public Response doUnregister(@FormParam("token") String token) {
+    public Response doUnregister(@FormParam("token") String token,
+                                 @FormParam("platform") String platformName) {
+        SNSMobile.Platform platform = platform(platformName);
+        if (platform == null) return Response.status(Response.Status.NOT_FOUND).build();
+        Response rejected = AdmissionControl.REGISTRATION.admit();
+        if (rejected != null) return rejected;
+
         try {
             // Delete the SNS app endpoint
-            snsMobile.deleteEndpointArn(APNDataStore.getEndpointArn(token));
-            LOGGER.info("Deleted endpoint: " + APNDataStore.getEndpointArn(token));
+            snsMobile.deleteEndpointArn(APNDataStore.getEndpointArn(platform, token));
+            LOGGER.info("Deleted endpoint: " + APNDataStore.getEndpointArn(platform, token));
 
-            APNDataStore.unregisterArn(token);
+            APNDataStore.unregisterArn(platform, token);
             LOGGER.info("Unregistered device: " + token);
 
         } catch (AmazonServiceException ase) {
@@ -89,8 +114,35 @@ public class APNRegistrationService {
             LOGGER.debug("AmazonClientException");
             LOGGER.debug("  Error Message: " + ace.getMessage());
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        } finally {
+            AdmissionControl.REGISTRATION.release();
+        }
+
+        return Response.status(Response.Status.OK).build();
+    }
+
+    @POST
+    @Path("badge/reset")
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    public Response doResetBadge(@FormParam("token") String token,
+                                 @FormParam("platform") String platformName) {
+        SNSMobile.Platform platform = platform(platformName);
+        if (platform == null || !APNDataStore.resetBadge(platform, token)) {
+            return Response.status(Response.Status.NOT_FOUND).build();
         }
+        LOGGER.info("Reset badge for device: " + token);
 
         return Response.status(Response.Status.OK).build();
     }
+
+    /**
+     * The APNs application a request is for: APNS_SANDBOX (development
+     * builds) unless platform=APNS, or null if that application is not run.
+     */
+    private static SNSMobile.Platform platform(String name) {
+        SNSMobile.Platform platform = name == null || name.isEmpty() || name.equalsIgnoreCase("APNS_SANDBOX")
+                ? SNSMobile.Platform.APNS_SANDBOX
+                : name.equalsIgnoreCase("APNS") ? SNSMobile.Platform.APNS : null;
+        return platform != null && PlatformApplication.isEnabled(platform) ? platform : null;
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.services;
+
+import com.cloudbees.gasp.config.Config;
+import com.cloudbees.gasp.push.PushDispatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.Response;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load shedding for the sync and registration endpoints, each with its own
+ * budget so a burst of one cannot starve the other.
+ * <p>
+ * A request is rejected straight away, rather than queued behind work that
+ * has already been accepted:
+ * 429 Too Many Requests when the endpoint's concurrent request budget is
+ * used up, 503 Service Unavailable when the work behind it is backed up
+ * (delivery jobs waiting for a dispatcher thread, or endpoint requests in
+ * flight to SNS). Both carry a Retry-After header.
+ * <p>
+ * Settings:
+ * SYNC_MAX_CONCURRENT, SYNC_MAX_QUEUE and SYNC_RETRY_AFTER_SECONDS;
+ * REGISTRATION_MAX_CONCURRENT, SNS_MAX_IN_FLIGHT and
+ * REGISTRATION_RETRY_AFTER_SECONDS.
+ */
+public abstract class AdmissionControl {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionControl.class.getName());
+
+    // Not in the JAX-RS 1.1 Response.Status enum
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Sync ingestion: limited by the number of delivery jobs queued.
+     */
+    public static final AdmissionControl SYNC = new AdmissionControl("sync",
+            Config.getInt("SYNC_MAX_CONCURRENT", 32),
+            Config.getInt("SYNC_RETRY_AFTER_SECONDS", 5)) {
+        private final int maxQueue = Config.getInt("SYNC_MAX_QUEUE", 100);
+
+        @Override
+        protected boolean isBackedUp() {
+            return PushDispatcher.getQueueDepth() >= maxQueue;
+        }
+    };
+
+    /**
+     * APN/GCM registration: each request waits on an SNS endpoint request,
+     * so it is limited by the number of those in flight. Fan-out publishes
+     * are not counted: a broadcast does not shut out registrations.
+     */
+    public static final AdmissionControl REGISTRATION = new AdmissionControl("registration",
+            Config.getInt("REGISTRATION_MAX_CONCURRENT", 16),
+            Config.getInt("REGISTRATION_RETRY_AFTER_SECONDS", 1)) {
+        private final int maxInFlight = Config.getInt("SNS_MAX_IN_FLIGHT", 64);
+
+        @Override
+        protected boolean isBackedUp() {
+            return SNSMobile.getEndpointRequestsInFlight() >= maxInFlight;
+        }
+    };
+
+    private final String name;
+    private final Semaphore permits;
+    private final int retryAfterSeconds;
+    private final AtomicLong rejected = new AtomicLong();
+
+    protected AdmissionControl(String name, int maxConcurrent, int retryAfterSeconds) {
+        this.name = name;
+        this.permits = new Semaphore(Math.max(1, maxConcurrent));
+        this.retryAfterSeconds = Math.max(1, retryAfterSeconds);
+    }
+
+    protected abstract boolean isBackedUp();
+
+    /**
+     * Admits a request, which must call release() when it completes.
+     *
+     * @return null if the request is admitted, otherwise the response to reject it with
+     */
+    public Response admit() {
+        if (isBackedUp()) {
+            return reject(Response.Status.SERVICE_UNAVAILABLE.getStatusCode());
+        }
+        if (!permits.tryAcquire()) {
+            return reject(TOO_MANY_REQUESTS);
+        }
+        return null;
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private Response reject(int status) {
+        long count = rejected.incrementAndGet();
+        // Log the first rejection of a burst and then every 1000th
+        if (count % 1000 == 1) {
+            LOGGER.warn("Rejecting " + name + " requests (" + status + "), " + count + " rejected so far");
+        }
+        return Response.status(status).header("Retry-After", String.valueOf(retryAfterSeconds)).build();
+    }
+}
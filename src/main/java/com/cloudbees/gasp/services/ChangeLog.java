@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.services;
+
+import com.cloudbees.gasp.config.Config;
+import com.google.gson.JsonObject;
+
+import javax.ws.rs.core.EntityTag;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/**
+ * The most recent entity changes received by DataSyncService, numbered in
+ * order, in a fixed-size ring buffer (CHANGE_LOG_SIZE, default 10000).
+ * Each push carries its change's sequence number (${seq}), so a device can
+ * fetch what changed since its last sync from ChangeService instead of
+ * calling the origin server for each entity.
+ * <p>
+ * A broadcast makes every device ask for the same few changes at once, so
+ * responses are built per window of CHANGE_FEED_WINDOW sequence numbers
+ * (default 100): a request is answered from the start of its window, and
+ * may repeat changes the device already has. Each entity is listed once, at
+ * its latest change; that sequence number is also its version.
+ * <p>
+ * A change's sequence number is handed out before the work that needs it
+ * (rendering its push payloads) is done, without a lock, so syncs render
+ * in parallel; changes are then published in sequence order, each once
+ * those before it are, and a change whose work failed is skipped.
+ * <p>
+ * Each change is rendered once, when it is appended. A window keeps the
+ * changes of its last response and is brought up to date with the changes
+ * appended since, under its own lock; the response is an immutable Feed
+ * swapped in when it is, so requests for an up-to-date window take no lock.
+ */
+public final class ChangeLog {
+    private static final int capacity = Math.max(1, Config.getInt("CHANGE_LOG_SIZE", 10000));
+    private static final int window = Math.max(1, Config.getInt("CHANGE_FEED_WINDOW", 100));
+
+    // Sequence numbers restart with the server, so ETags from a previous run must not match
+    private static final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    private static final Change[] changes = new Change[capacity];
+    // The last sequence number handed out, and the last published
+    private static final AtomicLong nextSeq = new AtomicLong();
+    private static volatile long lastSeq;
+    // Changes whose work is done, waiting for earlier ones to be published; guarded by the class lock
+    private static final Map<Long, Change> pending = new HashMap<Long, Change>();
+    // Entity -> its latest change still in the log; guarded by the class lock
+    private static final Map<String, Change> latest = new HashMap<String, Change>();
+    private static final ConcurrentHashMap<Long, Window> windows = new ConcurrentHashMap<Long, Window>();
+
+    private ChangeLog() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static final class Change {
+        final long seq;
+        final String key;
+        final String json;
+        // The seq of the entity's next change, or 0: set before lastSeq moves past it
+        volatile long supersededBy;
+
+        // A sequence number whose change was not recorded
+        Change(long seq) {
+            this.seq = seq;
+            this.key = null;
+            this.json = null;
+        }
+
+        Change(long seq, String type, int id) {
+            this.seq = seq;
+            this.key = type + "/" + id;
+            JsonObject json = new JsonObject();
+            json.addProperty("seq", seq);
+            json.addProperty("type", type);
+            json.addProperty("id", id);
+            this.json = json.toString();
+        }
+
+        boolean isLatest(long last) {
+            if (key == null) return false;
+            long next = supersededBy;
+            return next == 0 || next > last;
+        }
+    }
+
+    /**
+     * The changes listed for one window, as of its current Feed.
+     */
+    private static final class Window {
+        final long start;
+        private List<Change> listed = new ArrayList<Change>();
+        private long applied;
+        volatile Feed feed;
+
+        Window(long start) {
+            this.start = start;
+            this.applied = start;
+        }
+
+        /**
+         * Brings the window up to last.
+         *
+         * @return the feed, or null if changes it needs have been overwritten
+         */
+        synchronized Feed update(long last) {
+            Feed current = feed;
+            if (current != null && current.last >= last) return current;
+
+            long from = Math.max(start, last - capacity);
+            List<Change> updated = new ArrayList<Change>(listed.size() + (int) (last - applied));
+            if (applied >= from) {
+                for (Change change : listed) {
+                    if (change.seq > from && change.isLatest(last)) updated.add(change);
+                }
+            }
+            else {
+                // Every change listed has been overwritten
+                applied = from;
+            }
+            for (long seq = applied + 1; seq <= last; seq++) {
+                Change change = changes[slot(seq)];
+                // Overwritten by changes appended while this one was being read
+                if (change == null || change.seq != seq) return null;
+                if (change.isLatest(last)) updated.add(change);
+            }
+
+            StringBuilder json = new StringBuilder(64 + updated.size() * 48);
+            json.append("{\"since\":").append(start).append(",\"last\":").append(last).append(",\"changes\":[");
+            for (int i = 0; i < updated.size(); i++) {
+                if (i > 0) json.append(',');
+                json.append(updated.get(i).json);
+            }
+            json.append("]}");
+
+            listed = updated;
+            applied = last;
+            current = new Feed(start, last, json.toString());
+            feed = current;
+            return current;
+        }
+    }
+
+    /**
+     * A rendered response: the changes after since, up to last.
+     */
+    public static final class Feed {
+        private final long since;
+        private final long last;
+        private final String json;
+        private final EntityTag tag;
+
+        private Feed(long since, long last, String json) {
+            this.since = since;
+            this.last = last;
+            this.json = json;
+            this.tag = new EntityTag(epoch + "-" + since + "-" + last);
+        }
+
+        public long getSince() {
+            return since;
+        }
+
+        public long getLast() {
+            return last;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        public EntityTag getTag() {
+            return tag;
+        }
+    }
+
+    /**
+     * Records a change to an entity once the work that needs its sequence
+     * number (e.g. rendering the push payloads) has been done: if that
+     * throws, no change is recorded. The work is done outside any lock.
+     *
+     * @param withSeq given the change's sequence number
+     * @return what withSeq returned
+     */
+    public static <T> T append(String type, int id, LongFunction<T> withSeq) {
+        long seq = nextSeq.incrementAndGet();
+        boolean done = false;
+        try {
+            T result = withSeq.apply(seq);
+            done = true;
+            return result;
+        }
+        finally {
+            // A skipped sequence number is still published, so later changes are not held up
+            publish(done ? new Change(seq, type, id) : new Change(seq));
+        }
+    }
+
+    // Publishes a change, and any waiting for it, once every earlier change has been
+    private static synchronized void publish(Change change) {
+        pending.put(change.seq, change);
+        Change next;
+        while ((next = pending.remove(lastSeq + 1)) != null) {
+            long seq = next.seq;
+            Change overwritten = changes[slot(seq)];
+            if (overwritten != null && overwritten.key != null && latest.get(overwritten.key) == overwritten) {
+                latest.remove(overwritten.key);
+            }
+            if (next.key != null) {
+                Change previous = latest.put(next.key, next);
+                if (previous != null) previous.supersededBy = seq;
+            }
+            changes[slot(seq)] = next;
+            lastSeq = seq;
+
+            // Windows no request can fall in any more
+            if (seq % window == 0) windows.keySet().removeIf(start -> start + window < seq - capacity);
+        }
+    }
+
+    /**
+     * Records a change to an entity.
+     *
+     * @return its sequence number
+     */
+    public static long append(String type, int id) {
+        return append(type, id, seq -> seq);
+    }
+
+    public static long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Gets the changes after a sequence number, from the start of its
+     * window.
+     *
+     * @return the feed, or null if changes after since have been
+     *         overwritten or since is ahead of the log (the server has
+     *         restarted): the device must sync in full
+     */
+    public static Feed since(long since) {
+        long last = lastSeq;
+        if (since < 0 || since > last || since < last - capacity) return null;
+
+        long start = since - since % window;
+        Window cached = windows.computeIfAbsent(start, Window::new);
+        Feed feed = cached.feed;
+        if (feed != null && feed.last >= last) return feed;
+        return cached.update(last);
+    }
+
+    private static int slot(long seq) {
+        return (int) (seq % capacity);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.services;
+
+import com.cloudbees.gasp.config.Config;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+
+/**
+ * The change feed (see ChangeLog): GET /changes?since=[seq] lists the
+ * entities changed after seq, with CHANGE_FEED_MAX_AGE seconds of caching
+ * (default 5) and a strong ETag per window, so a device asking again from
+ * anywhere in the same window gets 304 Not Modified if nothing changed.
+ * Caches key on the URL, so a proxy only shares a response between devices
+ * asking with the same since. 410 Gone means the changes are no longer in
+ * the log and the device must sync in full.
+ */
+@Path("/changes")
+public class ChangeService {
+    private static final int maxAge = Config.getInt("CHANGE_FEED_MAX_AGE", 5);
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getChanges(@QueryParam("since") @DefaultValue("0") long since, @Context Request request) {
+        ChangeLog.Feed feed = ChangeLog.since(since);
+        if (feed == null) {
+            return Response.status(Response.Status.GONE)
+                    .entity("Changes since " + since + " are not available: last is " + ChangeLog.getLastSeq())
+                    .build();
+        }
+
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge(maxAge);
+
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(feed.getTag());
+        if (notModified != null) {
+            return notModified.cacheControl(cacheControl).build();
+        }
+        return Response.status(Response.Status.OK)
+                .tag(feed.getTag())
+                .cacheControl(cacheControl)
+                .entity(feed.getJson())
+                .build();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.services;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.cloudbees.gasp.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A circuit breaker for the SNS calls made for one platform application,
+ * so that a broken application (expired certificate, disabled app) fails
+ * fast instead of tying up connections that the other platforms need.
+ * <p>
+ * The outcome and duration of the last CIRCUIT_WINDOW calls (default 50)
+ * are kept. Once there have been CIRCUIT_MIN_CALLS (default 20), the circuit
+ * opens if CIRCUIT_FAILURE_RATE percent of them failed (default 50) or
+ * CIRCUIT_SLOW_CALL_RATE percent took longer than CIRCUIT_SLOW_CALL_MS
+ * (default 80% over 5000 ms). Errors about a single endpoint (e.g.
+ * EndpointDisabled) are not failures of the application.
+ * <p>
+ * After CIRCUIT_OPEN_SECONDS (default 30) the circuit is half-open: up to
+ * CIRCUIT_PROBES calls (default 5) are let through, and if they all succeed
+ * the circuit closes, otherwise it opens again.
+ */
+public final class CircuitBreaker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class.getName());
+
+    private static final long HALF_OPEN_RETRY_MILLIS = 1000;
+
+    public static enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final Map<SNSMobile.Platform, CircuitBreaker> breakers = createBreakers();
+
+    private final String name;
+    private final int minCalls = Config.getInt("CIRCUIT_MIN_CALLS", 20);
+    private final int failureRate = Config.getInt("CIRCUIT_FAILURE_RATE", 50);
+    private final int slowCallRate = Config.getInt("CIRCUIT_SLOW_CALL_RATE", 80);
+    private final long slowCallNanos = Config.getLong("CIRCUIT_SLOW_CALL_MS", 5000) * 1000000L;
+    private final long openMillis = Config.getLong("CIRCUIT_OPEN_SECONDS", 30) * 1000L;
+    private final int probes = Math.max(1, Config.getInt("CIRCUIT_PROBES", 5));
+
+    // Ring of the last window.length calls
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int next;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+
+    private volatile State state = State.CLOSED;
+    private long openUntil;
+    private int probesLeft;
+    private int probesPassed;
+
+    CircuitBreaker(String name, int window) {
+        this.name = name;
+        this.failed = new boolean[Math.max(1, window)];
+        this.slow = new boolean[failed.length];
+    }
+
+    public static CircuitBreaker forPlatform(SNSMobile.Platform platform) {
+        return breakers.get(platform);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Asks to make a call. If this returns true, the call's outcome must be
+     * recorded with record().
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() < openUntil) return false;
+            transition(State.HALF_OPEN);
+            probesLeft = probes;
+            probesPassed = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesLeft == 0) return false;
+            probesLeft--;
+        }
+        return true;
+    }
+
+    /**
+     * When to try again after tryAcquire returned false.
+     */
+    public synchronized long getRetryAt() {
+        return state == State.OPEN
+                ? openUntil
+                : System.currentTimeMillis() + HALF_OPEN_RETRY_MILLIS;
+    }
+
+    /**
+     * Records the outcome of a call.
+     *
+     * @param healthy false if the call failed because of the application or SNS
+     * @param nanos how long the call took
+     */
+    public synchronized void record(boolean healthy, long nanos) {
+        boolean isSlow = nanos >= slowCallNanos;
+        switch (state) {
+            case HALF_OPEN:
+                if (!healthy || isSlow) {
+                    open();
+                }
+                else if (++probesPassed == probes) {
+                    reset();
+                    transition(State.CLOSED);
+                }
+                break;
+
+            case CLOSED:
+                if (calls == failed.length) {
+                    if (failed[next]) failures--;
+                    if (slow[next]) slowCalls--;
+                }
+                else {
+                    calls++;
+                }
+                failed[next] = !healthy;
+                slow[next] = isSlow;
+                if (!healthy) failures++;
+                if (isSlow) slowCalls++;
+                next = (next + 1) % failed.length;
+
+                if (calls >= minCalls
+                        && (failures * 100 >= failureRate * calls || slowCalls * 100 >= slowCallRate * calls)) {
+                    LOGGER.error(name + ": " + failures + " of the last " + calls + " SNS calls failed and "
+                            + slowCalls + " were slow");
+                    open();
+                }
+                break;
+
+            default:
+                // A call started before the circuit opened
+                break;
+        }
+    }
+
+    /**
+     * Whether an SNS error means the call (rather than just its endpoint)
+     * failed.
+     */
+    public static boolean isFailure(AmazonClientException e) {
+        if (!(e instanceof AmazonServiceException)) return !(e instanceof CircuitOpenException);
+
+        AmazonServiceException ase = (AmazonServiceException) e;
+        if (ase.getStatusCode() >= 500) return true;
+        String errorCode = ase.getErrorCode();
+        return !"EndpointDisabled".equals(errorCode)
+                && !"InvalidParameter".equals(errorCode)
+                && !"NotFound".equals(errorCode);
+    }
+
+    private void open() {
+        openUntil = System.currentTimeMillis() + openMillis;
+        reset();
+        transition(State.OPEN);
+    }
+
+    private void reset() {
+        next = 0;
+        calls = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    private void transition(State to) {
+        if (state == to) return;
+        if (to == State.OPEN) {
+            LOGGER.error(name + ": circuit open for " + openMillis / 1000 + "s");
+        }
+        else {
+            LOGGER.info(name + ": circuit " + to.name().toLowerCase().replace('_', '-'));
+        }
+        state = to;
+    }
+
+    private static Map<SNSMobile.Platform, CircuitBreaker> createBreakers() {
+        int window = Config.getInt("CIRCUIT_WINDOW", 50);
+        Map<SNSMobile.Platform, CircuitBreaker> map = new EnumMap<SNSMobile.Platform, CircuitBreaker>(SNSMobile.Platform.class);
+        for (SNSMobile.Platform platform : SNSMobile.Platform.values()) {
+            map.put(platform, new CircuitBreaker(platform.name(), window));
+        }
+        return map;
+    }
+}
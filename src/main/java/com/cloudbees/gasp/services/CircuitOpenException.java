@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.services;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * An SNS call was not made because the platform application's circuit is
+ * open (see CircuitBreaker).
+ */
+public class CircuitOpenException extends AmazonClientException {
+    private final long retryAt;
+
+    public CircuitOpenException(SNSMobile.Platform platform, long retryAt) {
+        super("Circuit open for " + platform.name());
+        this.retryAt = retryAt;
+    }
+
+    /**
+     * When the call may be tried again (epoch millis).
+     */
+    public long getRetryAt() {
+        return retryAt;
+    }
+
+    public int getRetryAfterSeconds() {
+        return (int) Math.max(1, (retryAt - System.currentTimeMillis() + 999) / 1000);
+    }
+}
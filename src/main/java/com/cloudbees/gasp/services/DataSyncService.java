@@ -16,145 +16,271 @@
 
 package com.cloudbees.gasp.services;
 
-import com.amazonaws.AmazonClientException;
-import com.amazonaws.AmazonServiceException;
+import com.cloudbees.gasp.config.Config;
+import com.cloudbees.gasp.jfr.EnqueueEvent;
+import com.cloudbees.gasp.jfr.IngestEvent;
+import com.cloudbees.gasp.jfr.ParseEvent;
+import com.cloudbees.gasp.jfr.RenderEvent;
 import com.cloudbees.gasp.model.Restaurant;
 import com.cloudbees.gasp.model.Review;
 import com.cloudbees.gasp.model.User;
+import com.cloudbees.gasp.push.DeliveryJob;
+import com.cloudbees.gasp.push.JobRegistry;
+import com.cloudbees.gasp.push.Payload;
+import com.cloudbees.gasp.push.PayloadLimits;
+import com.cloudbees.gasp.push.PayloadTemplate;
+import com.cloudbees.gasp.push.PayloadTemplates;
+import com.cloudbees.gasp.push.PayloadTooLargeException;
+import com.cloudbees.gasp.push.DeliveryScheduler;
+import com.cloudbees.gasp.push.PushDispatcher;
+import com.cloudbees.gasp.push.Supersession;
 import com.google.gson.Gson;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.util.HashMap;
+import java.net.URI;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.EnumMap;
 import java.util.Map;
+import java.util.function.ToIntFunction;
 
 @Path("/")
 public class DataSyncService {
     private static final Logger LOGGER = LoggerFactory.getLogger(DataSyncService.class.getName());
 
-    private String getApnMessage(String msg) {
-        Map<String, Object> appleMessageMap = new HashMap<String, Object>();
-        Map<String, Object> appMessageMap = new HashMap<String, Object>();
-        appMessageMap.put("alert", msg);
-        appMessageMap.put("badge", 1);
-        appMessageMap.put("sound", "default");
-        appleMessageMap.put("aps", appMessageMap);
-        return jsonify(appleMessageMap);
-    }
+    // Webhook retries of an update already accepted are acknowledged, not broadcast again
+    private static final SyncDeduplicator deduplicator = new SyncDeduplicator();
+
+    // Every update is a dry run (see DeliveryJob.isDryRun), not only those sent with Dry-Run: true
+    private static final boolean dryRunAll = Config.getBoolean("PUSH_DRY_RUN", false);
+
+    /**
+     * Renders and size-checks every platform payload once, before anything
+     * is published, records the change in the change feed and queues the
+     * broadcast as a delivery job. A change whose payloads cannot be
+     * rendered is not recorded. A dry run is not recorded in the change
+     * feed, and does not supersede earlier jobs for the same entity.
+     */
+    private DeliveryJob queuePushNotifications(String type, int id, long deliverAt, boolean highPriority,
+                                               boolean dryRun) {
+        long rendering = System.nanoTime();
+        Map<SNSMobile.Platform, Payload> payloads = dryRun
+                ? render(type, id, ChangeLog.getLastSeq() + 1, true)
+                : ChangeLog.append(type, id, seq -> render(type, id, seq, false));
+        long renderNanos = System.nanoTime() - rendering;
 
-    private String getGcmMessage(String msg) {
-        Map<String, String> payload = new HashMap<String, String>();
-        payload.put("message", msg);
-
-        Map<String, Object> androidMessageMap = new HashMap<String, Object>();
-        androidMessageMap.put("collapse_key", "Welcome");
-        androidMessageMap.put("data", payload);
-        androidMessageMap.put("delay_while_idle", true);
-        androidMessageMap.put("time_to_live", 125);
-        androidMessageMap.put("dry_run", false);
-        return jsonify(androidMessageMap);
+        EnqueueEvent event = new EnqueueEvent();
+        event.begin();
+        DeliveryJob job = JobRegistry.create(type, id, payloads);
+        job.setHighPriority(highPriority);
+        job.setDryRun(dryRun);
+        job.setRenderNanos(renderNanos);
+        if (!dryRun) Supersession.track(job);
+        DeliveryScheduler.schedule(job, deliverAt);
+        event.end();
+        if (event.shouldCommit()) {
+            event.entityType = type;
+            event.entityId = id;
+            event.jobId = job.getId();
+            event.queueDepth = PushDispatcher.getQueueDepth();
+            event.commit();
+        }
+        return job;
     }
 
-    private static String jsonify(Object message) {
-        try {
-            return new ObjectMapper().writeValueAsString(message);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw (RuntimeException) e;
+    private Map<SNSMobile.Platform, Payload> render(String type, int id, long seq, boolean dryRun) {
+        String[] values = new String[PayloadTemplate.Slot.values().length];
+        values[PayloadTemplate.Slot.TYPE.ordinal()] = type;
+        values[PayloadTemplate.Slot.ID.ordinal()] = String.valueOf(id);
+        values[PayloadTemplate.Slot.TEXT.ordinal()] = "Gasp! update: " + type + "/" + id;
+        values[PayloadTemplate.Slot.SEQ.ordinal()] = String.valueOf(seq);
+        values[PayloadTemplate.Slot.DRY_RUN.ordinal()] = String.valueOf(dryRun);
+
+        Map<SNSMobile.Platform, Payload> payloads = new EnumMap<SNSMobile.Platform, Payload>(SNSMobile.Platform.class);
+        for (PlatformApplication application : PlatformApplication.all()) {
+            payloads.put(application.getPlatform(), render(application.getPlatform(), type, id, values));
         }
+        return payloads;
     }
 
-    private void sendPushNotifications(String messageText) {
-        try {
-            SNSMobile snsMobile = new SNSMobile();
-
-            // Send update to all registered APN endpoints
-            for (String endpointArn: APNDataStore.getEndpoints() ) {
-                LOGGER.info("Sending update to APN endpoint ARN: " + endpointArn);
-                snsMobile.pushNotification(SNSMobile.Platform.APNS_SANDBOX,
-                                           endpointArn,
-                                           getApnMessage(messageText));
-            }
-
-            // Send update to all registered GCM endpoints
-            for (String endpointArn: GCMDataStore.getEndpoints()) {
-                LOGGER.info("Sending update to GCM endpoint ARN: " + endpointArn);
-                snsMobile.pushNotification(SNSMobile.Platform.GCM,
-                                           endpointArn,
-                                           getGcmMessage(messageText));
-            }
-        } catch (AmazonServiceException ase) {
-            LOGGER.debug("AmazonServiceException");
-            LOGGER.debug("  Error Message:    " + ase.getMessage());
-            LOGGER.debug("  HTTP Status Code: " + ase.getStatusCode());
-            LOGGER.debug("  AWS Error Code:   " + ase.getErrorCode());
-            LOGGER.debug("  Error Type:       " + ase.getErrorType());
-            LOGGER.debug("  Request ID:       " + ase.getRequestId());
-        } catch (AmazonClientException ace) {
-            LOGGER.debug("AmazonClientException");
-            LOGGER.debug("  Error Message: " + ace.getMessage());
-        } catch (Exception e) {
-            return;
+    private Payload render(SNSMobile.Platform platform, String type, int id, String[] values) {
+        RenderEvent event = new RenderEvent();
+        event.begin();
+        Payload payload = PayloadLimits.fit(platform, PayloadTemplates.get(type, platform), values);
+        event.end();
+        if (event.shouldCommit()) {
+            event.entityType = type;
+            event.entityId = id;
+            event.platform = platform.name();
+            event.size = payload.size();
+            event.commit();
         }
+        return payload;
     }
 
-    @POST
-    @Path("/reviews")
-    @Consumes(MediaType.APPLICATION_JSON)
-    public Response reviewUpdateReceived(String jsonInput) {
+    /**
+     * Parses an update and broadcasts it. Each stage is recorded as a JFR
+     * event (see com.cloudbees.gasp.jfr), within an IngestEvent for the
+     * whole request.
+     */
+    private <T> Response ingest(String type, Class<T> modelClass, ToIntFunction<T> idOf,
+                                String jsonInput, String idempotencyKey, String deliverAtHeader,
+                                String priority, String dryRun) {
+        IngestEvent ingest = new IngestEvent();
+        ingest.begin();
+        ingest.entityType = type;
+        ingest.bytes = jsonInput == null ? 0 : jsonInput.length();
+
+        Response response;
+        long deliverAt;
         try {
-            Review review = new Gson().fromJson(jsonInput, Review.class);
-            LOGGER.info("Syncing Review Id: " + String.valueOf(review.getId()));
+            deliverAt = parseDeliverAt(deliverAtHeader);
+        }
+        catch (DateTimeParseException e) {
+            response = Response.status(Response.Status.BAD_REQUEST)
+                    .entity("Deliver-At must be an ISO-8601 instant, e.g. 2014-05-01T07:00:00Z").build();
+            ingest.status = response.getStatus();
+            ingest.commit();
+            return response;
+        }
 
-            // Send push notifications to all registered devices
-            sendPushNotifications("Gasp! update: reviews/" + review.getId());
+        ParseEvent parse = new ParseEvent();
+        parse.begin();
+        try {
+            T entity = new Gson().fromJson(jsonInput, modelClass);
+            ingest.entityId = idOf.applyAsInt(entity);
+            parse.succeeded = true;
+            LOGGER.info("Syncing " + modelClass.getSimpleName() + " Id: " + String.valueOf(ingest.entityId));
         }
         catch (Exception e) {
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+            parse.succeeded = false;
+        }
+        parse.entityType = type;
+        parse.entityId = ingest.entityId;
+        parse.bytes = ingest.bytes;
+        parse.commit();
+
+        if (parse.succeeded) {
+            response = sync(type, ingest.entityId, jsonInput, idempotencyKey, deliverAt,
+                            "high".equalsIgnoreCase(priority), dryRunAll || "true".equalsIgnoreCase(dryRun),
+                            ingest);
+        }
+        else {
+            response = Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
         }
 
-        return Response.status(Response.Status.OK).build();
+        ingest.status = response.getStatus();
+        ingest.commit();
+        return response;
     }
 
-    @POST
-    @Path("/restaurants")
-    @Consumes(MediaType.APPLICATION_JSON)
-    public Response restaurantUpdateReceived(String jsonInput) {
+    /**
+     * Parses the optional Deliver-At request header.
+     *
+     * @return epoch millis, or 0 to deliver now
+     */
+    private static long parseDeliverAt(String deliverAt) {
+        if (deliverAt == null || deliverAt.trim().isEmpty()) return 0;
+        return Instant.parse(deliverAt.trim()).toEpochMilli();
+    }
+
+    /**
+     * Broadcasts an update, unless it is a retry of one already accepted or
+     * the server is overloaded (see AdmissionControl). The response
+     * (202 Accepted) carries the delivery job id; progress is available
+     * from JobService. A deliver-at time, or the audience's quiet hours,
+     * hold back the send (see DeliveryScheduler). High-priority updates
+     * (Priority: high) are not paced (see Pacing). A dry run (Dry-Run: true,
+     * or PUSH_DRY_RUN) goes through the same stages but sends nothing, and
+     * its job reports the capacity a real send would have (see
+     * DryRunReport).
+     */
+    private Response sync(String type, int id, String jsonInput, String idempotencyKey, long deliverAt,
+                          boolean highPriority, boolean dryRun, IngestEvent ingest) {
+        Response rejected = AdmissionControl.SYNC.admit();
+        if (rejected != null) return rejected;
+
         try {
-            Restaurant restaurant = new Gson().fromJson(jsonInput, Restaurant.class);
-            LOGGER.info("Syncing Restaurant Id: " + String.valueOf(restaurant.getId()));
+            return accept(type, id, jsonInput, idempotencyKey, deliverAt, highPriority, dryRun, ingest);
+        }
+        finally {
+            AdmissionControl.SYNC.release();
+        }
+    }
+
+    private Response accept(String type, int id, String jsonInput, String idempotencyKey, long deliverAt,
+                            boolean highPriority, boolean dryRun, IngestEvent ingest) {
+        // A dry run is de-duplicated as the real update would be, under its own key so it does not hold that back
+        String key = SyncDeduplicator.key(type, id, jsonInput, idempotencyKey);
+        if (dryRun) key = "dry-run:" + key;
+        if (!deduplicator.accept(key)) {
+            LOGGER.info("Ignoring duplicate update: " + type + "/" + id);
+            return Response.status(Response.Status.OK).build();
+        }
 
+        DeliveryJob job;
+        try {
             // Send push notifications to all registered devices
-            sendPushNotifications("Gasp! update: restaurants/" + restaurant.getId());
+            job = queuePushNotifications(type, id, deliverAt, highPriority, dryRun);
+        }
+        catch (PayloadTooLargeException e) {
+            deduplicator.forget(key);
+            LOGGER.error("Rejected update: " + e.getMessage());
+            return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE).entity(e.getMessage()).build();
         }
         catch (Exception e) {
+            deduplicator.forget(key);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
         }
 
-        return Response.status(Response.Status.OK).build();
+        ingest.jobId = job.getId();
+        LOGGER.info("Queued job " + job.getId() + " for " + type + "/" + id);
+        return Response.status(Response.Status.ACCEPTED)
+                .location(URI.create("jobs/" + job.getId()))
+                .type(MediaType.APPLICATION_JSON)
+                .entity(job.toJson().toString())
+                .build();
     }
 
     @POST
-    @Path("/users")
+    @Path("/reviews")
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response userUpdateReceived(String jsonInput) {
-        try {
-            User user = new Gson().fromJson(jsonInput, User.class);
-            LOGGER.info("Syncing User Id: " + String.valueOf(user.getId()));
+    public Response reviewUpdateReceived(String jsonInput,
+                                         @HeaderParam("Idempotency-Key") String idempotencyKey,
+                                         @HeaderParam("Deliver-At") String deliverAt,
+                                         @HeaderParam("Priority") String priority,
+                                         @HeaderParam("Dry-Run") String dryRun) {
+        return ingest("reviews", Review.class, Review::getId, jsonInput, idempotencyKey, deliverAt, priority,
+                      dryRun);
+    }
 
-            // Send push notifications to all registered devices
-            sendPushNotifications("Gasp! update: users/" + user.getId());
-        }
-        catch (Exception e) {
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
-        }
+    @POST
+    @Path("/restaurants")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response restaurantUpdateReceived(String jsonInput,
+                                             @HeaderParam("Idempotency-Key") String idempotencyKey,
+                                             @HeaderParam("Deliver-At") String deliverAt,
+                                             @HeaderParam("Priority") String priority,
+                                             @HeaderParam("Dry-Run") String dryRun) {
+        return ingest("restaurants", Restaurant.class, Restaurant::getId, jsonInput, idempotencyKey, deliverAt,
+                      priority, dryRun);
+    }
 
-        return Response.status(Response.Status.OK).build();
+    @POST
+    @Path("/users")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response userUpdateReceived(String jsonInput,
+                                       @HeaderParam("Idempotency-Key") String idempotencyKey,
+                                       @HeaderParam("Deliver-At") String deliverAt,
+                                       @HeaderParam("Priority") String priority,
+                                       @HeaderParam("Dry-Run") String dryRun) {
+        return ingest("users", User.class, User::getId, jsonInput, idempotencyKey, deliverAt, priority, dryRun);
     }
 }
@@ -17,13 +17,12 @@
 
 package com.cloudbees.gasp.services;
 
+import com.cloudbees.gasp.push.EndpointRegistry;
+import com.cloudbees.gasp.push.Registration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 
 /**
@@ -34,56 +33,64 @@ import java.util.Map;
  */
 public final class GCMDataStore {
 
-    private static final List<String> endpoints = new ArrayList<String>();
-    private static final Map<String, String> tokenMap = new HashMap<String, String>();
     private static final Logger LOGGER = LoggerFactory.getLogger(GCMDataStore.class.getName());
 
     private GCMDataStore() {
         throw new UnsupportedOperationException();
     }
 
+    // The GCM application's partition of the device registry
+    private static EndpointRegistry registry() {
+        return PlatformApplication.get(SNSMobile.Platform.GCM).getRegistry();
+    }
+
     /**
      * Registers a device.
      */
     public static void registerArn(String regId, String endpointArn) {
         LOGGER.debug("Registering Id: " + regId + " with endpoint Arn: " + endpointArn);
 
-        synchronized (endpoints) {
-            endpoints.add(endpointArn);
-        }
-        synchronized (tokenMap) {
-            tokenMap.put(regId, endpointArn);
-        }
+        registry().register(regId, endpointArn);
     }
 
     /**
      * Unregisters a device.
      */
     public static void unregisterArn(String regId) {
-        String endpointArn = tokenMap.get(regId);
-        LOGGER.debug("Unregistering Id: " + regId + " with endpoint Arn: " + endpointArn);
-
-        synchronized (endpoints) {
-            endpoints.remove(endpointArn);
-        }
-        synchronized (tokenMap) {
-            tokenMap.remove(regId);
-        }
+        LOGGER.debug("Unregistering Id: " + regId + " with endpoint Arn: " + registry().getEndpointArn(regId));
+
+        registry().unregister(regId);
+    }
+
+    /**
+     * Replaces a registration id with the canonical id reported by GCM,
+     * keeping its endpoint Arn. If the canonical id is already registered
+     * the old id is a duplicate and is dropped.
+     */
+    public static void updateRegistration(String regId, String canonicalRegId) {
+        LOGGER.debug("Updating Id: " + regId + " to canonical Id: " + canonicalRegId);
+
+        registry().updateToken(regId, canonicalRegId);
     }
 
     /**
      * Gets all registered devices.
      */
     public static List<String> getEndpoints() {
-        synchronized (endpoints) {
-            return new ArrayList<String>(endpoints);
-        }
+        return registry().getEndpoints();
+    }
+
+    /**
+     * Gets all registered devices with their tokens and slots.
+     */
+    public static List<Registration> getRegistrations() {
+        return registry().getRegistrations();
     }
 
     /**
      * Gets the endpoint Arn for a given device Id
      */
     public static String getEndpointArn(String regId) {
-        return tokenMap.get(regId);
+        return registry().getEndpointArn(regId);
     }
 }
@@ -37,17 +37,33 @@ public class GCMRegistrationService {
     @POST
     @Path("register")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
-    public Response doRegister(@FormParam("regId") String regId) {
+    public Response doRegister(@FormParam("regId") String regId,
+                               @FormParam("region") String regionName) {
+        if (!PlatformApplication.isEnabled(SNSMobile.Platform.GCM)) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        String region = PlatformApplication.get(SNSMobile.Platform.GCM).regionFor(regionName);
+        if (region == null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("Unknown region: " + regionName).build();
+        }
+        Response rejected = AdmissionControl.REGISTRATION.admit();
+        if (rejected != null) return rejected;
 
         try {
             CreatePlatformEndpointResult platformEndpointResult =
-                    snsMobile.createPlatformEndpoint("Gasp GCM Platform Endpoint",
+                    snsMobile.createPlatformEndpoint(SNSMobile.Platform.GCM,
+                                                     "Gasp GCM Platform Endpoint",
                                                      regId,
-                                                     snsMobile.getGcmPlatformArn());
+                                                     PlatformApplication.get(SNSMobile.Platform.GCM).getArn(region));
 
             GCMDataStore.registerArn(regId, platformEndpointResult.getEndpointArn());
             LOGGER.info("Registered: " + platformEndpointResult.getEndpointArn());
 
+        } catch (CircuitOpenException coe) {
+            LOGGER.warn(coe.getMessage() + ", rejecting registration");
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", String.valueOf(coe.getRetryAfterSeconds()))
+                    .build();
         } catch (AmazonServiceException ase) {
             LOGGER.debug("AmazonServiceException");
             LOGGER.debug("  Error Message:    " + ase.getMessage());
@@ -60,6 +76,8 @@ public class GCMRegistrationService {
             LOGGER.debug("AmazonClientException");
             LOGGER.debug("  Error Message: " + ace.getMessage());
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        } finally {
+            AdmissionControl.REGISTRATION.release();
         }
 
         return Response.status(Response.Status.OK).build();
@@ -69,6 +87,12 @@ public class GCMRegistrationService {
     @Path("unregister")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
     public Response doUnregister(@FormParam("regId") String regId) {
+        if (!PlatformApplication.isEnabled(SNSMobile.Platform.GCM)) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        Response rejected = AdmissionControl.REGISTRATION.admit();
+        if (rejected != null) return rejected;
+
         try {
             // Delete the SNS app endpoint
             snsMobile.deleteEndpointArn(GCMDataStore.getEndpointArn(regId));
@@ -89,6 +113,8 @@ public class GCMRegistrationService {
             LOGGER.debug("AmazonClientException");
             LOGGER.debug("  Error Message: " + ace.getMessage());
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        } finally {
+            AdmissionControl.REGISTRATION.release();
         }
 
         return Response.status(Response.Status.OK).build();
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.services;
+
+import com.cloudbees.gasp.push.DeliveryJob;
+import com.cloudbees.gasp.push.JobRegistry;
+import com.google.gson.JsonArray;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Outcome of the delivery jobs queued by DataSyncService.
+ */
+@Path("/jobs")
+public class JobService {
+
+    @GET
+    @Path("{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getJob(@PathParam("id") long id) {
+        DeliveryJob job = JobRegistry.get(id);
+        if (job == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.status(Response.Status.OK).entity(job.toJson().toString()).build();
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getRecentJobs(@QueryParam("recent") @DefaultValue("20") int recent) {
+        if (recent < 1) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        JsonArray jobs = new JsonArray();
+        for (DeliveryJob job : JobRegistry.recent(Math.min(recent, JobRegistry.getCapacity()))) {
+            jobs.add(job.toJson());
+        }
+        return Response.status(Response.Status.OK).entity(jobs.toString()).build();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.services;
+
+import com.cloudbees.gasp.config.Config;
+import com.cloudbees.gasp.push.BadgeCounters;
+import com.cloudbees.gasp.push.EndpointRegistry;
+import com.cloudbees.gasp.push.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One SNS platform application (APNS, APNS_SANDBOX, GCM or ADM) and the
+ * resources kept separate for it, so that a large broadcast for one
+ * application does not starve another: its partition of the device
+ * registry (with its badge counts), its delivery pool and its publish
+ * concurrency and rate budget.
+ * <p>
+ * PLATFORMS lists the applications to run (default APNS_SANDBOX,GCM).
+ * Per application, with a _[PLATFORM] suffix (e.g. DISPATCH_THREADS_GCM):
+ * DISPATCH_THREADS, the delivery jobs sent at once (default 4);
+ * SNS_PUBLISH_CONCURRENCY, the publishes in flight (default an equal share
+ * of SNS_PUBLISH_CONCURRENCY, 10000); SNS_PUBLISH_RATE, the publishes per
+ * second (default an equal share of SNS_PUBLISH_RATE, 0 for no limit).
+ * <p>
+ * SNS_REGIONS lists the SNS regions to run in (default us-east-1): each
+ * application is created in every region, and SNS publish quotas are per
+ * region, so each region has its own publish concurrency and rate budget.
+ * A device is registered in the region it asks for, or in the
+ * application's home region (SNS_REGION_[PLATFORM], default the first of
+ * SNS_REGIONS); its endpoint ARN records the region.
+ */
+public final class PlatformApplication {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PlatformApplication.class.getName());
+
+    private static final List<String> regions = loadRegions();
+    private static final Map<SNSMobile.Platform, PlatformApplication> applications = load();
+
+    private final SNSMobile.Platform platform;
+    private final EndpointRegistry registry;
+    private final BadgeCounters badgeCounters = new BadgeCounters();
+    private final int dispatchThreads;
+    private final int publishConcurrency;
+    private final String region;
+    // Per region: ARN once created, publish rate budget (absent if not rate limited)
+    private final Map<String, String> arns = new ConcurrentHashMap<String, String>();
+    private final Map<String, RateLimiter> publishRates = new LinkedHashMap<String, RateLimiter>();
+
+    private PlatformApplication(SNSMobile.Platform platform, int applicationCount) {
+        this.platform = platform;
+        this.registry = new EndpointRegistry(platform.name());
+        this.dispatchThreads = Math.max(1, getInt("DISPATCH_THREADS", Config.getInt("DISPATCH_THREADS", 4)));
+        this.publishConcurrency = Math.max(1, getInt("SNS_PUBLISH_CONCURRENCY",
+                Config.getInt("SNS_PUBLISH_CONCURRENCY", 10000) / applicationCount));
+        String home = Config.get("SNS_REGION_" + platform.name(), getDefaultRegion());
+        if (!regions.contains(home)) {
+            LOGGER.error("SNS_REGION_" + platform.name() + " is not in SNS_REGIONS: " + home);
+            home = getDefaultRegion();
+        }
+        this.region = home;
+        int rate = getInt("SNS_PUBLISH_RATE", Config.getInt("SNS_PUBLISH_RATE", 0) / applicationCount);
+        for (String name : regions) {
+            if (rate > 0) publishRates.put(name, new RateLimiter(rate));
+        }
+    }
+
+    /**
+     * The SNS regions in SNS_REGIONS, the default region first.
+     */
+    public static List<String> getRegions() {
+        return regions;
+    }
+
+    public static String getDefaultRegion() {
+        return regions.get(0);
+    }
+
+    /**
+     * Gets a platform's application, or null if it is not in PLATFORMS.
+     */
+    public static PlatformApplication get(SNSMobile.Platform platform) {
+        return applications.get(platform);
+    }
+
+    public static boolean isEnabled(SNSMobile.Platform platform) {
+        return applications.containsKey(platform);
+    }
+
+    /**
+     * The applications in PLATFORMS, in Platform order.
+     */
+    public static Collection<PlatformApplication> all() {
+        return applications.values();
+    }
+
+    public SNSMobile.Platform getPlatform() {
+        return platform;
+    }
+
+    public String getName() {
+        return platform.name();
+    }
+
+    /**
+     * The application's home region, where devices are registered unless
+     * they ask for another.
+     */
+    public String getRegion() {
+        return region;
+    }
+
+    /**
+     * The region to register a device in: the region it asked for, or the
+     * home region if it did not ask.
+     *
+     * @return the region, or null if the device asked for a region not in
+     *         SNS_REGIONS
+     */
+    public String regionFor(String requested) {
+        if (requested == null || requested.trim().isEmpty()) return region;
+        return regions.contains(requested.trim()) ? requested.trim() : null;
+    }
+
+    /**
+     * The SNS platform application ARN in the home region, or null if it has
+     * not been created.
+     */
+    public String getArn() {
+        return getArn(region);
+    }
+
+    public String getArn(String region) {
+        return arns.get(region);
+    }
+
+    public void setArn(String region, String arn) {
+        arns.put(region, arn);
+    }
+
+    public EndpointRegistry getRegistry() {
+        return registry;
+    }
+
+    public BadgeCounters getBadgeCounters() {
+        return badgeCounters;
+    }
+
+    public int getDispatchThreads() {
+        return dispatchThreads;
+    }
+
+    public int getPublishConcurrency() {
+        return publishConcurrency;
+    }
+
+    /**
+     * A region's publish rate budget, or null if publishes are not rate
+     * limited.
+     */
+    public RateLimiter getPublishRate(String region) {
+        return publishRates.get(region);
+    }
+
+    @Override
+    public String toString() {
+        return platform.name() + " (" + dispatchThreads + " dispatch threads, " + publishConcurrency
+                + " publishes in flight and "
+                + (publishRates.isEmpty() ? "no rate limit" : publishRates.get(region).toString())
+                + " per region, home region " + region + ")";
+    }
+
+    private int getInt(String key, int defaultValue) {
+        return Config.getInt(key + "_" + platform.name(), defaultValue);
+    }
+
+    private static List<String> loadRegions() {
+        List<String> names = new ArrayList<String>();
+        for (String name : Config.get("SNS_REGIONS", "us-east-1").split("[,\\s]+")) {
+            if (!name.isEmpty() && !names.contains(name)) names.add(name);
+        }
+        if (names.isEmpty()) names.add("us-east-1");
+        return Collections.unmodifiableList(names);
+    }
+
+    private static Map<SNSMobile.Platform, PlatformApplication> load() {
+        String[] names = Config.get("PLATFORMS", "APNS_SANDBOX,GCM").split("[,\\s]+");
+        EnumMap<SNSMobile.Platform, PlatformApplication> map
+                = new EnumMap<SNSMobile.Platform, PlatformApplication>(SNSMobile.Platform.class);
+        int count = 0;
+        for (String name : names) {
+            if (!name.isEmpty()) count++;
+        }
+        for (String name : names) {
+            if (name.isEmpty()) continue;
+            try {
+                SNSMobile.Platform platform = SNSMobile.Platform.valueOf(name.trim().toUpperCase());
+                map.put(platform, new PlatformApplication(platform, Math.max(1, count)));
+            }
+            catch (IllegalArgumentException e) {
+                LOGGER.error("Unknown platform in PLATFORMS: " + name);
+            }
+        }
+        for (PlatformApplication application : map.values()) {
+            LOGGER.info("Platform application " + application);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+}
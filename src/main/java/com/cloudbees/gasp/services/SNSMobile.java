@@ -17,6 +17,7 @@
 
 package com.cloudbees.gasp.services;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.sns.AmazonSNS;
 import com.amazonaws.services.sns.model.*;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -25,6 +26,8 @@ import org.slf4j.LoggerFactory;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class SNSMobile {
@@ -37,61 +40,108 @@ public class SNSMobile {
         APNS, APNS_SANDBOX, ADM, GCM
     }
 
-    private static AmazonSNS snsClient = null;
-    private static String gcmPlatformArn;
-    private static String apnPlatformArn;
+    // One client per SNS region (see PlatformApplication.getRegions); requests
+    // for an ARN go to its region's client, or to the default region's
+    private static final Map<String, AmazonSNS> snsClients = new ConcurrentHashMap<String, AmazonSNS>();
+    // Requests currently waiting on SNS: fan-out publishes, and the endpoint
+    // requests made for registrations (see AdmissionControl)
+    private static final AtomicInteger publishesInFlight = new AtomicInteger();
+    private static final AtomicInteger endpointRequestsInFlight = new AtomicInteger();
 
     public AmazonSNS getSnsClient() {
-        return snsClient;
+        return snsClients.get(PlatformApplication.getDefaultRegion());
     }
 
+    /**
+     * Sets the client for the default region.
+     */
     public void setSnsClient(AmazonSNS snsClient) {
-        SNSMobile.snsClient = snsClient;
+        setSnsClient(PlatformApplication.getDefaultRegion(), snsClient);
     }
 
-    public String getGcmPlatformArn() {
-        return gcmPlatformArn;
+    /**
+     * Sets the client for a region.
+     *
+     * @return the client it replaces, or null
+     */
+    public AmazonSNS setSnsClient(String region, AmazonSNS snsClient) {
+        return snsClients.put(region, snsClient);
     }
 
-    public void setGcmPlatformArn(String gcmPlatformArn) {
-        this.gcmPlatformArn = gcmPlatformArn;
+    /**
+     * The region of an SNS ARN (arn:aws:sns:[region]:...), or null if it
+     * has none.
+     */
+    public static String regionOf(String arn) {
+        if (arn == null) return null;
+        String[] fields = arn.split(":", 5);
+        return fields.length == 5 ? fields[3] : null;
     }
 
-    public String getApnPlatformArn() {
-        return apnPlatformArn;
+    private static AmazonSNS client(String arn) {
+        AmazonSNS client = null;
+        String region = regionOf(arn);
+        if (region != null) client = snsClients.get(region);
+        return client != null ? client : snsClients.get(PlatformApplication.getDefaultRegion());
     }
 
-    public void setApnPlatformArn(String apnPlatformArn) {
-        this.apnPlatformArn = apnPlatformArn;
+    public static int getPublishesInFlight() {
+        return publishesInFlight.get();
+    }
+
+    public static int getEndpointRequestsInFlight() {
+        return endpointRequestsInFlight.get();
     }
 
     public String getPlatformArn(Platform platform,
                                  String principal,
                                  String credential,
                                  String applicationName) {
-        switch(platform) {
-            case APNS_SANDBOX:
-            case GCM:
-                // Create Platform Application. This corresponds to an app on a platform.
-                CreatePlatformApplicationResult platformApplicationResult = createPlatformApplication(
-                        applicationName, platform, principal, credential);
+        return getPlatformArn(PlatformApplication.getDefaultRegion(), platform, principal, credential, applicationName);
+    }
 
-                // The Platform Application Arn can be used to uniquely identify the Platform Application.
-                String platformApplicationArn = platformApplicationResult.getPlatformApplicationArn();
+    /**
+     * Creates a platform application in an SNS region.
+     */
+    public String getPlatformArn(String region,
+                                 Platform platform,
+                                 String principal,
+                                 String credential,
+                                 String applicationName) {
+        // Create Platform Application. This corresponds to an app on a platform.
+        CreatePlatformApplicationResult platformApplicationResult = createPlatformApplication(
+                snsClients.get(region), applicationName, platform, principal, credential);
 
-                LOGGER.debug("Created Platform Application Arn: " + platformApplicationArn);
-                return platformApplicationArn;
+        // The Platform Application Arn can be used to uniquely identify the Platform Application.
+        String platformApplicationArn = platformApplicationResult.getPlatformApplicationArn();
 
-            default:
-                throw new IllegalArgumentException("Platform Not supported : " + platform.name());
-        }
+        LOGGER.debug("Created Platform Application Arn: " + platformApplicationArn);
+        return platformApplicationArn;
     }
 
+    /**
+     * Publishes to an endpoint. The caller must already have a permit from
+     * the platform's CircuitBreaker (see SNSTransport): the outcome is
+     * recorded here.
+     */
     public void pushNotification(Platform platform,
                                  String platformEndpointArn,
                                  String theMessage) {
-        // Publish a push notification to an Endpoint.
-        PublishResult publishResult = apnPublish(platformEndpointArn, platform, theMessage);
+        CircuitBreaker breaker = CircuitBreaker.forPlatform(platform);
+        long start = System.nanoTime();
+        boolean healthy = false;
+        try {
+            // Publish a push notification to an Endpoint.
+            PublishResult publishResult = apnPublish(platformEndpointArn, platform, theMessage);
+            healthy = true;
+        }
+        catch (AmazonClientException e) {
+            healthy = !CircuitBreaker.isFailure(e);
+            throw e;
+        }
+        finally {
+            breaker.record(healthy, System.nanoTime() - start);
+        }
     }
 
     private PublishResult apnPublish(String endpointArn, Platform platform, String theMessage) {
@@ -109,11 +159,17 @@ public class SNSMobile {
         LOGGER.debug(message);
 
         publishRequest.setMessage(message);
-        return snsClient.publish(publishRequest);
+        publishesInFlight.incrementAndGet();
+        try {
+            return client(endpointArn).publish(publishRequest);
+        }
+        finally {
+            publishesInFlight.decrementAndGet();
+        }
     }
 
     private CreatePlatformApplicationResult createPlatformApplication(
-            String applicationName, Platform platform, String principal, String credential) {
+            AmazonSNS snsClient, String applicationName, Platform platform, String principal, String credential) {
         CreatePlatformApplicationRequest platformApplicationRequest = new CreatePlatformApplicationRequest();
         Map<String, String> attributes = new HashMap<String, String>();
         attributes.put("PlatformPrincipal", principal);
@@ -124,25 +180,72 @@ public class SNSMobile {
         return snsClient.createPlatformApplication(platformApplicationRequest);
     }
 
+    /**
+     * Replaces the credentials of an existing platform application in place:
+     * its endpoints (and the endpoint ARNs held in the data stores) stay valid.
+     */
+    public void setPlatformApplicationAttributes(String applicationArn,
+                                                 String principal,
+                                                 String credential) {
+        SetPlatformApplicationAttributesRequest request = new SetPlatformApplicationAttributesRequest();
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("PlatformPrincipal", principal);
+        attributes.put("PlatformCredential", credential);
+        request.setAttributes(attributes);
+        request.setPlatformApplicationArn(applicationArn);
+        client(applicationArn).setPlatformApplicationAttributes(request);
+    }
+
+    /**
+     * Creates an endpoint in the platform's application.
+     *
+     * @throws CircuitOpenException if the platform's circuit is open
+     */
     public CreatePlatformEndpointResult createPlatformEndpoint(
-            String customData, String platformToken, String applicationArn) {
+            Platform platform, String customData, String platformToken, String applicationArn) {
+        CircuitBreaker breaker = CircuitBreaker.forPlatform(platform);
+        if (!breaker.tryAcquire()) {
+            throw new CircuitOpenException(platform, breaker.getRetryAt());
+        }
+
         CreatePlatformEndpointRequest platformEndpointRequest = new CreatePlatformEndpointRequest();
         platformEndpointRequest.setCustomUserData(customData);
         platformEndpointRequest.setToken(platformToken);
         platformEndpointRequest.setPlatformApplicationArn(applicationArn);
-        return snsClient.createPlatformEndpoint(platformEndpointRequest);
+        long start = System.nanoTime();
+        boolean healthy = false;
+        endpointRequestsInFlight.incrementAndGet();
+        try {
+            CreatePlatformEndpointResult result = client(applicationArn).createPlatformEndpoint(platformEndpointRequest);
+            healthy = true;
+            return result;
+        }
+        catch (AmazonClientException e) {
+            healthy = !CircuitBreaker.isFailure(e);
+            throw e;
+        }
+        finally {
+            endpointRequestsInFlight.decrementAndGet();
+            breaker.record(healthy, System.nanoTime() - start);
+        }
     }
 
     public void deletePlatformApplication(String applicationArn) {
         DeletePlatformApplicationRequest request = new DeletePlatformApplicationRequest();
         request.setPlatformApplicationArn(applicationArn);
-        snsClient.deletePlatformApplication(request);
+        client(applicationArn).deletePlatformApplication(request);
     }
 
     public void deleteEndpointArn (String endpointArn){
         DeleteEndpointRequest request = new DeleteEndpointRequest();
         request.setEndpointArn(endpointArn);
-        snsClient.deleteEndpoint(request);
+        endpointRequestsInFlight.incrementAndGet();
+        try {
+            client(endpointArn).deleteEndpoint(request);
+        }
+        finally {
+            endpointRequestsInFlight.decrementAndGet();
+        }
     }
 
     private static String jsonify(Object message) {
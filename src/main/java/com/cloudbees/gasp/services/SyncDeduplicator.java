@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.services;
+
+import com.cloudbees.gasp.config.Config;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers recently accepted sync events so that webhook retries of the
+ * same delivery are acknowledged without another broadcast.
+ * <p>
+ * An event's idempotency key is the Idempotency-Key request header if the
+ * sender supplies one, otherwise the entity type and id plus a hash of the
+ * JSON body. Keys are kept in insertion order for SYNC_DEDUP_WINDOW_SECONDS
+ * (default 600), up to SYNC_DEDUP_MAX_KEYS (default 100000), oldest first
+ * out: a duplicate costs one hash lookup.
+ */
+public class SyncDeduplicator {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long windowMillis;
+    private final int maxKeys;
+    // Key -> time accepted; insertion order is time order
+    private final LinkedHashMap<String, Long> keys = new LinkedHashMap<String, Long>();
+
+    public SyncDeduplicator() {
+        this(Config.getLong("SYNC_DEDUP_WINDOW_SECONDS", 600) * 1000,
+             Config.getInt("SYNC_DEDUP_MAX_KEYS", 100000));
+    }
+
+    public SyncDeduplicator(long windowMillis, int maxKeys) {
+        this.windowMillis = windowMillis;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Derives the idempotency key for an event.
+     */
+    public static String key(String type, int id, String json, String idempotencyKey) {
+        if (idempotencyKey != null && idempotencyKey.trim().length() > 0) {
+            return type + ":" + idempotencyKey.trim();
+        }
+        return type + "/" + id + ":" + hash(json);
+    }
+
+    /**
+     * Records the key.
+     *
+     * @return true if the event should be processed, false if it was already
+     *         accepted within the window
+     */
+    public synchronized boolean accept(String key) {
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        if (keys.containsKey(key)) {
+            return false;
+        }
+        keys.put(key, now);
+        if (keys.size() > maxKeys) {
+            Iterator<String> oldest = keys.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        return true;
+    }
+
+    /**
+     * Forgets a key, so that a retry of an event that failed is processed.
+     */
+    public synchronized void forget(String key) {
+        keys.remove(key);
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<String, Long>> entries = keys.entrySet().iterator();
+        while (entries.hasNext()) {
+            if (now - entries.next().getValue() < windowMillis) break;
+            entries.remove();
+        }
+    }
+
+    private static String hash(String json) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(json.getBytes(UTF8));
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX[digest[i] & 0xf];
+            }
+            return new String(hex);
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every JRE has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rotating credentials from files in GASP_CREDENTIALS_DIR.
+ */
+public class CredentialsProviderTest {
+    private static final String SALT = Base64.getEncoder().encodeToString("0123456789abcdef".getBytes());
+    private static final String IV = Base64.getEncoder().encodeToString("fedcba9876543210".getBytes());
+
+    private File dir;
+    private CredentialsProvider provider;
+    private final List<Credentials> notified = new ArrayList<Credentials>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("gasp-credentials-test").toFile();
+        System.setProperty("GASP_CREDENTIALS_DIR", dir.getPath());
+        write("AES_SALT_BASE64", SALT);
+        write("AES_INIT_VECTOR_BASE64", IV);
+        write("AWS_ACCESS_KEY", "access-1");
+        write("AWS_SECRET_KEY", "secret-1");
+        write("GCM_API_KEY", "gcm-1");
+        provider = new CredentialsProvider();
+        provider.addListener(new CredentialsListener() {
+            @Override
+            public void credentialsChanged(Credentials previous, Credentials current) {
+                notified.add(current);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("GASP_CREDENTIALS_DIR");
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private void write(String name, String line) throws IOException {
+        Files.write(new File(dir, name).toPath(), (line + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // As the cert/key files are made: encrypted with GCM_API_KEY
+    private void writeApns(String gcmApiKey, String certificate, String key) throws Exception {
+        write("gasp-cert.b64", encrypt(gcmApiKey, certificate));
+        write("gasp-key.b64", encrypt(gcmApiKey, key));
+    }
+
+    private static String encrypt(String password, String plaintext) throws Exception {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        byte[] secret = factory.generateSecret(new PBEKeySpec(password.toCharArray(), Base64.getDecoder().decode(SALT),
+                                                              65536, 128)).getEncoded();
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"),
+                    new IvParameterSpec(Base64.getDecoder().decode(IV)));
+        return Base64.getEncoder().encodeToString(cipher.doFinal(plaintext.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void rotatesWithoutApnsFiles() throws IOException {
+        assertTrue(provider.reload());
+        assertEquals("", provider.getCredentials().getApnsCertificate());
+
+        write("GCM_API_KEY", "gcm-2");
+        assertTrue(provider.reload());
+        assertEquals("gcm-2", provider.getCredentials().getGcmApiKey());
+
+        write("AWS_ACCESS_KEY", "access-2");
+        write("AWS_SECRET_KEY", "secret-2");
+        assertTrue(provider.reload());
+        assertEquals("access-2", provider.getCredentials().getAwsAccessKey());
+        assertEquals("secret-2", provider.getCredentials().getAwsSecretKey());
+        assertEquals(3, notified.size());
+    }
+
+    @Test
+    public void swapsDecryptedApnsPair() throws Exception {
+        writeApns("gcm-1", "cert-1", "key-1");
+        assertTrue(provider.reload());
+        Credentials first = provider.getCredentials();
+        assertEquals("cert-1", first.getApnsCertificate());
+        assertEquals("key-1", first.getApnsKey());
+
+        // A new GCM_API_KEY with the cert/key files encrypted with it
+        write("GCM_API_KEY", "gcm-2");
+        writeApns("gcm-2", "cert-2", "key-2");
+        assertTrue(provider.reload());
+
+        Credentials second = provider.getCredentials();
+        assertEquals("cert-2", second.getApnsCertificate());
+        assertEquals("key-2", second.getApnsKey());
+        assertEquals("gcm-2", second.getGcmApiKey());
+        assertTrue(second.apnsChanged(first));
+        assertFalse(second.awsChanged(first));
+        assertSame(second, notified.get(1));
+    }
+
+    @Test
+    public void brokenApnsFileKeepsPairButRotatesTheRest() throws Exception {
+        writeApns("gcm-1", "cert-1", "key-1");
+        assertTrue(provider.reload());
+
+        write("gasp-cert.b64", "bm90IGVuY3J5cHRlZA==");
+        write("AWS_ACCESS_KEY", "access-2");
+        assertTrue(provider.reload());
+
+        Credentials credentials = provider.getCredentials();
+        assertEquals("access-2", credentials.getAwsAccessKey());
+        assertEquals("cert-1", credentials.getApnsCertificate());
+        assertEquals("key-1", credentials.getApnsKey());
+
+        // A missing file keeps the pair too
+        new File(dir, "gasp-key.b64").delete();
+        write("GCM_API_KEY", "gcm-2");
+        assertTrue(provider.reload());
+        assertEquals("gcm-2", provider.getCredentials().getGcmApiKey());
+        assertEquals("cert-1", provider.getCredentials().getApnsCertificate());
+    }
+
+    @Test
+    public void onlyBrokenApnsFileChangedDoesNotSwap() throws Exception {
+        writeApns("gcm-1", "cert-1", "key-1");
+        assertTrue(provider.reload());
+        Credentials first = provider.getCredentials();
+
+        write("gasp-cert.b64", "bm90IGVuY3J5cHRlZA==");
+
+        assertFalse(provider.reload());
+        assertSame(first, provider.getCredentials());
+        assertEquals(1, notified.size());
+    }
+
+    @Test
+    public void unchangedInputsDoNotSwap() throws IOException {
+        assertTrue(provider.reload());
+        Credentials first = provider.getCredentials();
+
+        assertFalse(provider.reload());
+        assertSame(first, provider.getCredentials());
+
+        write("AWS_SECRET_KEY", "secret-2");
+        assertTrue(provider.reload());
+        assertNotSame(first, provider.getCredentials());
+        assertEquals(2, notified.size());
+    }
+}
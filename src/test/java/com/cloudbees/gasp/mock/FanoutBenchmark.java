@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.mock;
+
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.cloudbees.gasp.push.DeliveryJob;
+import com.cloudbees.gasp.push.Fanout;
+import com.cloudbees.gasp.push.JobRegistry;
+import com.cloudbees.gasp.push.Payload;
+import com.cloudbees.gasp.push.PayloadLimits;
+import com.cloudbees.gasp.push.PayloadTemplate;
+import com.cloudbees.gasp.push.PayloadTemplates;
+import com.cloudbees.gasp.push.Registration;
+import com.cloudbees.gasp.push.SNSTransport;
+import com.cloudbees.gasp.services.SNSMobile;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares SNS fan-out on platform and virtual threads against an SNS
+ * client whose publish blocks for a fixed latency: reports the peak number
+ * of publishes in flight, throughput, peak heap and peak platform threads.
+ * <p>
+ * Usage: java com.cloudbees.gasp.mock.FanoutBenchmark [mode] [devices] [latencyMs] [maxInFlight]
+ * <p>
+ * Modes: "sequential" (one publish at a time, as before fan-out was
+ * concurrent: run on at most 200 devices and projected), "platform" (one
+ * platform thread per publish, default maxInFlight 2000) and "virtual"
+ * (one virtual thread per publish, default maxInFlight 20000). Run each
+ * mode in its own JVM so that heap figures are comparable.
+ */
+public class FanoutBenchmark {
+    private static final int SEQUENTIAL_SAMPLE = 200;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "virtual";
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        final long latency = args.length > 2 ? Long.parseLong(args[2]) : 100;
+
+        Fanout fanout;
+        int sample = devices;
+        switch (mode) {
+            case "sequential" -> {
+                fanout = new Fanout(1, Thread.ofPlatform().daemon().factory());
+                sample = Math.min(devices, SEQUENTIAL_SAMPLE);
+            }
+            case "platform" -> fanout = new Fanout(args.length > 3 ? Integer.parseInt(args[3]) : 2000,
+                                                   Thread.ofPlatform().daemon().factory());
+            case "virtual" -> fanout = new Fanout(args.length > 3 ? Integer.parseInt(args[3]) : 20000,
+                                                  Thread.ofVirtual().factory());
+            default -> throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+
+        // An SNS client whose publish just waits, like a publish to a distant region
+        new SNSMobile().setSnsClient((AmazonSNS) Proxy.newProxyInstance(
+                AmazonSNS.class.getClassLoader(), new Class<?>[]{AmazonSNS.class},
+                (proxy, method, methodArgs) -> {
+                    Thread.sleep(latency);
+                    return method.getName().equals("publish") ? new PublishResult() : null;
+                }));
+
+        List<Registration> targets = new ArrayList<Registration>(sample);
+        for (int i = 0; i < sample; i++) {
+            targets.add(new Registration("token-" + i, "arn:aws:sns:us-east-1:0:endpoint/GCM/bench/" + i, i));
+        }
+        String[] values = new String[PayloadTemplate.Slot.values().length];
+        values[PayloadTemplate.Slot.TYPE.ordinal()] = "reviews";
+        values[PayloadTemplate.Slot.ID.ordinal()] = "1";
+        values[PayloadTemplate.Slot.TEXT.ordinal()] = "Gasp! update: reviews/1";
+        values[PayloadTemplate.Slot.SEQ.ordinal()] = "1";
+        values[PayloadTemplate.Slot.DRY_RUN.ordinal()] = "false";
+        Payload payload = PayloadLimits.fit(SNSMobile.Platform.GCM,
+                PayloadTemplates.get("reviews", SNSMobile.Platform.GCM), values);
+        DeliveryJob job = JobRegistry.create("reviews", 1, Map.of(SNSMobile.Platform.GCM, payload));
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.gc();
+        long baseHeap = memory.getHeapMemoryUsage().getUsed();
+        threads.resetPeakThreadCount();
+
+        // Sample heap while the fan-out runs
+        final AtomicLong peakHeap = new AtomicLong(baseHeap);
+        Thread sampler = Thread.ofPlatform().daemon().start(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(5);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        new SNSTransport(fanout).send(SNSMobile.Platform.GCM, targets, payload, job);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        sampler.interrupt();
+
+        long projected = elapsed * devices / sample;
+        System.out.println(mode + ": " + devices + " devices, " + latency + " ms/publish"
+                + (sample < devices ? " (projected from " + sample + ")" : ""));
+        System.out.println("  elapsed:           " + projected + " ms");
+        System.out.println("  publishes/sec:     " + (projected > 0 ? devices * 1000L / projected : devices));
+        System.out.println("  peak in flight:    " + fanout.getPeakInFlight());
+        System.out.println("  peak heap growth:  " + (peakHeap.get() - baseHeap) / (1024 * 1024) + " MB");
+        System.out.println("  peak JVM threads:  " + threads.getPeakThreadCount());
+        System.out.println("  sent/failed:       " + job.getSent(SNSMobile.Platform.GCM)
+                + "/" + job.getFailed(SNSMobile.Platform.GCM));
+    }
+}
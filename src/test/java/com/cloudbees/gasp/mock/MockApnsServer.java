@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.mock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the APNs provider API (POST /3/device/[token]), used
+ * to benchmark native APNs delivery against the SNS path.
+ * <p>
+ * Usage: java com.cloudbees.gasp.mock.MockApnsServer [port] [unregisteredEvery]
+ * <p>
+ * Start the push server with APNS_TRANSPORT=apns APNS_HOST=localhost
+ * APNS_PORT=[port] APNS_TLS=false. The mock answers with the same statuses
+ * and error reasons as APNs, but over plain-text HTTP/1.1 (the JDK has no
+ * HTTP/2 server), to which the transport's client falls back. Every Nth
+ * device can be answered with 410 Unregistered to exercise the registry
+ * updates.
+ */
+public class MockApnsServer implements HttpHandler {
+    private static final String PATH = "/3/device/";
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final long unregisteredEvery;
+
+    public MockApnsServer(long unregisteredEvery) {
+        this.unregisteredEvery = unregisteredEvery;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 2197;
+        long unregisteredEvery = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        new MockApnsServer(unregisteredEvery).run(port);
+    }
+
+    public void run(int port) throws IOException {
+        HttpServer server = start(port);
+        System.out.println("Mock APNs provider API: http://localhost:" + port + PATH);
+
+        long last = 0;
+        while (true) {
+            try {
+                Thread.sleep(1000);
+            }
+            catch (InterruptedException e) {
+                server.stop(0);
+                return;
+            }
+            long total = received.get();
+            if (total != last) {
+                System.out.println((total - last) + " notifications/s (total " + total
+                        + ", rejected " + rejected.get() + ")");
+                last = total;
+            }
+        }
+    }
+
+    /**
+     * Starts serving on a port, with requests handled on virtual threads.
+     */
+    public HttpServer start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.createContext(PATH, this);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        return server;
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                reply(exchange, 405, "MethodNotAllowed");
+                return;
+            }
+            InputStream in = exchange.getRequestBody();
+            byte[] payload = in.readAllBytes();
+            in.close();
+            long count = received.incrementAndGet();
+
+            String token = exchange.getRequestURI().getPath().substring(PATH.length());
+            if (token.isEmpty() || !token.matches("[0-9a-fA-F]+")) {
+                rejected.incrementAndGet();
+                reply(exchange, 400, "BadDeviceToken");
+            }
+            else if (payload.length == 0) {
+                rejected.incrementAndGet();
+                reply(exchange, 400, "PayloadEmpty");
+            }
+            else if (unregisteredEvery > 0 && count % unregisteredEvery == 0) {
+                rejected.incrementAndGet();
+                reply(exchange, 410, "Unregistered");
+            }
+            else {
+                exchange.getResponseHeaders().set("apns-id", "00000000-0000-0000-0000-" + String.format("%012x", count));
+                exchange.sendResponseHeaders(200, -1);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private static void reply(HttpExchange exchange, int status, String reason) throws IOException {
+        byte[] body = ("{\"reason\":\"" + reason + "\"}").getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+}
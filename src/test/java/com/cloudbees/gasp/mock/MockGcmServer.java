@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudbees.gasp.mock;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the GCM HTTP endpoint, used to benchmark multicast
+ * delivery (requests/sec and devices/sec) against the SNS path.
+ * <p>
+ * Usage: java com.cloudbees.gasp.mock.MockGcmServer [port] [canonicalEvery] [notRegisteredEvery]
+ * <p>
+ * Start the push server with GCM_TRANSPORT=gcm
+ * GCM_SEND_URL=http://localhost:[port]/gcm/send. Every Nth registration id
+ * can be answered with a canonical id or NotRegistered to exercise the
+ * registry updates.
+ */
+public class MockGcmServer implements HttpHandler {
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong devices = new AtomicLong();
+    private final long canonicalEvery;
+    private final long notRegisteredEvery;
+
+    public MockGcmServer(long canonicalEvery, long notRegisteredEvery) {
+        this.canonicalEvery = canonicalEvery;
+        this.notRegisteredEvery = notRegisteredEvery;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8090;
+        long canonicalEvery = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        long notRegisteredEvery = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        new MockGcmServer(canonicalEvery, notRegisteredEvery).run(port);
+    }
+
+    public void run(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 128);
+        server.createContext("/gcm/send", this);
+        server.setExecutor(Executors.newFixedThreadPool(16));
+        server.start();
+        System.out.println("Mock GCM endpoint: http://localhost:" + port + "/gcm/send");
+
+        long lastRequests = 0;
+        long lastDevices = 0;
+        while (true) {
+            try {
+                Thread.sleep(1000);
+            }
+            catch (InterruptedException e) {
+                server.stop(0);
+                return;
+            }
+            long totalRequests = requests.get();
+            long totalDevices = devices.get();
+            if (totalRequests != lastRequests) {
+                System.out.println((totalRequests - lastRequests) + " requests/s, "
+                        + (totalDevices - lastDevices) + " devices/s (total " + totalDevices + ")");
+                lastRequests = totalRequests;
+                lastDevices = totalDevices;
+            }
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            JsonObject request = new JsonParser()
+                    .parse(new InputStreamReader(exchange.getRequestBody(), "UTF-8")).getAsJsonObject();
+            JsonArray ids = request.getAsJsonArray("registration_ids");
+            requests.incrementAndGet();
+
+            int success = 0;
+            int failure = 0;
+            int canonical = 0;
+            JsonArray results = new JsonArray();
+            for (int i = 0; i < ids.size(); i++) {
+                long n = devices.incrementAndGet();
+                JsonObject result = new JsonObject();
+                if (notRegisteredEvery > 0 && n % notRegisteredEvery == 0) {
+                    result.addProperty("error", "NotRegistered");
+                    failure++;
+                }
+                else {
+                    result.addProperty("message_id", "0:" + n);
+                    if (canonicalEvery > 0 && n % canonicalEvery == 0) {
+                        result.addProperty("registration_id", ids.get(i).getAsString() + "-canonical");
+                        canonical++;
+                    }
+                    success++;
+                }
+                results.add(result);
+            }
+
+            JsonObject response = new JsonObject();
+            response.addProperty("multicast_id", requests.get());
+            response.addProperty("success", success);
+            response.addProperty("failure", failure);
+            response.addProperty("canonical_ids", canonical);
+            response.add("results", results);
+
+            byte[] body = response.toString().getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+        finally {
+            exchange.close();
+        }
+    }
+}
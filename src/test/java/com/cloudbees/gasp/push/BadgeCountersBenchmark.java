@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-device badge bookkeeping: the badges reserved in bulk for a slice of
+ * a broadcast and spliced into each device's payload, across a registry of
+ * the given size.
+ * <p>
+ * Run with: mvn -Pjmh test-compile exec:exec -Djmh.args=BadgeCountersBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BadgeCountersBenchmark {
+
+    private static final int SLICE = 1000;
+
+    @Param({"10000", "1000000"})
+    public int devices;
+
+    private BadgeCounters badgeCounters;
+    private Payload payload;
+    private Registration[] targets;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        badgeCounters = new BadgeCounters();
+        String head = "{\"aps\":{\"alert\":\"Gasp! update: reviews/42\",\"badge\":";
+        payload = new Payload((head + "}}").getBytes(), new int[] {head.length()});
+        targets = new Registration[devices];
+        for (int slot = 0; slot < devices; slot++) {
+            targets[slot] = new Registration("token" + slot, null, slot);
+            badgeCounters.reset(slot);
+        }
+    }
+
+    private List<Registration> nextSlice() {
+        int from = next;
+        next = next + SLICE >= devices ? 0 : next + SLICE;
+        return Arrays.asList(targets).subList(from, Math.min(devices, from + SLICE));
+    }
+
+    @Benchmark
+    public long next() {
+        Registration target = targets[next];
+        next = next + 1 == devices ? 0 : next + 1;
+        return badgeCounters.next(target.getSlot());
+    }
+
+    // Reserve a slice's badges and give them all back, as for a slice nobody was reached in
+    @Benchmark
+    public int reserveRelease() {
+        return badgeCounters.reserve(nextSlice()).release();
+    }
+
+    // Reserve a slice's badges and splice each one in, as for every slice a broadcast sends
+    @Benchmark
+    public int reserveForTarget() {
+        List<Registration> slice = nextSlice();
+        Payload reserved = payload.withBadges(badgeCounters.reserve(slice));
+        int size = 0;
+        for (Registration target : slice) {
+            size += reserved.forTarget(target).size();
+        }
+        return size;
+    }
+}
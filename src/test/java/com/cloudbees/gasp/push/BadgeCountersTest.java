@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class BadgeCountersTest {
+    private static final String HEAD = "{\"aps\":{\"badge\":";
+
+    private static Payload badgePayload() {
+        return new Payload((HEAD + "}}").getBytes(), new int[] {HEAD.length()});
+    }
+
+    @Test
+    public void reservedBadgeIsSpliced() {
+        BadgeCounters badgeCounters = new BadgeCounters();
+        Registration target = new Registration("token", null, 5000);
+
+        assertEquals(1, badgeCounters.next(5000));
+        BadgeCounters.Reservation reservation = badgeCounters.reserve(Collections.singletonList(target));
+        assertEquals(HEAD + "1}}", badgePayload().withBadges(reservation).forTarget(target).toString());
+        assertEquals(1, badgeCounters.get(5000));
+        assertEquals(2, badgeCounters.next(5000));
+    }
+
+    @Test
+    public void concurrentJobsReserveDifferentBadges() {
+        BadgeCounters badgeCounters = new BadgeCounters();
+        Registration target = new Registration("token", null, 7);
+
+        BadgeCounters.Reservation first = badgeCounters.reserve(Collections.singletonList(target));
+        BadgeCounters.Reservation second = badgeCounters.reserve(Collections.singletonList(target));
+
+        assertEquals(HEAD + "1}}", badgePayload().withBadges(first).forTarget(target).toString());
+        assertEquals(HEAD + "2}}", badgePayload().withBadges(second).forTarget(target).toString());
+        assertEquals(0, first.release());
+        assertEquals(0, second.release());
+        assertEquals(2, badgeCounters.get(7));
+    }
+
+    @Test
+    public void undeliveredBadgesAreGivenBack() {
+        BadgeCounters badgeCounters = new BadgeCounters();
+        Registration reached = new Registration("a", null, 0);
+        Registration failed = new Registration("b", null, 1);
+        Registration notReached = new Registration("c", null, 2);
+        List<Registration> slice = Arrays.asList(reached, failed, notReached);
+
+        DeliveryJob job = new DeliveryJob(1, "reviews", 1, Collections.singletonMap(
+                SNSMobile.Platform.APNS_SANDBOX, badgePayload()));
+        BadgeCounters.Reservation reservation = badgeCounters.reserve(slice);
+        job.reserved(SNSMobile.Platform.APNS_SANDBOX, reservation);
+        Payload payload = badgePayload().withBadges(reservation);
+
+        payload.forTarget(reached);
+        job.sent(SNSMobile.Platform.APNS_SANDBOX, reached);
+        payload.forTarget(failed);
+        job.failed(SNSMobile.Platform.APNS_SANDBOX, failed, "Unavailable");
+        job.stopped(SNSMobile.Platform.APNS_SANDBOX, notReached);
+
+        assertEquals(2, reservation.release());
+        assertEquals(1, badgeCounters.get(0));
+        assertEquals(0, badgeCounters.get(1));
+        assertEquals(0, badgeCounters.get(2));
+    }
+
+    @Test
+    public void badgeTakenByLaterPushIsNotGivenBack() {
+        BadgeCounters badgeCounters = new BadgeCounters();
+        List<Registration> slice = Collections.singletonList(new Registration("a", null, 0));
+
+        BadgeCounters.Reservation first = badgeCounters.reserve(slice);
+        BadgeCounters.Reservation second = badgeCounters.reserve(slice);
+
+        assertEquals(0, first.release());
+        assertEquals(2, badgeCounters.get(0));
+        assertEquals(1, second.release());
+        assertEquals(1, badgeCounters.get(0));
+    }
+
+    @Test
+    public void dryRunReservesNothing() {
+        BadgeCounters badgeCounters = new BadgeCounters();
+        Registration target = new Registration("a", null, 0);
+
+        assertEquals(HEAD + "1}}", badgePayload().withBadges(badgeCounters).forTarget(target).toString());
+        assertEquals(HEAD + "1}}", badgePayload().withBadges(badgeCounters).forTarget(target).toString());
+        assertEquals(0, badgeCounters.get(0));
+    }
+
+    @Test
+    public void resetClearsCount() {
+        BadgeCounters badgeCounters = new BadgeCounters();
+        badgeCounters.reserve(Collections.singletonList(new Registration("a", null, 3)));
+        badgeCounters.reset(3);
+
+        assertEquals(0, badgeCounters.get(3));
+        assertEquals(1, badgeCounters.next(3));
+    }
+
+    @Test
+    public void newSlotIsSetUpOnce() {
+        EndpointRegistry registry = new EndpointRegistry("test");
+        AtomicInteger setUp = new AtomicInteger();
+
+        int slot = registry.register("token", "arn1", s -> setUp.incrementAndGet());
+        assertEquals(slot, registry.register("token", "arn2", s -> setUp.incrementAndGet()));
+
+        assertEquals(1, setUp.get());
+        assertEquals("arn2", registry.getEndpointArn("token"));
+    }
+}
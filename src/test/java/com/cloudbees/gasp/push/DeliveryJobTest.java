@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Where a superseding job's send starts (see Supersession).
+ */
+public class DeliveryJobTest {
+    private static final SNSMobile.Platform GCM = SNSMobile.Platform.GCM;
+
+    private static DeliveryJob job(long id) {
+        return new DeliveryJob(id, "reviews", 1, Collections.singletonMap(GCM, new Payload("{}")));
+    }
+
+    // Starts the job's send, as PushDispatcher does
+    private static int start(DeliveryJob job) {
+        assertTrue(job.startPlatform(GCM));
+        assertFalse(job.waitsForPredecessor(GCM));
+        return job.resumeSlot(GCM);
+    }
+
+    @Test
+    public void supersededBeforeStartHandsOverItsStartingPoint() {
+        DeliveryJob first = job(1);
+        start(first);
+        first.stopped(GCM, new Registration("a", null, 10));
+        DeliveryJob second = job(2);
+        assertTrue(first.supersede(second));
+        DeliveryJob third = job(3);
+        assertTrue(second.supersede(third));
+        first.platformFinished(GCM);
+
+        assertFalse(second.startPlatform(GCM));
+        assertEquals(10, start(third));
+    }
+
+    @Test
+    public void continuesWhereStoppedSendStopped() {
+        DeliveryJob older = job(1);
+        start(older);
+        DeliveryJob newer = job(2);
+        assertTrue(older.supersede(newer));
+        assertTrue(older.isCancelled());
+        older.stopped(GCM, new Registration("a", null, 42));
+        older.platformFinished(GCM);
+
+        assertEquals(42, start(newer));
+        assertEquals(DeliveryJob.State.SUPERSEDED, older.getState());
+    }
+
+    @Test
+    public void completedSendCoversEveryDevice() {
+        DeliveryJob older = job(1);
+        start(older);
+        DeliveryJob newer = job(2);
+        older.supersede(newer);
+        older.platformFinished(GCM);
+
+        assertEquals(Integer.MAX_VALUE, start(newer));
+    }
+
+    @Test
+    public void failedSendIsNotTreatedAsCovering() {
+        DeliveryJob first = job(1);
+        start(first);
+        DeliveryJob second = job(2);
+        first.supersede(second);
+        first.stopped(GCM, new Registration("a", null, 7));
+        first.platformFinished(GCM);
+
+        assertEquals(7, start(second));
+        DeliveryJob third = job(3);
+        second.supersede(third);
+        second.failed(GCM, new IllegalStateException("connection reset"));
+        second.platformFinished(GCM);
+
+        // The second send's devices cannot be told apart, so all of them are sent to again
+        assertEquals(7, start(third));
+    }
+
+    @Test
+    public void deferredSendHandsOverItsCursor() {
+        DeliveryJob older = job(1);
+        start(older);
+        older.deferred(GCM, new Registration("a", null, 500), System.currentTimeMillis() + 60000);
+        DeliveryJob newer = job(2);
+        older.supersede(newer);
+        // As DeliveryScheduler.cancel finishes the deferred send
+        older.platformFinished(GCM);
+
+        assertEquals(500, start(newer));
+    }
+
+    @Test
+    public void regionsContinueFromWhereEachGotTo() {
+        DeliveryJob older = job(1);
+        start(older);
+        older.reached(GCM, "us-east-1", 40);
+        older.reached(GCM, "eu-west-1", 90);
+        older.reached(GCM, "eu-west-1", 70);
+        older.stopped(GCM, new Registration("a", null, 40));
+        DeliveryJob newer = job(2);
+        older.supersede(newer);
+        older.platformFinished(GCM);
+
+        assertEquals(40, start(newer));
+        assertEquals(40, newer.reachedBefore(GCM, "us-east-1"));
+        assertEquals(90, newer.reachedBefore(GCM, "eu-west-1"));
+        assertEquals(0, newer.reachedBefore(GCM, "ap-northeast-1"));
+    }
+
+    @Test
+    public void newerSendWaitsWithoutBlocking() throws InterruptedException {
+        DeliveryJob older = job(1);
+        start(older);
+        DeliveryJob newer = job(2);
+        older.supersede(newer);
+        assertTrue(newer.startPlatform(GCM));
+
+        assertTrue(newer.waitsForPredecessor(GCM));
+
+        // Finishing the older send queues the newer one, which has no devices to send to here
+        older.stopped(GCM, new Registration("a", null, 3));
+        older.platformFinished(GCM);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (newer.getState() != DeliveryJob.State.DONE && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(DeliveryJob.State.DONE, newer.getState());
+        assertEquals(3, newer.toJson().getAsJsonObject("platforms").getAsJsonObject("GCM").get("fromSlot").getAsInt());
+    }
+}
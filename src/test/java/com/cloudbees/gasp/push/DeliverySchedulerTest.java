@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Restoring DeliveryScheduler's journal on start. The journal is
+ * SCHEDULE_FILE, read when the class is loaded, so it is set here first.
+ */
+public class DeliverySchedulerTest {
+    private static final File JOURNAL = new File(System.getProperty("java.io.tmpdir"),
+            "gasp-schedule-test-" + System.nanoTime() + ".log");
+
+    static {
+        System.setProperty("SCHEDULE_FILE", JOURNAL.getPath());
+    }
+
+    private static final String PAYLOAD = Base64.getEncoder().encodeToString(
+            "{\"aps\":{\"alert\":\"Gasp!\",\"badge\":}}".getBytes(StandardCharsets.UTF_8));
+
+    @After
+    public void tearDown() {
+        DeliveryScheduler.stop();
+        JOURNAL.delete();
+    }
+
+    @Test
+    public void restoresDeferredSendWhereItStopped() throws IOException {
+        long at = System.currentTimeMillis() + 3600000;
+        Files.write(JOURNAL.toPath(), Arrays.asList(
+                "A 7 " + at + " APNS_SANDBOX reviews 42 high 5000/us-east-1:6100,eu-west-1:5200 31 " + PAYLOAD,
+                "A 8 " + at + " GCM reviews 43 normal - - " + PAYLOAD,
+                "A 9 " + at + " GCM reviews 44 normal - - " + PAYLOAD,
+                "D 9",
+                "A 10 " + at + " GCM reviews 45 normal - - " + PAYLOAD),
+                StandardCharsets.US_ASCII);
+        int before = DeliveryScheduler.getPending();
+
+        DeliveryScheduler.start();
+        assertEquals(before + 3, DeliveryScheduler.getPending());
+
+        DeliveryJob deferred = find(42);
+        assertTrue(deferred.isHighPriority());
+        assertTrue(deferred.isDeferred(SNSMobile.Platform.APNS_SANDBOX));
+        assertEquals(at, deferred.getScheduledAt(SNSMobile.Platform.APNS_SANDBOX));
+        assertArrayEquals(new int[] {31}, deferred.getPayloads().get(SNSMobile.Platform.APNS_SANDBOX).getBadgeOffsets());
+        assertEquals(5000, deferred.resumeSlot(SNSMobile.Platform.APNS_SANDBOX));
+        // Each region continues from where it got to
+        assertEquals(6100, deferred.reachedBefore(SNSMobile.Platform.APNS_SANDBOX, "us-east-1"));
+        assertEquals(5200, deferred.reachedBefore(SNSMobile.Platform.APNS_SANDBOX, "eu-west-1"));
+
+        DeliveryJob scheduled = find(43);
+        assertFalse(scheduled.isHighPriority());
+        assertFalse(scheduled.isDeferred(SNSMobile.Platform.GCM));
+        assertEquals(at, scheduled.getScheduledAt(SNSMobile.Platform.GCM));
+
+        assertFalse(find(45).isDeferred(SNSMobile.Platform.GCM));
+
+        // Compacted to the pending sends
+        List<String> lines = Files.readAllLines(JOURNAL.toPath(), StandardCharsets.US_ASCII);
+        assertEquals(3, lines.size());
+        assertEquals("A 7 " + at + " APNS_SANDBOX reviews 42 high 5000/eu-west-1:5200,us-east-1:6100 31 " + PAYLOAD,
+                lines.get(0));
+        assertEquals("A 10 " + at + " GCM reviews 45 normal - - " + PAYLOAD, lines.get(2));
+    }
+
+    @Test
+    public void skipsLinesItCannotRead() throws IOException {
+        long at = System.currentTimeMillis() + 3600000;
+        Files.write(JOURNAL.toPath(), Arrays.asList(
+                "A 20 " + at + " GCM reviews 50 normal - - " + PAYLOAD,
+                "A 21 soon GCM reviews 51 normal - - " + PAYLOAD,
+                "D twenty",
+                "A 22 " + at + " GCM reviews 52 normal - - " + PAYLOAD,
+                // Cut short by a crash
+                "A 23 " + at + " GCM revi"),
+                StandardCharsets.US_ASCII);
+        int before = DeliveryScheduler.getPending();
+
+        DeliveryScheduler.start();
+
+        assertEquals(before + 2, DeliveryScheduler.getPending());
+        assertEquals(at, find(50).getScheduledAt(SNSMobile.Platform.GCM));
+        assertEquals(at, find(52).getScheduledAt(SNSMobile.Platform.GCM));
+        List<String> lines = Files.readAllLines(JOURNAL.toPath(), StandardCharsets.US_ASCII);
+        assertEquals(2, lines.size());
+    }
+
+    @Test
+    public void restoredJobIsSupersededByNewerUpdate() throws IOException {
+        long at = System.currentTimeMillis() + 3600000;
+        Files.write(JOURNAL.toPath(), Arrays.asList(
+                "A 30 " + at + " APNS_SANDBOX reviews 60 normal - - " + PAYLOAD,
+                "A 31 " + at + " GCM reviews 60 normal - - " + PAYLOAD),
+                StandardCharsets.US_ASCII);
+        int before = DeliveryScheduler.getPending();
+        DeliveryScheduler.start();
+        assertEquals(before + 2, DeliveryScheduler.getPending());
+
+        // The platform sends of the job are restored as one job
+        DeliveryJob restored = find(60);
+        assertEquals(2, restored.getPayloads().size());
+
+        DeliveryJob newer = JobRegistry.create("reviews", 60,
+                Collections.singletonMap(SNSMobile.Platform.GCM, new Payload("{}")));
+        Supersession.track(newer);
+
+        assertTrue(restored.isCancelled());
+        assertEquals(newer.getId(), restored.getSupersededBy());
+        assertEquals(before, DeliveryScheduler.getPending());
+        assertEquals(DeliveryJob.State.SUPERSEDED, restored.getState());
+    }
+
+    private static DeliveryJob find(int entityId) {
+        for (DeliveryJob job : JobRegistry.recent(JobRegistry.getCapacity())) {
+            if (job.getEntityId() == entityId) return job;
+        }
+        throw new AssertionError("No job for entity " + entityId);
+    }
+}
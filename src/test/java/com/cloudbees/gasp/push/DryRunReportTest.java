@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DryRunReport's projection, from the limits a job recorded when its send
+ * started.
+ */
+public class DryRunReportTest {
+    private static final SNSMobile.Platform APNS = SNSMobile.Platform.APNS_SANDBOX;
+    private static final SNSMobile.Platform GCM = SNSMobile.Platform.GCM;
+
+    @After
+    public void tearDown() {
+        System.clearProperty("APNS_TRANSPORT");
+        System.clearProperty("APNS_CONCURRENCY");
+        System.clearProperty("APNS_CONNECTIONS");
+    }
+
+    private static DeliveryJob job(SNSMobile.Platform... platforms) {
+        Map<SNSMobile.Platform, Payload> payloads = new EnumMap<SNSMobile.Platform, Payload>(SNSMobile.Platform.class);
+        for (SNSMobile.Platform platform : platforms) {
+            payloads.put(platform, new Payload("{}"));
+        }
+        DeliveryJob job = new DeliveryJob(1, "reviews", 42, payloads);
+        job.setDryRun(true);
+        return job;
+    }
+
+    private static Map<String, Double> limit(String name, double perSecond) {
+        Map<String, Double> limits = new LinkedHashMap<String, Double>();
+        limits.put(name, perSecond);
+        return limits;
+    }
+
+    private static List<Registration> targets(int count) {
+        List<Registration> targets = new ArrayList<Registration>();
+        for (int slot = 0; slot < count; slot++) {
+            targets.add(new Registration(Integer.toHexString(slot), null, slot));
+        }
+        return targets;
+    }
+
+    @Test
+    public void projectsAudiencesTooLargeForIntArithmetic() {
+        DeliveryJob job = job(GCM);
+        // 3,000,000 * 1000 does not fit in an int
+        job.targeted(GCM, 3000000);
+        job.measured(GCM, limit("rateLimit", 10000));
+
+        JsonObject report = DryRunReport.toJson(job);
+
+        assertEquals(300000, report.get("projectedDurationMs").getAsLong());
+        assertEquals(10000, report.get("pushesPerSecond").getAsLong());
+        assertEquals("GCM rateLimit", report.get("bottleneck").getAsString());
+    }
+
+    @Test
+    public void slowestPlatformIsTheBottleneckWhateverItsOrder() {
+        DeliveryJob job = job(APNS, GCM);
+        job.targeted(APNS, 1000);
+        job.targeted(GCM, 1000);
+        // APNS has no limits: its pipeline took 10 s
+        job.timed(APNS, 0, 10000000000L);
+        job.measured(GCM, limit("gcmBatches", 1000));
+
+        JsonObject report = DryRunReport.toJson(job);
+
+        assertEquals(10000, report.get("projectedDurationMs").getAsLong());
+        assertEquals("APNS_SANDBOX pipeline", report.get("bottleneck").getAsString());
+    }
+
+    @Test
+    public void platformWithoutLimitsDoesNotHideTheSlowerOne() {
+        DeliveryJob job = job(APNS, GCM);
+        job.targeted(APNS, 1000);
+        job.targeted(GCM, 1000);
+        job.measured(GCM, limit("gcmBatches", 100));
+
+        JsonObject report = DryRunReport.toJson(job);
+
+        assertEquals(10000, report.get("projectedDurationMs").getAsLong());
+        assertEquals("GCM gcmBatches", report.get("bottleneck").getAsString());
+    }
+
+    @Test
+    public void nativeApnsIsLimitedByConcurrencyAndConnections() {
+        System.setProperty("APNS_TRANSPORT", "apns");
+        System.setProperty("APNS_CONCURRENCY", "600");
+        System.setProperty("APNS_CONNECTIONS", "1");
+        DeliveryJob job = job(APNS);
+        job.setHighPriority(true);
+
+        Map<String, Double> limits = DryRunReport.limits(job, APNS, targets(100));
+
+        // At 30 ms per request
+        assertEquals(20000, limits.get("concurrency"), 1);
+        assertEquals(33333, limits.get("connections"), 1);
+        assertFalse(limits.containsKey("pacing"));
+
+        System.setProperty("APNS_CONCURRENCY", "5000");
+        assertTrue(DryRunReport.limits(job, APNS, targets(100)).get("connections")
+                < DryRunReport.limits(job, APNS, targets(100)).get("concurrency"));
+    }
+
+    @Test
+    public void slowestRegionSetsTheRate() {
+        Map<String, Double> seconds = new LinkedHashMap<String, Double>();
+        // 900 devices at 100/s and 100 devices at 100/s
+        seconds.put("us-east-1", 9.0);
+        seconds.put("eu-west-1", 1.0);
+
+        assertEquals(1000 / 9.0, DryRunReport.acrossRegions(1000, seconds), 0.001);
+    }
+}
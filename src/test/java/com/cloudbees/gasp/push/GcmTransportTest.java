@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.config.Credentials;
+import com.cloudbees.gasp.config.CredentialsProvider;
+import com.cloudbees.gasp.services.SNSMobile;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * How GcmTransport reports each device of a multicast batch.
+ */
+public class GcmTransportTest {
+    private static final SNSMobile.Platform GCM = SNSMobile.Platform.GCM;
+
+    private HttpServer server;
+
+    private static final class RecordingListener implements DeliveryListener {
+        final List<Registration> sent = Collections.synchronizedList(new ArrayList<Registration>());
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void sent(SNSMobile.Platform platform, Registration target) {
+            sent.add(target);
+        }
+
+        @Override
+        public void failed(SNSMobile.Platform platform, Registration target, String errorCode) {
+            failed.add(target.getToken() + ":" + errorCode);
+        }
+    }
+
+    private static final class KeyOnly extends CredentialsProvider {
+        @Override
+        public Credentials getCredentials() {
+            return new Credentials(null, null, "key", null, null, null, null);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("GCM_SEND_URL");
+        System.clearProperty("GCM_BATCH_SIZE");
+        if (server != null) server.stop(0);
+    }
+
+    private static List<Registration> targets(int count) {
+        List<Registration> targets = new ArrayList<Registration>();
+        for (int slot = 0; slot < count; slot++) {
+            targets.add(new Registration("id-" + slot, null, slot));
+        }
+        return targets;
+    }
+
+    @Test
+    public void deviceWithoutResultFails() {
+        RecordingListener listener = new RecordingListener();
+        List<Registration> batch = targets(3);
+
+        List<Registration> retry = new GcmTransport(null).applyResults(GCM, batch,
+                "{\"success\":1,\"failure\":0,\"canonical_ids\":0,\"results\":[{\"message_id\":\"m0\"}]}", listener);
+
+        assertEquals(0, retry.size());
+        assertEquals(Collections.singletonList(batch.get(0)), listener.sent);
+        assertEquals(2, listener.failed.size());
+        assertEquals("id-1:MissingResult", listener.failed.get(0));
+        assertEquals("id-2:MissingResult", listener.failed.get(1));
+    }
+
+    @Test
+    public void unreadableResponseFailsTheBatch() {
+        RecordingListener listener = new RecordingListener();
+
+        new GcmTransport(null).applyResults(GCM, targets(2), "{", listener);
+
+        assertEquals(0, listener.sent.size());
+        assertEquals(2, listener.failed.size());
+    }
+
+    @Test
+    public void everyBatchIsSent() throws Exception {
+        // One result per request, so the second device of each batch of two has none
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/gcm/send", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            byte[] body = "{\"success\":1,\"failure\":0,\"canonical_ids\":0,\"results\":[{\"message_id\":\"m\"}]}"
+                    .getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        });
+        server.start();
+        System.setProperty("GCM_SEND_URL", "http://localhost:" + server.getAddress().getPort() + "/gcm/send");
+        System.setProperty("GCM_BATCH_SIZE", "2");
+        RecordingListener listener = new RecordingListener();
+
+        new GcmTransport(new KeyOnly()).send(GCM, targets(10), new Payload("{\"data\":{}}"), listener);
+
+        assertEquals(5, listener.sent.size());
+        assertEquals(5, listener.failed.size());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pacing with its own budget, so the tests do not depend on
+ * PACING_FETCH_CAPACITY.
+ */
+public class PacingTest {
+
+    @Test
+    public void disabledWithoutCapacity() {
+        Pacing pacing = new Pacing(0, 1000);
+
+        assertFalse(pacing.isEnabled());
+        assertEquals(0, pacing.getWindowMillis(1000000));
+        assertEquals(1, pacing.getSlotSize());
+    }
+
+    @Test
+    public void slotIsOneTickOfTheBudget() {
+        assertEquals(1000, new Pacing(1000, 1000).getSlotSize());
+        assertEquals(250, new Pacing(1000, 250).getSlotSize());
+        // Ticks are at least 10 ms, and a slot at least one device
+        assertEquals(10, new Pacing(1000, 1).getSlotSize());
+        assertEquals(1, new Pacing(5, 100).getSlotSize());
+    }
+
+    @Test
+    public void windowIsAudienceOverCapacity() {
+        Pacing pacing = new Pacing(1000, 1000);
+
+        assertEquals(1000000, pacing.getWindowMillis(1000000));
+        assertEquals(500, pacing.getWindowMillis(500));
+        // No overflow for audiences beyond Integer.MAX_VALUE / 1000
+        assertEquals(3000000000L, new Pacing(1, 1000).getWindowMillis(3000000));
+    }
+
+    @Test
+    public void budgetIsTakenOneSlotAtATime() {
+        Pacing pacing = new Pacing(1000, 1000);
+        long before = System.currentTimeMillis();
+
+        assertEquals(0, pacing.tryAcquire(500));
+        long retryAt = pacing.tryAcquire(500);
+
+        // 500 devices take half a second of the budget
+        assertTrue(retryAt >= before + 500);
+        assertTrue(retryAt <= System.currentTimeMillis() + 500);
+        assertEquals(retryAt, pacing.tryAcquire(1));
+    }
+
+    @Test
+    public void budgetIsFreeOnceItsSlotHasPassed() throws InterruptedException {
+        Pacing pacing = new Pacing(1000, 1000);
+        assertEquals(0, pacing.tryAcquire(20));
+        long retryAt = pacing.tryAcquire(20);
+        assertTrue(retryAt > 0);
+
+        Thread.sleep(Math.max(0, retryAt - System.currentTimeMillis()) + 1);
+
+        assertEquals(0, pacing.tryAcquire(20));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * PayloadLimits with the default limits (APNS_PAYLOAD_LIMIT 2048,
+ * PAYLOAD_MIN_TEXT 32).
+ */
+public class PayloadLimitsTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final SNSMobile.Platform APNS = SNSMobile.Platform.APNS_SANDBOX;
+    private static final String ELLIPSIS = "…";
+
+    private static String[] text(String text) {
+        String[] values = new String[PayloadTemplate.Slot.values().length];
+        values[PayloadTemplate.Slot.TEXT.ordinal()] = text;
+        return values;
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) builder.append(s);
+        return builder.toString();
+    }
+
+    private static String alert(Payload payload) {
+        JsonObject json = new JsonParser().parse(payload.toString()).getAsJsonObject();
+        return json.getAsJsonObject("aps").get("alert").getAsString();
+    }
+
+    @Test
+    public void payloadThatFitsIsUnchanged() {
+        PayloadTemplate template = PayloadTemplate.compile("{\"aps\":{\"alert\":\"${text}\"[[,\"sound\":\"default\"]]}}");
+        Payload payload = PayloadLimits.fit(APNS, template, text("Gasp! update: reviews/1"));
+        assertEquals("{\"aps\":{\"alert\":\"Gasp! update: reviews/1\",\"sound\":\"default\"}}", payload.toString());
+    }
+
+    @Test
+    public void valuesAreEscaped() {
+        PayloadTemplate template = PayloadTemplate.compile("{\"aps\":{\"alert\":\"${text}\"}}");
+        String text = "say \"hi\"\\\nnow\té";
+        Payload payload = PayloadLimits.fit(APNS, template, text(text));
+        assertTrue(payload.toString().contains("say \\\"hi\\\"\\\\\\u000anow\\u0009é"));
+        assertEquals(text, alert(payload));
+    }
+
+    @Test
+    public void longTextIsTruncatedBeforeOptionalSegmentsAreDropped() {
+        PayloadTemplate template = PayloadTemplate.compile("{\"aps\":{\"alert\":\"${text}\"[[,\"sound\":\"default\"]]}}");
+        String text = repeat("x", 3000);
+        Payload payload = PayloadLimits.fit(APNS, template, text(text));
+
+        assertTrue(payload.size() <= 2048);
+        assertTrue(payload.toString().contains("\"sound\":\"default\""));
+        String alert = alert(payload);
+        assertTrue(alert.endsWith(ELLIPSIS));
+        assertTrue(text.startsWith(alert.substring(0, alert.length() - 1)));
+    }
+
+    @Test
+    public void multiByteTextIsNotSplit() {
+        PayloadTemplate template = PayloadTemplate.compile("{\"aps\":{\"alert\":\"${text}\"}}");
+        // 3-byte and 4-byte (surrogate pair) characters
+        String text = repeat("日😀", 1000);
+        Payload payload = PayloadLimits.fit(APNS, template, text(text));
+
+        assertTrue(payload.size() <= 2048);
+        String alert = alert(payload);
+        String kept = alert.substring(0, alert.length() - 1);
+        assertTrue(text.startsWith(kept));
+        assertFalse(Character.isHighSurrogate(kept.charAt(kept.length() - 1)));
+        // Decodes to the same text, so no character was cut in half
+        assertEquals(alert, new String(alert.getBytes(UTF8), UTF8));
+    }
+
+    @Test
+    public void truncateCountsEscapedAndMultiByteSizes() {
+        assertEquals("abc", PayloadLimits.truncate("abc", 3));
+        // Each quote is 2 bytes escaped, the ellipsis 3
+        assertEquals("\"\"" + ELLIPSIS, PayloadLimits.truncate("\"\"\"\"\"", 7));
+        // Each character is 3 bytes: 10 - 3 for the ellipsis leaves room for 2
+        assertEquals("日日" + ELLIPSIS, PayloadLimits.truncate("日日日日", 10));
+        // A surrogate pair is 4 bytes and is kept or dropped whole
+        assertEquals(ELLIPSIS, PayloadLimits.truncate("😀😀", 6));
+        assertEquals("😀" + ELLIPSIS, PayloadLimits.truncate("😀😀", 7));
+    }
+
+    @Test
+    public void optionalSegmentsAreDroppedLastFirst() {
+        String padding = repeat("p", 1500);
+        PayloadTemplate template = PayloadTemplate.compile("{\"aps\":{\"alert\":\"${text}\"}"
+                + "[[,\"a\":\"" + padding + "\"]][[,\"b\":\"" + padding + "\"]]}");
+        Payload payload = PayloadLimits.fit(APNS, template, text("short"));
+
+        assertTrue(payload.size() <= 2048);
+        assertTrue(payload.toString().contains("\"a\":"));
+        assertFalse(payload.toString().contains("\"b\":"));
+        assertEquals("short", alert(payload));
+    }
+
+    @Test
+    public void textIsKeptWholeWhenDroppingASegmentIsEnough() {
+        // Truncating the text could only leave it below PAYLOAD_MIN_TEXT
+        String padding = repeat("p", 2000);
+        PayloadTemplate template = PayloadTemplate.compile("{\"aps\":{\"alert\":\"${text}\"}"
+                + "[[,\"pad\":\"" + padding + "\"]]}");
+        String text = repeat("t", 100);
+        Payload payload = PayloadLimits.fit(APNS, template, text(text));
+
+        assertFalse(payload.toString().contains("\"pad\":"));
+        assertEquals(text, alert(payload));
+    }
+
+    @Test
+    public void badgeIsSizedForTheLargestCount() {
+        PayloadTemplate template = PayloadTemplate.compile("{\"aps\":{\"alert\":\"${text}\",\"badge\":${badge}}}");
+        Payload payload = PayloadLimits.fit(APNS, template, text(repeat("x", 3000)));
+
+        assertTrue(payload.maxSize() <= 2048);
+        assertTrue(payload.withBadge(Long.MAX_VALUE).size() <= 2048);
+    }
+
+    @Test
+    public void payloadThatCannotFitIsRejected() {
+        PayloadTemplate template = PayloadTemplate.compile("{\"aps\":{\"alert\":\"${text}\"},\"pad\":\""
+                + repeat("p", 3000) + "\"}");
+        try {
+            PayloadLimits.fit(APNS, template, text("x"));
+            fail("Expected PayloadTooLargeException");
+        }
+        catch (PayloadTooLargeException e) {
+            assertEquals(APNS, e.getPlatform());
+            assertEquals(2048, e.getLimit());
+            assertTrue(e.getSize() > 2048);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Payload rendering per event: the compiled templates (render, and fit with
+ * its size check) against the nested Maps serialized with Jackson that
+ * they replaced, and the per-device badge splice.
+ * <p>
+ * Run with: mvn -Pjmh test-compile exec:exec -Djmh.args=PayloadTemplateBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadTemplateBenchmark {
+
+    @Param({"APNS_SANDBOX", "GCM"})
+    public SNSMobile.Platform platform;
+
+    private PayloadTemplate template;
+    private String[] values;
+    private Payload payload;
+    private Registration target;
+    private ObjectMapper objectMapper;
+
+    @Setup
+    public void setUp() {
+        template = PayloadTemplates.get("reviews", platform);
+        values = new String[PayloadTemplate.Slot.values().length];
+        values[PayloadTemplate.Slot.TYPE.ordinal()] = "reviews";
+        values[PayloadTemplate.Slot.ID.ordinal()] = "42";
+        values[PayloadTemplate.Slot.TEXT.ordinal()] = "Gasp! update: reviews/42";
+        values[PayloadTemplate.Slot.SEQ.ordinal()] = "1234";
+        values[PayloadTemplate.Slot.DRY_RUN.ordinal()] = "false";
+
+        BadgeCounters badgeCounters = new BadgeCounters();
+        payload = template.render(values).withBadges(badgeCounters);
+        target = new Registration("token", null, 7);
+        objectMapper = new ObjectMapper();
+    }
+
+    @Benchmark
+    public Payload render() {
+        return template.render(values);
+    }
+
+    @Benchmark
+    public Payload fit() {
+        return PayloadLimits.fit(platform, template, values);
+    }
+
+    @Benchmark
+    public byte[] forTarget() {
+        return payload.forTarget(target).getBytes();
+    }
+
+    // How payloads were built before templates
+    @Benchmark
+    public String jacksonMaps() throws IOException {
+        String text = values[PayloadTemplate.Slot.TEXT.ordinal()];
+        Map<String, Object> message = new HashMap<String, Object>();
+        if (platform == SNSMobile.Platform.GCM) {
+            Map<String, String> data = new HashMap<String, String>();
+            data.put("message", text);
+            message.put("collapse_key", "Welcome");
+            message.put("data", data);
+            message.put("delay_while_idle", true);
+            message.put("time_to_live", 125);
+            message.put("dry_run", false);
+        }
+        else {
+            Map<String, Object> aps = new HashMap<String, Object>();
+            aps.put("alert", text);
+            aps.put("badge", 1);
+            aps.put("sound", "default");
+            message.put("aps", aps);
+        }
+        return objectMapper.writeValueAsString(message);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The default templates against the payloads DataSyncService built with
+ * nested Maps before templates, and the splicing and escaping of values.
+ */
+public class PayloadTemplateTest {
+    private static final String TEXT = "Gasp! update: reviews/42";
+
+    private static String[] values(String text, String seq) {
+        String[] values = new String[PayloadTemplate.Slot.values().length];
+        values[PayloadTemplate.Slot.TYPE.ordinal()] = "reviews";
+        values[PayloadTemplate.Slot.ID.ordinal()] = "42";
+        values[PayloadTemplate.Slot.TEXT.ordinal()] = text;
+        values[PayloadTemplate.Slot.SEQ.ordinal()] = seq;
+        values[PayloadTemplate.Slot.DRY_RUN.ordinal()] = "false";
+        return values;
+    }
+
+    private static JsonElement json(String text) {
+        return new JsonParser().parse(text);
+    }
+
+    private static JsonElement json(Payload payload) {
+        return json(payload.toString());
+    }
+
+    @Test
+    public void apnsMatchesBaseline() {
+        Payload payload = PayloadTemplates.get("reviews", SNSMobile.Platform.APNS).render(values(TEXT, "7"));
+
+        assertTrue(payload.hasBadge());
+        assertEquals(json("{\"aps\":{\"alert\":\"" + TEXT + "\",\"badge\":1,\"sound\":\"default\"},\"seq\":7}"),
+                     json(payload.withBadge(1)));
+    }
+
+    @Test
+    public void gcmMatchesBaseline() {
+        Payload payload = PayloadTemplates.get("reviews", SNSMobile.Platform.GCM).render(values(TEXT, "7"));
+
+        assertFalse(payload.hasBadge());
+        assertEquals(json("{\"collapse_key\":\"Welcome\",\"data\":{\"message\":\"" + TEXT + "\",\"seq\":7},"
+                          + "\"delay_while_idle\":true,\"time_to_live\":125,\"dry_run\":false}"),
+                     json(payload));
+    }
+
+    @Test
+    public void valuesAreEscaped() {
+        String text = "Say \"Gasp!\"\\ at\nnoon é\u0001";
+        PayloadTemplate template = PayloadTemplate.compile("{\"alert\":\"${text}\"}");
+
+        Payload payload = template.render(values(text, "1"));
+
+        assertEquals(text, json(payload).getAsJsonObject().get("alert").getAsString());
+        assertFalse(payload.toString().contains("\n"));
+    }
+
+    @Test
+    public void missingValueRendersEmpty() {
+        PayloadTemplate template = PayloadTemplate.compile("{\"alert\":\"${text}\",\"type\":\"${type}\"}");
+
+        assertEquals("{\"alert\":\"\",\"type\":\"\"}", template.render().toString());
+    }
+
+    @Test
+    public void placeholdersAreSplicedWherever() {
+        PayloadTemplate template = PayloadTemplate.compile("${type}/${id}:${type}");
+
+        assertEquals(2, template.count(PayloadTemplate.Slot.TYPE));
+        assertFalse(template.uses(PayloadTemplate.Slot.TEXT));
+        assertEquals("reviews/42:reviews", template.render(values(TEXT, "1")).toString());
+    }
+
+    @Test
+    public void badgeIsSplicedPerDevice() {
+        Payload payload = PayloadTemplate.compile("{\"badge\":${badge},\"again\":${badge}}").render();
+
+        assertEquals("{\"badge\":12,\"again\":12}", payload.withBadge(12).toString());
+        assertEquals("{\"badge\":1,\"again\":1}", payload.forTarget(new Registration("token", null, 0)).toString());
+    }
+
+    @Test
+    public void optionalSegmentsAreDroppedLastFirst() {
+        PayloadTemplate template = PayloadTemplates.get("reviews", SNSMobile.Platform.APNS);
+
+        assertEquals(2, template.getSegmentCount());
+        assertEquals(json("{\"aps\":{\"alert\":\"" + TEXT + "\",\"badge\":1},\"seq\":7}"),
+                     json(template.render(1, values(TEXT, "7")).withBadge(1)));
+        assertEquals(json("{\"aps\":{\"alert\":\"" + TEXT + "\"},\"seq\":7}"),
+                     json(template.render(0, values(TEXT, "7"))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPlaceholderIsRejected() {
+        PayloadTemplate.compile("{\"alert\":\"${title}\"}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unterminatedPlaceholderIsRejected() {
+        PayloadTemplate.compile("{\"alert\":\"${text");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unterminatedSegmentIsRejected() {
+        PayloadTemplate.compile("{\"alert\":\"${text}\"[[,\"sound\":\"default\"}");
+    }
+}
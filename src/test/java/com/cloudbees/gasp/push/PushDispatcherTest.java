@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Paced sends (see Pacing), through a transport that records what it is
+ * given.
+ */
+public class PushDispatcherTest {
+    private static final SNSMobile.Platform GCM = SNSMobile.Platform.GCM;
+
+    // Sends to every target and records the batches
+    private static final class RecordingTransport implements PushTransport {
+        final List<List<Registration>> batches = new ArrayList<List<Registration>>();
+
+        @Override
+        public String getName() {
+            return "recording";
+        }
+
+        @Override
+        public void send(SNSMobile.Platform platform, List<Registration> targets, Payload payload,
+                         DeliveryListener listener) {
+            batches.add(new ArrayList<Registration>(targets));
+            for (Registration target : targets) {
+                listener.sent(platform, target);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static List<Registration> targets(int count) {
+        List<Registration> targets = new ArrayList<Registration>();
+        for (int slot = 0; slot < count; slot++) {
+            targets.add(new Registration("token-" + slot, null, slot));
+        }
+        return targets;
+    }
+
+    private static DeliveryJob job() {
+        DeliveryJob job = new DeliveryJob(1, "reviews", 42, Collections.singletonMap(GCM, new Payload("{}")));
+        assertTrue(job.startPlatform(GCM));
+        assertEquals(0, job.resumeSlot(GCM));
+        return job;
+    }
+
+    @Test
+    public void pacedSendIsDeferredAndContinuedFromTheSameAudience() throws InterruptedException {
+        // Slots of 10 devices, each taking 100 ms of the budget
+        Pacing pacing = new Pacing(100, 100);
+        DeliveryJob job = job();
+        RecordingTransport transport = new RecordingTransport();
+        PushDispatcher.Send send = new PushDispatcher.Send(job, GCM, targets(25), new Payload("{}"), transport);
+
+        long retryAt = PushDispatcher.send(job, GCM, send, pacing);
+
+        assertTrue(retryAt > 0);
+        assertEquals(1, transport.batches.size());
+        assertEquals(10, transport.batches.get(0).size());
+        assertTrue(job.isDeferred(GCM));
+        assertEquals(10, job.getDeferredSlot(GCM));
+
+        List<Registration> sent = new ArrayList<Registration>(transport.batches.get(0));
+        while (retryAt > 0) {
+            Thread.sleep(Math.max(0, retryAt - System.currentTimeMillis()) + 1);
+            // As PushDispatcher does when the pacing timer fires
+            assertEquals(send.targets.get(send.next).getSlot(), job.resumeSlot(GCM));
+            retryAt = PushDispatcher.send(job, GCM, send, pacing);
+        }
+
+        assertFalse(job.isDeferred(GCM));
+        assertFalse(job.isStopped(GCM));
+        assertEquals(3, transport.batches.size());
+        for (List<Registration> batch : transport.batches.subList(1, 3)) {
+            sent.addAll(batch);
+        }
+        assertEquals(send.targets, sent);
+        assertEquals(25, job.getSent(GCM));
+    }
+
+    @Test
+    public void supersededPacedSendStopsWhereItWasDeferred() {
+        Pacing pacing = new Pacing(100, 100);
+        DeliveryJob job = job();
+        RecordingTransport transport = new RecordingTransport();
+        PushDispatcher.Send send = new PushDispatcher.Send(job, GCM, targets(25), new Payload("{}"), transport);
+        assertTrue(PushDispatcher.send(job, GCM, send, pacing) > 0);
+
+        DeliveryJob newer = new DeliveryJob(2, "reviews", 42, Collections.singletonMap(GCM, new Payload("{}")));
+        assertTrue(job.supersede(newer));
+        job.resumeSlot(GCM);
+
+        assertEquals(0, PushDispatcher.send(job, GCM, send, pacing));
+        assertEquals(1, transport.batches.size());
+        assertTrue(job.isStopped(GCM));
+        job.platformFinished(GCM);
+        assertTrue(newer.startPlatform(GCM));
+        assertFalse(newer.waitsForPredecessor(GCM));
+        assertEquals(10, newer.resumeSlot(GCM));
+    }
+
+    @Test
+    public void unpacedSendGoesOutInOneBatch() {
+        DeliveryJob job = job();
+        RecordingTransport transport = new RecordingTransport();
+        PushDispatcher.Send send = new PushDispatcher.Send(job, GCM, targets(25), new Payload("{}"), transport);
+
+        assertEquals(0, PushDispatcher.send(job, GCM, send, new Pacing(0, 1000)));
+
+        assertEquals(1, transport.batches.size());
+        assertEquals(25, job.getSent(GCM));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import com.cloudbees.gasp.services.SNSMobile;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How SNSTransport hands back the rest of a send it could not finish.
+ */
+public class SNSTransportTest {
+    private static final SNSMobile.Platform GCM = SNSMobile.Platform.GCM;
+
+    @After
+    public void tearDown() {
+        // Clears the interrupt a test left set
+        Thread.interrupted();
+    }
+
+    private static List<Registration> targets(int count) {
+        List<Registration> targets = new ArrayList<Registration>();
+        for (int slot = 0; slot < count; slot++) {
+            targets.add(new Registration(null, "arn:aws:sns:us-east-1:0:endpoint/GCM/gasp/" + slot, slot));
+        }
+        return targets;
+    }
+
+    @Test
+    public void interruptedSendIsDeferredNotDropped() {
+        DeliveryJob job = new DeliveryJob(1, "reviews", 42, Collections.singletonMap(GCM, new Payload("{}")));
+        assertTrue(job.startPlatform(GCM));
+        assertEquals(0, job.resumeSlot(GCM));
+        SNSTransport transport = new SNSTransport(new Fanout("test", 10));
+        long before = System.currentTimeMillis();
+
+        Thread.currentThread().interrupt();
+        transport.send(GCM, targets(5), new Payload("{}"), job);
+
+        assertTrue(Thread.currentThread().isInterrupted());
+        assertTrue(job.isDeferred(GCM));
+        assertEquals(0, job.getDeferredSlot(GCM));
+        assertTrue(job.getScheduledAt(GCM) >= before);
+        assertEquals(0, job.getSent(GCM) + job.getFailed(GCM));
+        assertFalse(job.isCancelled());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.push;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TimingWheel with 1 ms ticks: level 0 spans 256 ticks, level 1 65536,
+ * level 2 2^24 and the wheel 2^40.
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void dueTimerExpiresOnNextAdvance() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1, 1000);
+        List<String> expired = new ArrayList<String>();
+        wheel.add(500, "late");
+
+        wheel.advance(1000, expired::add);
+
+        assertEquals(Arrays.asList("late"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void timersExpireInTickOrder() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 0);
+        List<String> expired = new ArrayList<String>();
+        wheel.add(3000, "c");
+        wheel.add(25, "b");
+        wheel.add(5, "a");
+
+        wheel.advance(19, expired::add);
+        assertEquals(Arrays.asList("a"), expired);
+
+        wheel.advance(5000, expired::add);
+        assertEquals(Arrays.asList("a", "b", "c"), expired);
+    }
+
+    @Test
+    public void timersCascadeFromHigherLevelsAtTheirTick() {
+        // Starting part way through a turn of each level
+        long start = 65000;
+        TimingWheel<Long> wheel = new TimingWheel<Long>(1, start);
+        long[] expiries = {start + 300, start + 70000, start + 20000000};
+        for (long at : expiries) {
+            wheel.add(at, at);
+        }
+
+        List<Long> expired = new ArrayList<Long>();
+        long now = start;
+        for (long at : expiries) {
+            // In steps, so that each level is cascaded on the way
+            for (; now < at - 1; now = Math.min(at - 1, now + 1000)) {
+                wheel.advance(now, expired::add);
+            }
+            wheel.advance(at - 1, expired::add);
+            assertFalse("expired early: " + at, expired.contains(at));
+
+            wheel.advance(at, expired::add);
+            assertEquals(at, (long) expired.get(expired.size() - 1));
+            now = at;
+        }
+        assertEquals(3, expired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cancelledTimerDoesNotExpire() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1, 0);
+        List<String> expired = new ArrayList<String>();
+        TimingWheel.Timer<String> timer = wheel.add(100000, "cancelled");
+        wheel.add(100000, "kept");
+
+        assertTrue(wheel.cancel(timer));
+        assertFalse(wheel.cancel(timer));
+        wheel.advance(100000, expired::add);
+
+        assertEquals(Arrays.asList("kept"), expired);
+        assertFalse(timer.isPending());
+    }
+
+    @Test
+    public void timerBeyondRangeIsParked() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1, 0);
+        List<String> expired = new ArrayList<String>();
+        TimingWheel.Timer<String> timer = wheel.add(1L << 45, "far");
+
+        wheel.advance(1000000, expired::add);
+
+        assertTrue(expired.isEmpty());
+        assertTrue(timer.isPending());
+        assertEquals(1, wheel.size());
+        assertTrue(wheel.cancel(timer));
+        assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.services;
+
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * AdmissionControl with a fixed concurrent request budget and a backlog
+ * the test sets.
+ */
+public class AdmissionControlTest {
+
+    private static final class TestAdmission extends AdmissionControl {
+        boolean backedUp;
+
+        TestAdmission(int maxConcurrent, int retryAfterSeconds) {
+            super("test", maxConcurrent, retryAfterSeconds);
+        }
+
+        @Override
+        protected boolean isBackedUp() {
+            return backedUp;
+        }
+    }
+
+    private static String retryAfter(Response response) {
+        return String.valueOf(response.getMetadata().getFirst("Retry-After"));
+    }
+
+    @Test
+    public void admitsUpToMaxConcurrent() {
+        TestAdmission admission = new TestAdmission(2, 5);
+
+        assertNull(admission.admit());
+        assertNull(admission.admit());
+        Response rejected = admission.admit();
+
+        assertNotNull(rejected);
+        assertEquals(429, rejected.getStatus());
+        assertEquals("5", retryAfter(rejected));
+        assertEquals(1, admission.getRejected());
+    }
+
+    @Test
+    public void releaseFreesBudget() {
+        TestAdmission admission = new TestAdmission(1, 5);
+
+        assertNull(admission.admit());
+        assertNotNull(admission.admit());
+        admission.release();
+
+        assertNull(admission.admit());
+    }
+
+    @Test
+    public void backedUpIsUnavailable() {
+        TestAdmission admission = new TestAdmission(1, 3);
+        admission.backedUp = true;
+
+        Response rejected = admission.admit();
+        assertEquals(503, rejected.getStatus());
+        assertEquals("3", retryAfter(rejected));
+
+        // The rejected request took no permit
+        admission.backedUp = false;
+        assertNull(admission.admit());
+        assertEquals(1, admission.getRejected());
+    }
+
+    @Test
+    public void limitsAreAtLeastOne() {
+        TestAdmission admission = new TestAdmission(0, 0);
+
+        assertNull(admission.admit());
+        Response rejected = admission.admit();
+
+        assertEquals(429, rejected.getStatus());
+        assertEquals("1", retryAfter(rejected));
+    }
+}
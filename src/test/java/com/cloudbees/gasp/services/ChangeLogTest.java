@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.services;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ChangeLog with the default sizes (CHANGE_LOG_SIZE 10000,
+ * CHANGE_FEED_WINDOW 100). The log is shared, so each test starts at the
+ * next window.
+ */
+public class ChangeLogTest {
+    private static final int CAPACITY = 10000;
+    private static final int WINDOW = 100;
+
+    private long base;
+
+    @Before
+    public void setUp() {
+        int padding = 0;
+        while (ChangeLog.getLastSeq() % WINDOW != 0) {
+            ChangeLog.append("padding", padding++);
+        }
+        base = ChangeLog.getLastSeq();
+    }
+
+    private static JsonArray changes(ChangeLog.Feed feed) {
+        return new JsonParser().parse(feed.getJson()).getAsJsonObject().getAsJsonArray("changes");
+    }
+
+    private static String entity(JsonArray changes, int index) {
+        JsonObject change = changes.get(index).getAsJsonObject();
+        return change.get("type").getAsString() + "/" + change.get("id").getAsInt() + "@" + change.get("seq").getAsLong();
+    }
+
+    @Test
+    public void listsEachEntityOnceAtItsLatestChange() {
+        ChangeLog.append("reviews", 1);
+        ChangeLog.append("reviews", 2);
+        ChangeLog.append("reviews", 1);
+
+        ChangeLog.Feed feed = ChangeLog.since(base);
+        JsonArray changes = changes(feed);
+
+        assertEquals(base, feed.getSince());
+        assertEquals(base + 3, feed.getLast());
+        assertEquals(2, changes.size());
+        assertEquals("reviews/2@" + (base + 2), entity(changes, 0));
+        assertEquals("reviews/1@" + (base + 3), entity(changes, 1));
+    }
+
+    @Test
+    public void answersFromStartOfWindowAndReusesFeed() {
+        ChangeLog.append("reviews", 1);
+        ChangeLog.append("users", 1);
+
+        ChangeLog.Feed feed = ChangeLog.since(base + 2);
+
+        assertEquals(base, feed.getSince());
+        assertEquals(2, changes(feed).size());
+        assertSame(feed, ChangeLog.since(base + 1));
+    }
+
+    @Test
+    public void feedIsBroughtUpToDateOnNextChange() {
+        ChangeLog.append("reviews", 1);
+        ChangeLog.append("reviews", 2);
+        ChangeLog.Feed before = ChangeLog.since(base);
+
+        ChangeLog.append("reviews", 1);
+        ChangeLog.append("restaurants", 3);
+        ChangeLog.Feed after = ChangeLog.since(base);
+        JsonArray changes = changes(after);
+
+        assertNotEquals(before.getTag(), after.getTag());
+        assertEquals(base + 4, after.getLast());
+        assertEquals(3, changes.size());
+        assertEquals("reviews/2@" + (base + 2), entity(changes, 0));
+        assertEquals("reviews/1@" + (base + 3), entity(changes, 1));
+        assertEquals("restaurants/3@" + (base + 4), entity(changes, 2));
+        // The older response is unchanged
+        assertEquals(2, changes(before).size());
+    }
+
+    @Test
+    public void sinceOutsideLogIsGone() {
+        ChangeLog.append("reviews", 1);
+        long last = ChangeLog.getLastSeq();
+
+        assertNull(ChangeLog.since(last + 1));
+        assertNull(ChangeLog.since(-1));
+
+        for (int i = 0; i < CAPACITY; i++) {
+            ChangeLog.append("reviews", i);
+        }
+        assertNull(ChangeLog.since(base));
+        assertEquals(ChangeLog.getLastSeq(), ChangeLog.since(ChangeLog.getLastSeq()).getLast());
+    }
+
+    @Test
+    public void overwrittenChangesLeaveCachedWindow() {
+        ChangeLog.append("restaurants", 1);
+        assertEquals(1, changes(ChangeLog.since(base)).size());
+        for (int i = 1; i < CAPACITY; i++) {
+            ChangeLog.append("users", i);
+        }
+        assertEquals(CAPACITY, changes(ChangeLog.since(base + 50)).size());
+
+        // Overwrites restaurants/1
+        ChangeLog.append("users", CAPACITY);
+        JsonArray changes = changes(ChangeLog.since(base + 50));
+
+        assertEquals(CAPACITY, changes.size());
+        assertEquals("users/1@" + (base + 2), entity(changes, 0));
+        for (int i = 0; i < changes.size(); i++) {
+            assertFalse(entity(changes, i).startsWith("restaurants/"));
+        }
+    }
+
+    @Test
+    public void failedAppendRecordsNothing() {
+        try {
+            ChangeLog.append("reviews", 1, seq -> {
+                throw new IllegalStateException("payload too large");
+            });
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+
+        // Its sequence number is skipped
+        assertEquals(base + 1, ChangeLog.getLastSeq());
+        assertEquals(base + 2, ChangeLog.append("reviews", 2));
+        JsonArray changes = changes(ChangeLog.since(base));
+        assertEquals(1, changes.size());
+        assertEquals("reviews/2@" + (base + 2), entity(changes, 0));
+    }
+
+    @Test
+    public void rendersInParallelAndPublishesInOrder() throws Exception {
+        CountDownLatch rendering = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread slow = new Thread(() -> ChangeLog.append("reviews", 1, seq -> {
+            rendering.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return seq;
+        }));
+        slow.start();
+        assertTrue(rendering.await(5, TimeUnit.SECONDS));
+
+        // Not held up by the slow render, but not published before it
+        assertEquals(base + 2, ChangeLog.append("reviews", 2));
+        assertEquals(base, ChangeLog.getLastSeq());
+
+        release.countDown();
+        slow.join(5000);
+        assertEquals(base + 2, ChangeLog.getLastSeq());
+        JsonArray changes = changes(ChangeLog.since(base));
+        assertEquals("reviews/1@" + (base + 1), entity(changes, 0));
+        assertEquals("reviews/2@" + (base + 2), entity(changes, 1));
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.services;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CircuitBreaker with the default settings (CIRCUIT_MIN_CALLS 20,
+ * CIRCUIT_FAILURE_RATE 50, CIRCUIT_SLOW_CALL_RATE 80 over 5000 ms,
+ * CIRCUIT_PROBES 5), unless a test sets CIRCUIT_OPEN_SECONDS.
+ */
+public class CircuitBreakerTest {
+    private static final long FAST = 1000000L;
+    private static final long SLOW = 6000000000L;
+
+    @After
+    public void tearDown() {
+        System.clearProperty("CIRCUIT_OPEN_SECONDS");
+    }
+
+    private static void record(CircuitBreaker breaker, int count, boolean healthy, long nanos) {
+        for (int i = 0; i < count; i++) {
+            breaker.record(healthy, nanos);
+        }
+    }
+
+    // A breaker that half-opens as soon as it has opened
+    private static CircuitBreaker opened() {
+        System.setProperty("CIRCUIT_OPEN_SECONDS", "0");
+        CircuitBreaker breaker = new CircuitBreaker("test", 50);
+        record(breaker, 20, false, FAST);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    @Test
+    public void staysClosedBelowMinCalls() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 50);
+        record(breaker, 19, false, FAST);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void opensOnFailureRate() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 50);
+        record(breaker, 10, true, FAST);
+        record(breaker, 9, false, FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.record(false, FAST);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertTrue(breaker.getRetryAt() > System.currentTimeMillis() + 25000);
+    }
+
+    @Test
+    public void opensOnSlowCallRate() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 50);
+        record(breaker, 4, true, FAST);
+        record(breaker, 16, true, SLOW);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void failuresOutsideWindowAreForgotten() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 20);
+        record(breaker, 9, false, FAST);
+        record(breaker, 21, true, FAST);
+        // The last 20 calls: 11 healthy, 9 failed
+        record(breaker, 9, false, FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.record(false, FAST);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void halfOpenLetsProbesThroughAndCloses() {
+        CircuitBreaker breaker = opened();
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(breaker.tryAcquire());
+        }
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+
+        record(breaker, 4, true, FAST);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.record(true, FAST);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        // The failures before it opened no longer count
+        record(breaker, 19, false, FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void failedProbeReopens() {
+        CircuitBreaker breaker = opened();
+        assertTrue(breaker.tryAcquire());
+
+        breaker.record(false, FAST);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void slowProbeReopens() {
+        CircuitBreaker breaker = opened();
+        assertTrue(breaker.tryAcquire());
+
+        breaker.record(true, SLOW);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void callStartedBeforeOpeningIsIgnored() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 50);
+        record(breaker, 20, false, FAST);
+
+        breaker.record(true, FAST);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void endpointErrorsAreNotFailures() {
+        AmazonServiceException disabled = new AmazonServiceException("Endpoint is disabled");
+        disabled.setErrorCode("EndpointDisabled");
+        disabled.setStatusCode(400);
+        AmazonServiceException throttled = new AmazonServiceException("Rate exceeded");
+        throttled.setErrorCode("Throttling");
+        throttled.setStatusCode(400);
+        AmazonServiceException internal = new AmazonServiceException("Internal error");
+        internal.setErrorCode("NotFound");
+        internal.setStatusCode(500);
+
+        assertFalse(CircuitBreaker.isFailure(disabled));
+        assertTrue(CircuitBreaker.isFailure(throttled));
+        assertTrue(CircuitBreaker.isFailure(internal));
+        assertTrue(CircuitBreaker.isFailure(new AmazonClientException("Connection reset")));
+        assertFalse(CircuitBreaker.isFailure(new CircuitOpenException(SNSMobile.Platform.GCM, 0)));
+    }
+}
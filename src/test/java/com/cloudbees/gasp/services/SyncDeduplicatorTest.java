@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2013 Mark Prichard, CloudBees
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cloudbees.gasp.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyncDeduplicatorTest {
+
+    @Test
+    public void duplicateWithinWindowIsRejected() {
+        SyncDeduplicator deduplicator = new SyncDeduplicator(60000, 100);
+
+        assertTrue(deduplicator.accept("reviews/1:abc"));
+        assertFalse(deduplicator.accept("reviews/1:abc"));
+        assertTrue(deduplicator.accept("reviews/2:abc"));
+    }
+
+    @Test
+    public void keyExpiresAfterWindow() throws InterruptedException {
+        SyncDeduplicator deduplicator = new SyncDeduplicator(50, 100);
+        assertTrue(deduplicator.accept("reviews/1:abc"));
+
+        Thread.sleep(100);
+
+        assertTrue(deduplicator.accept("reviews/1:abc"));
+        assertEquals(1, deduplicator.size());
+    }
+
+    @Test
+    public void expiryRemovesOnlyOldKeys() throws InterruptedException {
+        SyncDeduplicator deduplicator = new SyncDeduplicator(200, 100);
+        deduplicator.accept("old");
+        Thread.sleep(120);
+        deduplicator.accept("recent");
+        Thread.sleep(120);
+
+        assertTrue(deduplicator.accept("other"));
+        assertEquals(2, deduplicator.size());
+        assertFalse(deduplicator.accept("recent"));
+        assertTrue(deduplicator.accept("old"));
+    }
+
+    @Test
+    public void oldestKeyIsEvictedOverMaxKeys() {
+        SyncDeduplicator deduplicator = new SyncDeduplicator(60000, 2);
+        deduplicator.accept("a");
+        deduplicator.accept("b");
+        deduplicator.accept("c");
+
+        assertEquals(2, deduplicator.size());
+        assertFalse(deduplicator.accept("c"));
+        assertTrue(deduplicator.accept("a"));
+    }
+
+    @Test
+    public void forgottenKeyIsAcceptedAgain() {
+        SyncDeduplicator deduplicator = new SyncDeduplicator(60000, 100);
+        deduplicator.accept("a");
+        deduplicator.forget("a");
+
+        assertTrue(deduplicator.accept("a"));
+    }
+
+    @Test
+    public void keyUsesIdempotencyKeyOrBodyHash() {
+        assertEquals("reviews:delivery-7", SyncDeduplicator.key("reviews", 1, "{}", " delivery-7 "));
+        assertEquals(SyncDeduplicator.key("reviews", 1, "{\"id\":1}", null),
+                SyncDeduplicator.key("reviews", 1, "{\"id\":1}", ""));
+        assertNotEquals(SyncDeduplicator.key("reviews", 1, "{\"id\":1}", null),
+                SyncDeduplicator.key("reviews", 1, "{\"id\":1,\"star\":2}", null));
+    }
+}